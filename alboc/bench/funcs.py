@@ -0,0 +1,39 @@
+#!/usr/bin/env python3
+#
+# Generate funcs.alboc (see -orderfuncs): 3000 functions, of which 600
+# form a chain of calls made 100000 times. The hot functions are
+# scattered through the source and are short, while the others have
+# long bodies, so in source order the hot code is spread over most of
+# the program's text. Each function also has a call which is never
+# made, so the static call graph links hot and cold functions too.
+#
+#   python3 funcs.py && alboc -orderfuncs funcs.alboc
+
+import random
+
+random.seed(7)
+N = 3000;  H = 600
+hot = sorted(random.sample(range(1, N), H))
+
+def body(j):
+    r = []
+    for q in range(14):
+        r.append("   s = s + g[%d] / %d - x * %d;  g[%d] = s / %d;" %
+                 ((j+q)%64, q+3, (j%7)+2, (j*3+q)%64, q+5))
+    return r
+
+L = ["int g[64];", "int s;"]
+for j in range(N):
+    L.append("int f%d(int x) {" % j)
+    L.append("   if (x == -12345) { f%d(x); }" % random.randrange(N))
+    if j in hot:
+        k = hot.index(j)
+        L.append("   s = s + x;")
+        if k+1 < H: L.append("   f%d(x + 1);" % hot[k+1])
+    else:
+        L += body(j)
+    L.append("   return s;")
+    L.append("}")
+L += ["int main() {", "   int i;", "   for (i = 0;  i < 100000;  i = i + 1) {",
+      "      f%d(i);" % hot[0], "   }", "   putint(s);  putchar(10);", "   return 0;", "}"]
+open("funcs.alboc", "w").write("\n".join(L) + "\n")
@@ -8,14 +8,18 @@ package no.uio.ifi.alboc.alboc;
 
 import java.io.*;
 import no.uio.ifi.alboc.chargenerator.CharGenerator;
+import no.uio.ifi.alboc.code.CCode;
 import no.uio.ifi.alboc.code.Code;
+import no.uio.ifi.alboc.code.Profiler;
 import no.uio.ifi.alboc.error.Error;
 import no.uio.ifi.alboc.error.AlboCError;
+import no.uio.ifi.alboc.ir.PassManager;
 import no.uio.ifi.alboc.log.Log;
 import no.uio.ifi.alboc.scanner.Scanner;
 import static no.uio.ifi.alboc.scanner.Token.*;
 import no.uio.ifi.alboc.syntax.Syntax;
 import no.uio.ifi.alboc.types.Types;
+import no.uio.ifi.alboc.vm.Vm;
 
 /*
  * The main program of the AlboC compiler.
@@ -26,10 +30,12 @@ public class AlboC {
     public static String sourceName = null,  // Source file name
 	sourceBaseName = null;               // Source file name without extension
     public static boolean noLink = false;    // Should we drop linking?
+    public static boolean runProgram = false; // Run it in the Vm instead?
     public static final String myOS =        // The current operating system
     System.getProperty("os.name");
 
     private static boolean testParser = false, testScanner = false;
+    private static Process assembler = null;  // gcc reading a pipe (-pipe)
 
     private static boolean checkParams(String[] args) {
     	for (String opt: args) {
@@ -43,8 +49,73 @@ public class AlboC {
     			Log.doLogParser = true;
     		} else if (opt.equals("-logS")) {
     			Log.doLogScanner = true;
+    		} else if (opt.equals("-logR")) {
+    			Log.doLogIR = true;
     		} else if (opt.equals("-logT")) {
     			Log.doLogTypeCheck = true;
+    		} else if (opt.equals("-argarea")) {
+    			Code.preallocArgs = true;
+    		} else if (opt.equals("-bufio")) {
+    			Code.bufferedIo = true;
+    		} else if (opt.equals("-orderfuncs")) {
+    			Syntax.orderFuncs = true;
+    		} else if (opt.equals("-c99")) {
+    			CCode.genC = true;
+    		} else if (opt.equals("-g")) {
+    			Code.debugInfo = true;
+    		} else if (opt.equals("-profile")) {
+    			Code.profile = true;
+    		} else if (opt.startsWith("-useprofile=")) {
+    			Profiler.profileFile = opt.substring(12);
+    		} else if (opt.equals("-elf")) {
+    			Code.writeObject = true;
+    		} else if (opt.equals("-pipe")) {
+    			Code.pipeToAssembler = true;
+    		} else if (opt.equals("-save-temps")) {
+    			Code.keepAsmFile = true;
+    		} else if (opt.equals("-run")) {
+    			// The Vm runs the IR (with all arguments passed as in C):
+    			runProgram = true;  Syntax.useIr = true;
+    			Syntax.doRegParams = false;  PassManager.backend = Vm.backend;
+    		} else if (opt.equals("-jvm")) {
+    			// As -run, but compiled to JVM bytecode:
+    			runProgram = true;  Syntax.useIr = true;
+    			Syntax.doRegParams = false;  Vm.compileToJvm = true;
+    			PassManager.backend = Vm.backend;
+    		} else if (opt.equals("-ir")) {
+    			Syntax.useIr = true;
+    		} else if (opt.equals("-x64")) {
+    			// The x86-64 code is generated from the IR:
+    			Code.x86_64 = true;  Syntax.useIr = true;
+    			Types.pointerSize = 8;
+    		} else if (opt.startsWith("-inline=")) {
+    			try {
+    				Syntax.inlineMax = Integer.parseInt(opt.substring(8));
+    			} catch (NumberFormatException e) {
+    				return false;
+    			}
+    		} else if (opt.equals("-notailcalls")) {
+    			Syntax.doTailCalls = false;
+    		} else if (opt.equals("-nodce")) {
+    			Syntax.doDce = false;
+    		} else if (opt.equals("-nofpo")) {
+    			Code.omitFramePointer = false;
+    		} else if (opt.equals("-nomemops")) {
+    			Syntax.useMemOperands = false;
+    		} else if (opt.equals("-noregparams")) {
+    			Syntax.doRegParams = false;
+    		} else if (opt.equals("-ivsr")) {
+    			Syntax.doIvsr = true;
+    		} else if (opt.equals("-nolicm")) {
+    			Syntax.doLicm = false;
+    		} else if (opt.startsWith("-loopalign=")) {
+    			try {
+    				Code.loopAlignMax = Integer.parseInt(opt.substring(11));
+    			} catch (NumberFormatException e) {
+    				return false;
+    			}
+    		} else if (opt.equals("-timepasses")) {
+    			PassManager.timePasses = true;
     		} else if (opt.equals("-testparser")) {
     			testParser = true;
     			Log.doLogParser = Log.doLogTree = true;
@@ -60,7 +131,28 @@ public class AlboC {
     				sourceBaseName = opt.substring(0,opt.length()-6);
     		}
     	}
-    	return true;
+    	if (CCode.genC) {
+    		// gcc inlines and optimizes loops better itself, and the
+    		// strength-reduced pointers would be hard to type in C:
+    		Syntax.inlineMax = 0;
+    		Syntax.doLicm = Syntax.doIvsr = false;
+    		if (runProgram || Code.x86_64 || Code.writeObject || 
+    		    Code.pipeToAssembler) return false;
+    	}
+    	if (Code.bufferedIo && (runProgram || CCode.genC || Code.x86_64))
+    		return false;  // The library is 32-bit x86 code
+    	if (Code.profile) {
+    		// Every function must be called to be counted:
+    		Syntax.inlineMax = 0;
+    		if (runProgram || CCode.genC || Code.x86_64 || Code.writeObject)
+    			return false;  // 32-bit x86 code with read-only data
+    		if (Profiler.profileFile != null)
+    			return false;  // Not laid out by a profile it is counting
+    	}
+    	if (Code.debugInfo && Code.writeObject)
+    		return false;  // The Assembler writes no debug information
+    	return ! (runProgram && 
+    		  (Code.x86_64 || Code.writeObject || Code.pipeToAssembler));
     }
 
     /**
@@ -81,6 +173,12 @@ public class AlboC {
     		try {
     			Error.init();  Log.init();  Code.init();  Types.init();
     			CharGenerator.init();  Scanner.init();  Syntax.init();
+    			if (Code.pipeToAssembler && ! Code.writeObject && 
+    				! testScanner && ! testParser) {
+    				// Assemble while compiling:
+    				assembler = startAssembler();
+    				Code.pipeTo(assembler.getOutputStream());
+    			}
     			
     			if (testScanner) {
     				System.out.print("Scanning...");
@@ -98,13 +196,24 @@ public class AlboC {
     				if (! testParser) {
     					System.out.print(" checking...");  
     					Syntax.checkProgram();
+    					System.out.print(" optimizing...");  
+    					Syntax.optimizeProgram();
     					System.out.print(" generating code...");  
     					Syntax.genCode();  
+    					if (! runProgram && ! CCode.genC)
+    						System.out.print(" (" + Code.instrCount() + " instructions)");
+    					// (Known after genCode, which measures the removed code:)
+    					String removed = Syntax.deadCodeReport();
+    					if (removed != null)
+    						System.out.print(" (" + removed + ")");
+    					if (Syntax.useIr && PassManager.timePasses)
+    						System.out.print("\n" + Syntax.passTimingReport());
     				}
     			}
     			System.out.println(" OK");
     		}
     		catch (AlboCError e) {
+    			if (assembler != null) assembler.destroy();
     			System.out.println();
     			System.err.println(e.getMessage());
     			exitStatus = 1;
@@ -115,11 +224,17 @@ public class AlboC {
     		}
 
     		if (exitStatus==0 && ! testScanner && ! testParser) {
-    			assembleCode();
+    			if (runProgram)
+    				exitStatus = runCode();
+    			else
+    				assembleCode();
     		}
     	} else {
-    		System.err.println("Usage: alboc [-c] [-log{B|I|P|S|T}] " +
-    			"[-test{scanner|parser}] file");
+    		System.err.println("Usage: alboc [-argarea] [-bufio] [-c] [-c99] [-elf] [-g] [-ir] [-log{B|I|P|R|S|T}] " +
+    			"[-inline=n] [-ivsr] [-jvm] [-loopalign=n] [-nodce] [-nofpo] [-nolicm] " +
+    			"[-nomemops] [-noregparams] [-notailcalls] [-orderfuncs] [-pipe] [-profile] [-run] [-save-temps] " +
+    			"[-test{scanner|parser}] [-timepasses] [-useprofile=file] " +
+    			"[-x64] file");
     		exitStatus = 2;
     	}
 
@@ -127,24 +242,83 @@ public class AlboC {
     }
     
 
+    private static int runCode() {
+    	try {
+    		return Vm.run();
+    	}
+    	catch (AlboCError e) {
+    		System.err.println(e.getMessage());
+    		return 1;
+    	}
+    }
+
+
     private static void assembleCode() {
     	String pName = sourceBaseName;
     	if (pName.equals(sourceName)) pName += ".exe";
     	String sName = sourceBaseName + ".s";
 
+    	if (Code.writeObject) {
+    		// No assembler is needed, and gcc is only used for linking:
+    		sName = sourceBaseName + ".o";
+    		Code.writeObjectFile(sName);
+    		if (noLink) return;
+    	} else if (assembler != null) {
+    		// The code has been piped to gcc already:
+    		waitForGcc(assembler);
+    		sName = sourceBaseName + ".o";
+    		if (noLink) return;
+    	}
+
     	String arg[];
+    	if (CCode.genC) {
+    		// Compile the C code instead:
+    		String cName = sourceBaseName + ".c";
+    		if (noLink) {
+    			arg = new String[] {"gcc", "-std=c99", "-O2", "-c", cName};
+    		} else {
+    			arg = new String[] {"gcc", "-std=c99", "-O2", "-o", pName, cName,
+    				"-L.", "-L/hom/inf2100", "-lalboc"};
+    		}
+    		if (Code.debugInfo) {
+    			String[] g = new String[arg.length+1];
+    			System.arraycopy(arg, 0, g, 0, arg.length);
+    			g[arg.length] = "-g";  arg = g;
+    		}
+    		waitForGcc(startGcc(arg));
+    		return;
+    	}
     	if (noLink) {
     		arg = new String[4];
-    		arg[0] = "gcc";  arg[1] = "-m32";
+    		arg[0] = "gcc";  arg[1] = (Code.x86_64 ? "-m64" : "-m32");
     		arg[2] = "-c";   arg[3] = sName;
     	} else {
     		arg = new String[8];
-    		arg[0] = "gcc";      arg[1] = "-m32";
+    		arg[0] = "gcc";      arg[1] = (Code.x86_64 ? "-m64" : "-m32");
     		arg[2] = "-o";       arg[3] = pName;
     		arg[4] = sName;  
     		arg[5] = "-L.";      arg[6] = "-L/hom/inf2100";
     		arg[7] = "-lalboc";  
     	}
+    	waitForGcc(startGcc(arg));
+    }
+
+
+    /*
+     * Start gcc assembling from standard input into the .o file, so
+     * the code can be piped to it while it is generated.
+     */
+    private static Process startAssembler() {
+    	String arg[] = new String[8];
+    	arg[0] = "gcc";  arg[1] = (Code.x86_64 ? "-m64" : "-m32");
+    	arg[2] = "-c";   arg[3] = "-x";  arg[4] = "assembler";
+    	arg[5] = "-o";   arg[6] = sourceBaseName + ".o";
+    	arg[7] = "-";
+    	return startGcc(arg);
+    }
+
+
+    private static Process startGcc(String[] arg) {
     	System.out.print("Running");
     	for (String s: arg) 
     		System.out.print(" "+s);
@@ -166,15 +340,22 @@ public class AlboC {
 	    		} catch (IOException e) {}
 	    	}
 	    }.start();
-	    
+	    return proc;
+	} 
+	catch (IOException e) {
+		Error.error("Cannot run gcc!");	
+	}
+	return null;
+}
+
+
+private static void waitForGcc(Process proc) {
+	try {
 	    int status = proc.waitFor();
 	    if (status != 0) 
 	    	Error.error("Running gcc produced errors!");
 	} 
 	catch (InterruptedException e) {}
-	catch (IOException e) {
-		Error.error("Cannot run gcc!");	
-	}
 }
 
 
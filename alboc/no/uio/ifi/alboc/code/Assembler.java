@@ -0,0 +1,630 @@
+package no.uio.ifi.alboc.code;
+
+/*
+ * module Assembler
+ */
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import no.uio.ifi.alboc.error.Error;
+
+/*
+ * An assembler for the 32-bit x86 code generated by Code. It is fed the
+ * same instructions and directives (in AT&T syntax) that are written
+ * to the .s file, encodes them into machine code and writes a
+ * relocatable ELF object file, so no external assembler is needed.
+ *
+ * Jumps are made short whenever their target is within reach.
+ * Variables are referred to with absolute relocations (against .bss)
+ * and functions that are not defined in the file are called with
+ * PC-relative relocations; everything else is resolved here.
+ */
+public class Assembler {
+    private static final String[] regNames =
+	{"%eax", "%ecx", "%edx", "%ebx", "%esp", "%ebp", "%esi", "%edi"};
+    private static final String[] condNames =
+	{"o", "no", "b", "ae", "e", "ne", "be", "a",
+	 "s", "ns", "p", "np", "l", "ge", "le", "g"};
+
+    // The sections of the object file (and their header indices):
+    private static final int UNDEF = 0, TEXT = 1, REL_TEXT = 2, BSS = 3,
+	NOTE = 4, SYMTAB = 5, STRTAB = 6, SHSTRTAB = 7, NUM_SECTIONS = 8;
+    private static final String[] sectionNames = {"", ".text", ".rel.text",
+	".bss", ".note.GNU-stack", ".symtab", ".strtab", ".shstrtab"};
+
+    // Relocation types:
+    private static final int R_386_32 = 1, R_386_PC32 = 2;
+
+    private static class Symbol {
+	String name;
+	int section = UNDEF;
+	int value = 0;
+	boolean global = false;
+	int index;  // In .symtab
+	Symbol(String n) { name = n; }
+    }
+
+    /*
+     * A 32-bit field in the code that refers to sym (plus the addend
+     * that is already in the field).
+     */
+    private static class Fixup {
+	int at;  Symbol sym;  boolean pcRelative;
+	Fixup(int a, Symbol s, boolean pc) { at = a;  sym = s;  pcRelative = pc; }
+    }
+
+    /*
+     * The text section is a list of items, since the size of jumps
+     * and alignment padding is only known when all labels are defined.
+     */
+    private static class Item {
+	byte[] code;  ArrayList<Fixup> fixups;  // Instruction, or
+	Symbol label;                           // label, or
+	Symbol target;  int opcode;             // jump or call, or
+	int align, maxSkip;                     // alignment padding
+	boolean isLong = false;                 // Jump with rel32?
+	int offset, size;
+    }
+
+    /*
+     * An instruction operand: a register, an immediate value or a
+     * memory reference disp(base,index,scale), where disp may be
+     * (or include) a symbol.
+     */
+    private static class Operand {
+	int reg = -1;
+	boolean isImm = false, isMem = false;
+	int base = -1, index = -1, scale = 1;
+	int disp = 0;  Symbol sym = null;
+    }
+
+    private static final int JMP = -1, CALL = -2;  // Opcodes for jump items
+
+    private LinkedHashMap<String,Symbol> symbols =
+	new LinkedHashMap<String,Symbol>();
+    private ArrayList<Item> text = new ArrayList<Item>();
+    private int bssSize = 0, bssAlign = 4;
+
+    // The instruction being encoded (and its fixups, if any):
+    private ByteArrayOutputStream code = new ByteArrayOutputStream(16);
+    private ArrayList<Fixup> fixups;
+
+
+    private Symbol symbol(String name) {
+	Symbol s = symbols.get(name);
+	if (s == null) symbols.put(name, s = new Symbol(name));
+	return s;
+    }
+
+    private Symbol define(String name, int section, int value) {
+	Symbol s = symbol(name);
+	if (s.section != UNDEF)
+	    Error.error("Symbol " + name + " is already defined!");
+	s.section = section;  s.value = value;
+	return s;
+    }
+
+    public void label(String name) {
+	Item it = new Item();
+	it.label = define(name, TEXT, 0);
+	text.add(it);
+    }
+
+    /*
+     * Define a zero-initialized variable of size bytes in .bss.
+     */
+    public void genVar(String name, boolean global, int align, int size) {
+	bssSize = (bssSize+align-1) & -align;
+	if (align > bssAlign) bssAlign = align;
+	define(name, BSS, bssSize).global = global;
+	bssSize += size;
+    }
+
+    /*
+     * Encode one instruction or directive (with its operands as a
+     * single string, like "8(%ebp),%eax").
+     */
+    public void genInstr(String instr, String arg) {
+	if (instr.equals(".globl")) {
+	    symbol(arg).global = true;  return;
+	} else if (instr.equals(".p2align")) {
+	    String[] a = arg.split(",");
+	    Item it = new Item();
+	    it.align = 1 << Integer.parseInt(a[0]);
+	    it.maxSkip = (a.length > 2 ? Integer.parseInt(a[2]) : it.align);
+	    text.add(it);  return;
+	} else if (instr.equals("jmp") || instr.equals("call") ||
+		   (instr.startsWith("j") && cond(instr.substring(1)) >= 0)) {
+	    Item it = new Item();
+	    it.target = symbol(arg);
+	    it.opcode = (instr.equals("jmp") ? JMP : instr.equals("call") ? CALL :
+			 cond(instr.substring(1)));
+	    // Calls always use a rel32; jumps start out short (see layout):
+	    it.isLong = it.opcode == CALL;
+	    text.add(it);  return;
+	}
+
+	Operand[] ops = parseOperands(arg);
+	Operand a = (ops.length > 0 ? ops[0] : null),
+	    b = (ops.length > 1 ? ops[1] : null);
+	code.reset();  fixups = null;
+
+	if (instr.equals("movl") && ops.length == 2) {
+	    if (a.isImm && b.reg >= 0) {
+		emit(0xB8+b.reg);  imm32(a);
+	    } else if (a.isImm) {
+		emit(0xC7);  modrm(0, b);  imm32(a);
+	    } else if (a.reg == 0 && isAbsolute(b)) {
+		emit(0xA3);  imm32(b);
+	    } else if (a.reg >= 0) {
+		emit(0x89);  modrm(a.reg, b);
+	    } else if (b.reg == 0 && isAbsolute(a)) {
+		emit(0xA1);  imm32(a);
+	    } else {
+		emit(0x8B);  modrm(reg(b), a);
+	    }
+	} else if (aluOp(instr) >= 0 && ops.length == 2) {
+	    int op = aluOp(instr);
+	    if (a.isImm && isImm8(a)) {
+		emit(0x83);  modrm(op, b);  emit(a.disp);
+	    } else if (a.isImm && b.reg == 0) {
+		emit(op*8+5);  imm32(a);
+	    } else if (a.isImm) {
+		emit(0x81);  modrm(op, b);  imm32(a);
+	    } else if (a.reg >= 0) {
+		emit(op*8+1);  modrm(a.reg, b);
+	    } else {
+		emit(op*8+3);  modrm(reg(b), a);
+	    }
+	} else if (instr.equals("leal") && ops.length == 2 && a.isMem) {
+	    emit(0x8D);  modrm(reg(b), a);
+	} else if (instr.equals("imull") && ops.length == 1) {
+	    emit(0xF7);  modrm(5, a);
+	} else if (instr.equals("imull") && ops.length >= 2) {
+	    Operand dst = ops[ops.length-1];
+	    if (a.isImm) {
+		// imull $c,src,dst (or imull $c,dst):
+		Operand src = (ops.length == 3 ? b : dst);
+		emit(isImm8(a) ? 0x6B : 0x69);  modrm(reg(dst), src);
+		if (isImm8(a)) emit(a.disp); else imm32(a);
+	    } else {
+		emit(0x0F);  emit(0xAF);  modrm(reg(dst), a);
+	    }
+	} else if (unaryOp(instr) >= 0 && ops.length == 1) {
+	    emit(0xF7);  modrm(unaryOp(instr), a);
+	} else if (shiftOp(instr) >= 0 && ops.length == 2 && a.isImm) {
+	    if (a.disp == 1) {
+		emit(0xD1);  modrm(shiftOp(instr), b);
+	    } else {
+		emit(0xC1);  modrm(shiftOp(instr), b);  emit(a.disp);
+	    }
+	} else if (instr.equals("pushl") && ops.length == 1) {
+	    if (a.reg >= 0) {
+		emit(0x50+a.reg);
+	    } else if (a.isImm && isImm8(a)) {
+		emit(0x6A);  emit(a.disp);
+	    } else if (a.isImm) {
+		emit(0x68);  imm32(a);
+	    } else {
+		emit(0xFF);  modrm(6, a);
+	    }
+	} else if (instr.equals("popl") && ops.length == 1 && ! a.isImm) {
+	    if (a.reg >= 0) {
+		emit(0x58+a.reg);
+	    } else {
+		emit(0x8F);  modrm(0, a);
+	    }
+	} else if (instr.equals("movb") && ops.length == 2 && a.reg >= 0 && b.isMem) {
+	    emit(0x88);  modrm(a.reg, b);
+	} else if (instr.equals("movzbl") && ops.length == 2 && ! a.isImm) {
+	    emit(0x0F);  emit(0xB6);  modrm(reg(b), a);
+	} else if (instr.startsWith("set") && cond(instr.substring(3)) >= 0 &&
+		   ops.length == 1 && ! a.isImm) {
+	    emit(0x0F);  emit(0x90+cond(instr.substring(3)));  modrm(0, a);
+	} else if (instr.equals("int") && ops.length == 1 && a.isImm) {
+	    emit(0xCD);  emit(a.disp);
+	} else if (instr.equals("cdq") && ops.length == 0) {
+	    emit(0x99);
+	} else if (instr.equals("leave") && ops.length == 0) {
+	    emit(0xC9);
+	} else if (instr.equals("ret") && ops.length == 0) {
+	    emit(0xC3);
+	} else {
+	    Error.error("The assembler cannot encode \"" + instr + " " + arg + "\"!");
+	}
+
+	Item it = new Item();
+	it.code = code.toByteArray();  it.fixups = fixups;
+	text.add(it);
+    }
+
+    private static int cond(String c) {
+	for (int i = 0;  i < condNames.length;  ++i)
+	    if (condNames[i].equals(c)) return i;
+	return -1;
+    }
+
+    private static int aluOp(String instr) {
+	String[] names = {"addl", "orl", "adcl", "sbbl", "andl", "subl", "xorl", "cmpl"};
+	for (int i = 0;  i < names.length;  ++i)
+	    if (names[i].equals(instr)) return i;
+	return -1;
+    }
+
+    private static int unaryOp(String instr) {
+	return instr.equals("notl") ? 2 : instr.equals("negl") ? 3 :
+	    instr.equals("mull") ? 4 : instr.equals("divl") ? 6 :
+	    instr.equals("idivl") ? 7 : -1;
+    }
+
+    private static int shiftOp(String instr) {
+	return instr.equals("shll") || instr.equals("sall") ? 4 :
+	    instr.equals("shrl") ? 5 : instr.equals("sarl") ? 7 : -1;
+    }
+
+    private static boolean isImm8(Operand a) {
+	return a.sym == null && a.disp >= -128 && a.disp <= 127;
+    }
+
+    private static boolean isAbsolute(Operand a) {
+	return a.isMem && a.base < 0 && a.index < 0;
+    }
+
+    private int reg(Operand a) {
+	if (a.reg < 0) Error.error("The assembler expected a register!");
+	return a.reg;
+    }
+
+    private void emit(int b) {
+	code.write(b & 0xFF);
+    }
+
+    private void emit32(int v) {
+	emit(v);  emit(v>>8);  emit(v>>16);  emit(v>>24);
+    }
+
+    /*
+     * A 32-bit immediate or displacement (with a relocation if it
+     * involves a symbol).
+     */
+    private void imm32(Operand a) {
+	if (a.sym != null) {
+	    if (fixups == null) fixups = new ArrayList<Fixup>(1);
+	    fixups.add(new Fixup(code.size(), a.sym, false));
+	}
+	emit32(a.disp);
+    }
+
+    /*
+     * The ModR/M byte (plus any SIB byte and displacement) for the
+     * register or memory operand m; regField is the other register
+     * or an opcode extension.
+     */
+    private void modrm(int regField, Operand m) {
+	if (m.isImm) Error.error("The assembler did not expect an immediate!");
+	if (m.reg >= 0) {
+	    emit(0xC0 | regField<<3 | m.reg);  return;
+	}
+	if (m.base < 0) {
+	    // An absolute address (possibly indexed):
+	    if (m.index < 0) {
+		emit(0x05 | regField<<3);
+	    } else {
+		emit(0x04 | regField<<3);  emit(scaleBits(m.scale)<<6 | m.index<<3 | 5);
+	    }
+	    imm32(m);  return;
+	}
+
+	int mod;
+	if (m.sym != null) mod = 2;
+	else if (m.disp == 0 && m.base != 5) mod = 0;  // (%ebp) needs a displacement
+	else if (m.disp >= -128 && m.disp <= 127) mod = 1;
+	else mod = 2;
+	if (m.index < 0 && m.base != 4) {
+	    emit(mod<<6 | regField<<3 | m.base);
+	} else {
+	    // %esp as base (or an index) requires a SIB byte:
+	    emit(mod<<6 | regField<<3 | 4);
+	    emit(scaleBits(m.scale)<<6 | (m.index < 0 ? 4 : m.index)<<3 | m.base);
+	}
+	if (mod == 1) emit(m.disp);
+	else if (mod == 2) imm32(m);
+    }
+
+    private static int scaleBits(int scale) {
+	switch (scale) {
+	case 1: return 0;
+	case 2: return 1;
+	case 4: return 2;
+	case 8: return 3;
+	}
+	Error.error("Illegal scale factor " + scale + "!");
+	return 0;
+    }
+
+
+    private Operand[] parseOperands(String arg) {
+	ArrayList<Operand> ops = new ArrayList<Operand>();
+	int depth = 0, start = 0;
+	for (int i = 0;  i <= arg.length();  ++i) {
+	    char c = (i < arg.length() ? arg.charAt(i) : ',');
+	    if (c == '(') ++depth;
+	    else if (c == ')') --depth;
+	    else if (c == ',' && depth == 0) {
+		String op = arg.substring(start, i).trim();
+		if (op.length() > 0) ops.add(parseOperand(op));
+		start = i+1;
+	    }
+	}
+	return ops.toArray(new Operand[0]);
+    }
+
+    private Operand parseOperand(String s) {
+	Operand a = new Operand();
+	if (s.startsWith("%")) {
+	    a.reg = register(s);
+	} else if (s.startsWith("$")) {
+	    a.isImm = true;  parseDisp(a, s.substring(1));
+	} else {
+	    a.isMem = true;
+	    int paren = s.indexOf('(');
+	    if (paren < 0) {
+		parseDisp(a, s);
+	    } else {
+		parseDisp(a, s.substring(0, paren));
+		String[] parts = s.substring(paren+1, s.length()-1).split(",");
+		if (parts[0].trim().length() > 0) a.base = register(parts[0].trim());
+		if (parts.length > 1) a.index = register(parts[1].trim());
+		if (parts.length > 2) a.scale = Integer.parseInt(parts[2].trim());
+	    }
+	}
+	return a;
+    }
+
+    private int register(String s) {
+	if (s.equals("%al")) return 0;  // Only used as a byte operand
+	for (int i = 0;  i < regNames.length;  ++i)
+	    if (regNames[i].equals(s)) return i;
+	Error.error("Unknown register " + s + "!");
+	return -1;
+    }
+
+    /*
+     * A displacement or immediate: a number, a symbol or symbol+number.
+     */
+    private void parseDisp(Operand a, String s) {
+	if (s.length() == 0) return;
+	char c = s.charAt(0);
+	if (c == '-' || Character.isDigit(c)) {
+	    a.disp = Integer.parseInt(s);  return;
+	}
+	int split = Math.max(s.lastIndexOf('+'), s.lastIndexOf('-'));
+	if (split > 0) {
+	    a.disp = Integer.parseInt(s.substring(split + (s.charAt(split)=='+' ? 1 : 0)));
+	    s = s.substring(0, split);
+	}
+	a.sym = symbol(s);
+    }
+
+
+    /*
+     * Assign offsets to the text items. All jumps start out short, and
+     * those whose target turns out to be out of reach are made long
+     * until nothing changes. (Jumps only ever grow, so this terminates.)
+     */
+    private int layout() {
+	int pc;
+	boolean changed;
+	do {
+	    pc = 0;  changed = false;
+	    for (Item it: text) {
+		it.offset = pc;
+		if (it.code != null) {
+		    it.size = it.code.length;
+		} else if (it.label != null) {
+		    it.label.value = pc;  it.size = 0;
+		} else if (it.target != null) {
+		    if (it.target.section != TEXT) it.isLong = true;
+		    it.size = (! it.isLong ? 2 : it.opcode >= 0 ? 6 : 5);
+		} else {
+		    int pad = -pc & (it.align-1);
+		    it.size = (pad <= it.maxSkip ? pad : 0);
+		}
+		pc += it.size;
+	    }
+	    for (Item it: text) {
+		if (it.target == null || it.isLong) continue;
+		int disp = it.target.value - (it.offset+it.size);
+		if (disp < -128 || disp > 127) {
+		    it.isLong = true;  changed = true;
+		}
+	    }
+	} while (changed);
+	return pc;
+    }
+
+    // Multi-byte NOPs for alignment padding:
+    private static final int[][] nops = {{},
+	{0x90}, {0x66,0x90}, {0x0F,0x1F,0x00}, {0x0F,0x1F,0x40,0x00},
+	{0x0F,0x1F,0x44,0x00,0x00}, {0x66,0x0F,0x1F,0x44,0x00,0x00},
+	{0x0F,0x1F,0x80,0x00,0x00,0x00,0x00},
+	{0x0F,0x1F,0x84,0x00,0x00,0x00,0x00,0x00}};
+
+    /*
+     * Write the object file.
+     */
+    public void writeObject(String fileName) {
+	int textSize = layout();
+
+	// The symbol table: section symbols and local labels first (except
+	// the .L labels, as GNU as does), then the global symbols:
+	ArrayList<Symbol> symtab = new ArrayList<Symbol>();
+	symtab.add(null);
+	Symbol textSym = new Symbol(""), bssSym = new Symbol("");
+	textSym.section = TEXT;  bssSym.section = BSS;
+	symtab.add(textSym);  symtab.add(bssSym);
+	for (Symbol s: symbols.values()) {
+	    if (s.section == UNDEF) s.global = true;
+	    if (! s.global && ! s.name.startsWith(".L")) symtab.add(s);
+	}
+	int firstGlobal = symtab.size();
+	for (Symbol s: symbols.values())
+	    if (s.global) symtab.add(s);
+	for (int i = 1;  i < symtab.size();  ++i) symtab.get(i).index = i;
+
+	// The code and its relocations:
+	byte[] textBytes = new byte[textSize];
+	ByteArrayOutputStream rel = new ByteArrayOutputStream();
+	for (Item it: text) {
+	    if (it.code != null) {
+		System.arraycopy(it.code, 0, textBytes, it.offset, it.size);
+		if (it.fixups != null)
+		    for (Fixup f: it.fixups)
+			relocate(textBytes, rel, it.offset+f.at, f, textSym, bssSym);
+	    } else if (it.target != null) {
+		int at = it.offset;
+		if (it.opcode == CALL) {
+		    textBytes[at++] = (byte)0xE8;
+		} else if (it.opcode == JMP) {
+		    textBytes[at++] = (byte)(it.isLong ? 0xE9 : 0xEB);
+		} else if (it.isLong) {
+		    textBytes[at++] = 0x0F;  textBytes[at++] = (byte)(0x80+it.opcode);
+		} else {
+		    textBytes[at++] = (byte)(0x70+it.opcode);
+		}
+		if (it.isLong) {
+		    relocate(textBytes, rel, at, new Fixup(0, it.target, true),
+			     textSym, bssSym);
+		} else {
+		    textBytes[at] = (byte)(it.target.value - (it.offset+it.size));
+		}
+	    } else if (it.align > 0) {
+		for (int at = it.offset, left = it.size;  left > 0; ) {
+		    int[] nop = nops[Math.min(left, nops.length-1)];
+		    for (int b: nop) textBytes[at++] = (byte)b;
+		    left -= nop.length;
+		}
+	    }
+	}
+
+	ByteArrayOutputStream strtab = new ByteArrayOutputStream(),
+	    syms = new ByteArrayOutputStream();
+	strtab.write(0);
+	put32(syms, 0);  put32(syms, 0);  put32(syms, 0);  put32(syms, 0);
+	for (int i = 1;  i < symtab.size();  ++i) {
+	    Symbol s = symtab.get(i);
+	    boolean isSection = (s == textSym || s == bssSym);
+	    put32(syms, isSection ? 0 : strtab.size());
+	    if (! isSection) addString(strtab, s.name);
+	    put32(syms, isSection ? 0 : s.value);
+	    put32(syms, 0);  // Size
+	    syms.write((s.global ? 1 : 0)<<4 | (isSection ? 3 : 0));
+	    syms.write(0);
+	    put16(syms, s.section);
+	}
+
+	ByteArrayOutputStream shstrtab = new ByteArrayOutputStream();
+	int[] nameOffset = new int[NUM_SECTIONS];
+	for (int i = 0;  i < NUM_SECTIONS;  ++i) {
+	    nameOffset[i] = shstrtab.size();  addString(shstrtab, sectionNames[i]);
+	}
+
+	// The file: ELF header, section contents and section headers.
+	byte[][] contents = new byte[NUM_SECTIONS][];
+	contents[TEXT] = textBytes;  contents[REL_TEXT] = rel.toByteArray();
+	contents[SYMTAB] = syms.toByteArray();  contents[STRTAB] = strtab.toByteArray();
+	contents[SHSTRTAB] = shstrtab.toByteArray();
+	ByteArrayOutputStream f = new ByteArrayOutputStream();
+	int[] offset = new int[NUM_SECTIONS];
+	f.write(new byte[64], 0, 64);  // Header (52 bytes) and padding
+	for (int i = 1;  i < NUM_SECTIONS;  ++i) {
+	    while (f.size() % 4 != 0) f.write(0);
+	    offset[i] = f.size();
+	    if (contents[i] != null) f.write(contents[i], 0, contents[i].length);
+	}
+	while (f.size() % 4 != 0) f.write(0);
+	int shoff = f.size();
+
+	put32(f, 0);  put32(f, 0);  put32(f, 0);  put32(f, 0);  put32(f, 0);
+	put32(f, 0);  put32(f, 0);  put32(f, 0);  put32(f, 0);  put32(f, 0);
+	// (name, type, flags, offset, size, link, info, alignment, entry size)
+	sectionHeader(f, nameOffset[TEXT],     1, 6, offset[TEXT],     textSize,  0, 0, 16, 0);
+	sectionHeader(f, nameOffset[REL_TEXT], 9, 0x40, offset[REL_TEXT],
+		      contents[REL_TEXT].length, SYMTAB, TEXT, 4, 8);
+	sectionHeader(f, nameOffset[BSS],      8, 3, offset[BSS],      bssSize,   0, 0, bssAlign, 0);
+	sectionHeader(f, nameOffset[NOTE],     1, 0, offset[NOTE],     0,         0, 0, 1, 0);
+	sectionHeader(f, nameOffset[SYMTAB],   2, 0, offset[SYMTAB],
+		      contents[SYMTAB].length, STRTAB, firstGlobal, 4, 16);
+	sectionHeader(f, nameOffset[STRTAB],   3, 0, offset[STRTAB],
+		      contents[STRTAB].length, 0, 0, 1, 0);
+	sectionHeader(f, nameOffset[SHSTRTAB], 3, 0, offset[SHSTRTAB],
+		      contents[SHSTRTAB].length, 0, 0, 1, 0);
+
+	byte[] file = f.toByteArray();
+	ByteArrayOutputStream h = new ByteArrayOutputStream();
+	h.write(0x7F);  h.write('E');  h.write('L');  h.write('F');
+	h.write(1);  h.write(1);  h.write(1);  // 32 bits, little-endian, version 1
+	h.write(new byte[9], 0, 9);
+	put16(h, 1);  put16(h, 3);  put32(h, 1);   // ET_REL, EM_386, EV_CURRENT
+	put32(h, 0);  put32(h, 0);  put32(h, shoff);  put32(h, 0);  // entry, phoff, shoff, flags
+	put16(h, 52);  put16(h, 0);  put16(h, 0);  // ehsize, phentsize, phnum
+	put16(h, 40);  put16(h, NUM_SECTIONS);  put16(h, SHSTRTAB);
+	System.arraycopy(h.toByteArray(), 0, file, 0, h.size());
+
+	try {
+	    FileOutputStream out = new FileOutputStream(fileName);
+	    out.write(file);  out.close();
+	} catch (IOException e) {
+	    Error.error("Cannot write object file " + fileName + "!");
+	}
+    }
+
+    /*
+     * Fill in the 32-bit field at textBytes[at] that refers to f.sym.
+     * Jumps and calls within .text are resolved directly; other
+     * references get a relocation (against the section symbol if
+     * f.sym is defined in this file).
+     */
+    private void relocate(byte[] textBytes, ByteArrayOutputStream rel, int at,
+			  Fixup f, Symbol textSym, Symbol bssSym) {
+	int value = (textBytes[at]&0xFF) | (textBytes[at+1]&0xFF)<<8 |
+	    (textBytes[at+2]&0xFF)<<16 | (textBytes[at+3]&0xFF)<<24;
+	Symbol relSym = f.sym;
+	if (f.pcRelative) {
+	    value = -4;
+	    if (f.sym.section == TEXT) {
+		value = f.sym.value - (at+4);  relSym = null;
+	    }
+	} else if (f.sym.section != UNDEF) {
+	    value += f.sym.value;
+	    relSym = (f.sym.section == TEXT ? textSym : bssSym);
+	}
+	for (int i = 0;  i < 4;  ++i) textBytes[at+i] = (byte)(value >> 8*i);
+	if (relSym != null) {
+	    put32(rel, at);
+	    put32(rel, relSym.index<<8 | (f.pcRelative ? R_386_PC32 : R_386_32));
+	}
+    }
+
+    private static void sectionHeader(ByteArrayOutputStream f, int name, int type,
+				      int flags, int offset, int size, int link,
+				      int info, int align, int entsize) {
+	put32(f, name);  put32(f, type);  put32(f, flags);  put32(f, 0);
+	put32(f, offset);  put32(f, size);  put32(f, link);  put32(f, info);
+	put32(f, align);  put32(f, entsize);
+    }
+
+    private static void addString(ByteArrayOutputStream s, String str) {
+	byte[] b = str.getBytes();
+	s.write(b, 0, b.length);  s.write(0);
+    }
+
+    private static void put16(ByteArrayOutputStream f, int v) {
+	f.write(v);  f.write(v>>8);
+    }
+
+    private static void put32(ByteArrayOutputStream f, int v) {
+	f.write(v);  f.write(v>>8);  f.write(v>>16);  f.write(v>>24);
+    }
+}
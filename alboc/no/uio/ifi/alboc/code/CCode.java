@@ -0,0 +1,145 @@
+package no.uio.ifi.alboc.code;
+
+/*
+ * module CCode
+ */
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.HashSet;
+import no.uio.ifi.alboc.alboc.AlboC;
+import no.uio.ifi.alboc.error.Error;
+import no.uio.ifi.alboc.types.*;
+
+/*
+ * Write the program as C99 (alboc -c99), to be compiled by gcc -O2
+ * instead of assembled. The C code is generated by Syntax; this module
+ * holds the file, the names and the C types. AlboC ints become C ints
+ * (with arithmetic that wraps around, as on the x86), and all pointers
+ * become char pointers, so that pointer arithmetic is done in bytes
+ * as in AlboC; they are cast to the element type when used.
+ */
+public class CCode {
+    public static boolean genC = false;
+
+    private static PrintWriter cFile = null;
+    private static int indent = 0, numTemps = 0, lineDone = 0;
+    private static final HashSet<String> keywords = new HashSet<String>(Arrays.asList(
+	"auto", "break", "case", "char", "const", "continue", "default",
+	"do", "double", "enum", "extern", "float", "goto", "inline", "long",
+	"register", "restrict", "short", "signed", "sizeof", "static",
+	"struct", "switch", "typedef", "union", "unsigned", "void",
+	"volatile"));
+
+    public static void init() {
+	String cFileName = AlboC.sourceBaseName + ".c";
+	try {
+	    cFile = new PrintWriter(new BufferedWriter(new FileWriter(cFileName)));
+	} catch (IOException e) {
+	    Error.error("Cannot create C file " + cFileName + "!");
+	}
+    }
+
+    public static void finish() {
+	if (cFile != null) cFile.close();
+    }
+
+    /*
+     * The helpers used by the generated code, and the declarations of
+     * the library functions (except those the program defines itself).
+     */
+    public static void genPreamble(HashSet<String> userFuncs) {
+	genLine("/* Generated by the AlboC compiler from " + AlboC.sourceName + ". */");
+	// (No headers are included, as their names could clash with the
+	// program's.)
+	genLine("typedef __INTPTR_TYPE__ alboc_intptr;");
+	genLine("");
+	String[][] library = {
+	    {"putchar", "int putchar(int c);"}, {"getchar", "int getchar(void);"},
+	    {"putint", "int putint(int n);"}, {"getint", "int getint(void);"},
+	    {"exit", "void exit(int status);"}};
+	for (String[] f: library)
+	    if (! userFuncs.contains(f[0])) genLine(f[1]);
+	genLine("");
+	genLine("/* AlboC ints wrap around on overflow: */");
+	genLine("static inline int alboc_add(int a, int b) { return (int)((unsigned)a + (unsigned)b); }");
+	genLine("static inline int alboc_sub(int a, int b) { return (int)((unsigned)a - (unsigned)b); }");
+	genLine("static inline int alboc_mul(int a, int b) { return (int)((unsigned)a * (unsigned)b); }");
+	genLine("static inline int alboc_neg(int a) { return (int)(0u - (unsigned)a); }");
+	if (! userFuncs.contains("exit"))
+	    genLine("static inline int alboc_exit(int status) { exit(status); return 0; }");
+	genLine("");
+    }
+
+    public static void genLine(String line) {
+	if (line.length() > 0)
+	    for (int i = 0;  i < indent;  ++i) cFile.print("    ");
+	cFile.println(line);
+    }
+
+    /*
+     * With Code.debugInfo, the C code is marked with the lines of the
+     * AlboC program it comes from (by #line).
+     */
+    public static void setLine(int line) {
+	if (! Code.debugInfo || line <= 0 || line == lineDone) return;
+	genLine("#line " + line + " \"" + AlboC.sourceName + "\"");
+	lineDone = line;
+    }
+
+    public static void indent() {
+	++indent;
+    }
+
+    public static void outdent() {
+	--indent;
+    }
+
+    /*
+     * The C name of an AlboC name: names which are C keywords get an
+     * underscore added, and the optimizer's temporaries ($t1, ...)
+     * are renamed.
+     */
+    public static String name(String n) {
+	if (n.startsWith("$")) return "alboc_" + n.substring(1);
+	return keywords.contains(n) ? n + "_" : n;
+    }
+
+    /*
+     * Declare a new temporary holding value (which is a pointer if
+     * isPointer is set), and return its name. Temporaries are used to
+     * keep AlboC's order of evaluation in expressions with calls.
+     */
+    public static String temp(boolean isPointer, String value) {
+	String t = "alboc_v" + (++numTemps);
+	genLine((isPointer ? "char *" : "int ") + t + " = " + value + ";");
+	return t;
+    }
+
+    public static boolean isPointer(Type t) {
+	return t instanceof PointerType || t instanceof ArrayType;
+    }
+
+    /*
+     * The cast of a char pointer to a pointer to the elements of type
+     * t (int or a pointer).
+     */
+    public static String pointerCast(Type elem) {
+	return elem != null && isPointer(elem) ? "(char **)" : "(int *)";
+    }
+
+    /*
+     * The declaration of a variable called name of type t (with
+     * numElems elements if it is an array).
+     */
+    public static String declaration(Type t, String name, int numElems) {
+	if (t instanceof ArrayType)
+	    return (isPointer(t.getElemType()) ? "char *" : "int ") + name +
+		"[" + numElems + "]";
+	return isPointer(t) ? "char *" + name : "int " + name;
+    }
+
+    public static String intConst(int v) {
+	return v == Integer.MIN_VALUE ? "(-2147483647-1)" : "" + v;
+    }
+}
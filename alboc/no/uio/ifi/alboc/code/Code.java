@@ -5,6 +5,7 @@ package no.uio.ifi.alboc.code;
  */
 
 import java.io.*;
+import java.util.ArrayList;
 import no.uio.ifi.alboc.alboc.AlboC;
 import no.uio.ifi.alboc.error.Error;
 
@@ -12,13 +13,80 @@ import no.uio.ifi.alboc.error.Error;
  * Code generation for the x86 processor.
  */
 public class Code {
+    public static int loopAlignMax = 10;  // Max padding before a loop head
+    public static boolean omitFramePointer = true;  // In leaf functions?
+    public static boolean preallocArgs = false;  // Outgoing argument area?
+    // Registers used for parameters in the internal calling convention.
+    // They are never used otherwise, so leaf functions may keep their
+    // parameters there.
+    public static final String[] paramRegs = {"%ebx", "%esi", "%edi"};
+    // Generate x86-64 code (see ir.Lowering64) rather than 32-bit code?
+    public static boolean x86_64 = false;
+    // Write an object file directly (see Assembler) instead of a .s file?
+    public static boolean writeObject = false;
+    // Pipe the code to the assembler (see AlboC) instead of writing a
+    // .s file? With keepAsmFile, the .s file is written as well.
+    public static boolean pipeToAssembler = false, keepAsmFile = false;
+    // Generate buffered I/O functions (see IoLibrary) instead of
+    // calling libalboc?
+    public static boolean bufferedIo = false;
+    // Generate line numbers (.loc) and call frame information (.cfi)
+    // for debuggers and profilers?
+    public static boolean debugInfo = false;
+    // Count the calls and cycles of each function (see Profiler)?
+    public static boolean profile = false;
+    // The argument registers of the System V x86-64 calling convention:
+    public static final String[] argRegs64 =
+	{"%rdi", "%rsi", "%rdx", "%rcx", "%r8", "%r9"};
+
     private static PrintWriter codeFile;
-    private static boolean generatingData = false;
+    private static Assembler assembler = null;
+    private static String section = ".text";  // The current section
+    private static String textSection = ".text";  // Where code goes
+    private static int coldLevel = 0;  // Nesting of startColdCode
+    private static final String coldSection = 
+	".section .text.unlikely,\"ax\",@progbits";
+    private static boolean frameless = false;  // No frame pointer?
+    private static int stackDepth = 0;   // Bytes pushed since the prologue
+    private static int frameBytes = 0;   // Size of the current frame
+    private static int argAreaBytes = 0; // Outgoing arguments at 0(%esp)
+    private static int savedRegsAt = -1; // Where paramRegs are saved (or -1)
+    private static int numInstrs = 0;    // Instructions generated so far
+    private static String funcName = ""; // The function being generated
+    private static int profIndex = 0;    // Its entry in the Profiler
+    // For debugInfo: the source line of the code being generated (0
+    // for none), and the line of the last .loc (-1 before the first):
+    private static int curLine = 0, locLine = -1;
+    // The canonical frame address (CFA) of the current function is
+    // cfaOffset(%esp) or relative to %ebp; it is saved while the frame
+    // is removed for a tail call:
+    private static boolean inFunction = false, cfaInEbp = false, cfaSaved = false;
+    private static int cfaOffset = 0, savedCfaOffset = 0;
 
     public static void init() {
 	String codeFileName;
 	
 	if (AlboC.sourceBaseName == null) return;
+	if (writeObject) {
+	    if (x86_64)
+		Error.error("Object files can only be written for 32-bit code!");
+	    assembler = new Assembler();
+	    codeFile = new PrintWriter(Writer.nullWriter());
+	    return;
+	}
+	if (CCode.genC) {
+	    // The C code is written by CCode instead:
+	    codeFile = new PrintWriter(Writer.nullWriter());
+	    CCode.init();
+	    return;
+	}
+	if (AlboC.runProgram) {
+	    // The Vm runs the program, so no code is written:
+	    codeFile = new PrintWriter(Writer.nullWriter());
+	    return;
+	}
+	// When piping, the pipe is opened by pipeTo:
+	if (pipeToAssembler && ! keepAsmFile) return;
 	codeFileName = AlboC.sourceBaseName + ".s";
 	try {
 	    codeFile = new PrintWriter(codeFileName);
@@ -28,9 +96,45 @@ public class Code {
     }
 
     public static void finish() {
+	CCode.finish();
+	if (codeFile == null) return;
+	if (x86_64 && ! AlboC.underscoredGlobals())
+	    // The stack need not be executable:
+	    codeFile.println("        .section .note.GNU-stack,\"\",@progbits");
 	codeFile.close();
     }
 
+    /*
+     * Send the code to the assembler through the pipe out (and to the
+     * .s file, if one is being written) while it is generated.
+     */
+    public static void pipeTo(OutputStream out) {
+	final Writer pipe = new OutputStreamWriter(out), file = codeFile;
+	if (file == null) {
+	    codeFile = new PrintWriter(new BufferedWriter(pipe));
+	    return;
+	}
+	codeFile = new PrintWriter(new BufferedWriter(new Writer() {
+		public void write(char[] buf, int off, int len) throws IOException {
+		    file.write(buf, off, len);  pipe.write(buf, off, len);
+		}
+		public void flush() throws IOException {
+		    file.flush();  pipe.flush();
+		}
+		public void close() throws IOException {
+		    file.close();  pipe.close();
+		}
+	    }));
+    }
+
+    /*
+     * Write the object file generated by the assembler (when
+     * writeObject is set).
+     */
+    public static void writeObjectFile(String fileName) {
+	assembler.writeObject(fileName);
+    }
+
 
     private static int numLabels = 0;
 
@@ -51,35 +155,510 @@ public class Code {
 
     public static void genInstr(String lab, String instr, 
 				String arg, String comment) {
-	if (generatingData) {
-	    codeFile.println("        .text");
-	    generatingData = false;
-	}
+	setSection(textSection);
 
+	if (frameless) arg = espRelative(arg);
+	trackStack(instr, arg);
+	if (instr.length() > 0 && ! instr.startsWith(".")) ++numInstrs;
+	if (assembler != null) {
+	    // No assembly code is written:
+	    if (lab.length() > 0) assembler.label(lab);
+	    if (instr.length() > 0) assembler.genInstr(instr, arg);
+	    return;
+	}
+	if (debugInfo && curLine != locLine && 
+	    instr.length() > 0 && ! instr.startsWith(".")) {
+	    if (locLine < 0)
+		genDirective(".file", "1 \"" + AlboC.sourceName + "\"");
+	    genDirective(".loc", "1 " + curLine);
+	    locLine = curLine;
+	}
 	printLabel(lab, (instr+arg+comment).equals(""));
 	codeFile.printf("%-7s %-23s ", instr, arg);
 	if (comment.length() > 0) {
 	    codeFile.print("# " + comment);
 	}
 	codeFile.println();
+	if (debugInfo && inFunction) trackFrame(instr, arg);
+    }
+
+    private static void genDirective(String dir, String arg) {
+	codeFile.printf("        %-7s %s\n", dir, arg);
+    }
+
+    /*
+     * The source line of the code generated next (if known; line 0
+     * means that it is not). Only used with debugInfo.
+     */
+    public static void setLine(int line) {
+	if (line > 0) curLine = line;
+    }
+
+    /*
+     * The code generated next does not come from the source (like the
+     * IoLibrary).
+     */
+    public static void setNoLine() {
+	curLine = 0;
+    }
+
+    /*
+     * Start and end the call frame information of a function (with
+     * debugInfo). In between, the changes to the frame are followed
+     * by trackFrame as the instructions are generated.
+     */
+    public static void genFuncStart() {
+	if (! debugInfo) return;
+	setSection(".text");
+	genDirective(".cfi_startproc", "");
+	inFunction = true;  cfaInEbp = cfaSaved = false;
+	cfaOffset = (x86_64 ? 8 : 4);  // The return address
+    }
+
+    public static void genFuncEnd() {
+	if (! debugInfo || ! inFunction) return;
+	genDirective(".cfi_endproc", "");
+	inFunction = false;
+    }
+
+    /*
+     * Describe how instr changes the CFA. The frame pointer is set up
+     * by pushing it and copying the stack pointer, and removed by
+     * leave (or popping it); after that comes either the final ret
+     * or a tail call, and in the latter case the rest of the function
+     * still has the frame.
+     */
+    private static void trackFrame(String instr, String arg) {
+	String sp = (x86_64 ? "%rsp" : "%esp"), fp = (x86_64 ? "%rbp" : "%ebp");
+	int w = (x86_64 ? 8 : 4);
+	if (instr.equals("pushl") || instr.equals("pushq")) {
+	    if (cfaInEbp) return;
+	    cfaOffset += w;
+	    genDirective(".cfi_adjust_cfa_offset", ""+w);
+	    if (arg.equals(fp)) genDirective(".cfi_offset", fp+","+(-cfaOffset));
+	} else if (arg.equals(sp+","+fp) && (instr.equals("movl") || instr.equals("movq"))) {
+	    genDirective(".cfi_def_cfa_register", fp);
+	    cfaInEbp = true;
+	} else if (cfaInEbp && (instr.equals("leave") || 
+				((instr.equals("popl") || instr.equals("popq")) && arg.equals(fp)))) {
+	    genDirective(".cfi_remember_state", "");
+	    savedCfaOffset = cfaOffset;  cfaSaved = true;
+	    cfaInEbp = false;  cfaOffset = w;
+	    genDirective(".cfi_def_cfa", sp+","+w);
+	    genDirective(".cfi_restore", fp);
+	} else if (instr.equals("popl") || instr.equals("popq")) {
+	    if (cfaInEbp) return;
+	    cfaOffset -= w;
+	    genDirective(".cfi_adjust_cfa_offset", ""+(-w));
+	} else if (arg.startsWith("$") && arg.endsWith(","+sp) && ! cfaInEbp &&
+		   (instr.startsWith("add") || instr.startsWith("sub"))) {
+	    int n = Integer.parseInt(arg.substring(1, arg.length()-5));
+	    if (instr.startsWith("add")) n = -n;
+	    cfaOffset += n;
+	    genDirective(".cfi_adjust_cfa_offset", ""+n);
+	} else if (cfaSaved && (instr.equals("ret") || instr.equals("jmp"))) {
+	    genDirective(".cfi_restore_state", "");
+	    cfaInEbp = true;  cfaOffset = savedCfaOffset;  cfaSaved = false;
+	}
+    }
+
+    /*
+     * The number of instructions (not counting directives) generated.
+     */
+    public static int instrCount() {
+	return numInstrs;
+    }
+
+    // What discardCode saved (the innermost last):
+    private static ArrayList<Object[]> savedStates = new ArrayList<Object[]>();
+
+    /*
+     * Throw away the code generated from now on, until the matching
+     * keepCode, so that code which is not used can be measured. (The
+     * calls may be nested.)
+     */
+    public static void discardCode() {
+	savedStates.add(new Object[] {codeFile, assembler, section,
+	    textSection, coldLevel, frameless, stackDepth, frameBytes,
+	    argAreaBytes, savedRegsAt, numInstrs, funcName, profIndex,
+	    curLine, locLine, inFunction, cfaInEbp, cfaSaved, cfaOffset,
+	    savedCfaOffset, numLabels});
+	codeFile = new PrintWriter(Writer.nullWriter());
+	assembler = null;
+    }
+
+    /*
+     * Go back to the state of the matching discardCode, and return the
+     * number of instructions thrown away since then.
+     */
+    public static int keepCode() {
+	Object[] st = savedStates.remove(savedStates.size()-1);
+	int n = numInstrs - (Integer)st[10], i = 0;
+	codeFile = (PrintWriter)st[i++];  assembler = (Assembler)st[i++];
+	section = (String)st[i++];  textSection = (String)st[i++];
+	coldLevel = (Integer)st[i++];  frameless = (Boolean)st[i++];
+	stackDepth = (Integer)st[i++];  frameBytes = (Integer)st[i++];
+	argAreaBytes = (Integer)st[i++];  savedRegsAt = (Integer)st[i++];
+	numInstrs = (Integer)st[i++];  funcName = (String)st[i++];
+	profIndex = (Integer)st[i++];  curLine = (Integer)st[i++];
+	locLine = (Integer)st[i++];  inFunction = (Boolean)st[i++];
+	cfaInEbp = (Boolean)st[i++];  cfaSaved = (Boolean)st[i++];
+	cfaOffset = (Integer)st[i++];  savedCfaOffset = (Integer)st[i++];
+	numLabels = (Integer)st[i++];
+	return n;
+    }
+
+    /*
+     * The memory operand nBytes beyond addr, which is either n(%ebp)
+     * or the name of a global.
+     */
+    public static String offsetAddress(String addr, int nBytes) {
+	if (nBytes == 0) return addr;
+	if (addr.endsWith("(%ebp)")) {
+	    String n = addr.substring(0, addr.length()-6);
+	    return (n.length() > 0 ? Integer.parseInt(n) : 0) + nBytes + "(%ebp)";
+	}
+	return addr + (nBytes > 0 ? "+" : "") + nBytes;
+    }
+
+    /*
+     * Rewrite an operand n(%ebp) to the same location relative to %esp
+     * (when there is no frame pointer, the return address is on top
+     * of the stack below whatever has been pushed since).
+     */
+    private static String espRelative(String arg) {
+	int ix = arg.indexOf("(%ebp)");
+	if (ix < 0) return arg;
+	int start = ix;
+	while (start > 0 && "-0123456789".indexOf(arg.charAt(start-1)) >= 0)
+	    --start;
+	int offset = (start < ix ? Integer.parseInt(arg.substring(start,ix)) : 0);
+	return arg.substring(0,start) + (offset-4+stackDepth) + "(%esp)" +
+	    arg.substring(ix+6);
+    }
+
+    private static void trackStack(String instr, String arg) {
+	if (instr.equals("pushl")) {
+	    stackDepth += 4;
+	} else if (instr.equals("popl")) {
+	    stackDepth -= 4;
+	} else if (arg.startsWith("$") && arg.endsWith(",%esp")) {
+	    int n = Integer.parseInt(arg.substring(1, arg.length()-5));
+	    if (instr.equals("addl")) stackDepth -= n;
+	    if (instr.equals("subl")) stackDepth += n;
+	}
+    }
+
+    /*
+     * Start a function with nBytes of local data and room for nSpills
+     * parameters passed in registers (see genRegParamSpill). The frame
+     * pointer is omitted if allowed (and the function neither calls
+     * anything nor has local data); otherwise the frame is set up
+     * without "enter", which is much slower than the equivalent simple
+     * instructions. If saveParamRegs is set, the function follows the
+     * standard calling convention but calls functions which do not,
+     * so it must restore the parameter registers before returning.
+     *
+     * With preallocArgs, room for nOutArgs arguments on the stack is
+     * reserved at the bottom of the frame (see canStoreArgs), and the
+     * frame is padded to keep %esp 16-byte aligned at calls.
+     *
+     * With profile, the call is counted and timed (see Profiler)
+     * before the frame is set up.
+     */
+    public static void genPrologue(String name, int nBytes, int nSpills,
+				   boolean saveParamRegs, int nOutArgs,
+				   boolean isLeaf) {
+	savedRegsAt = -1;  argAreaBytes = 0;  stackDepth = 0;
+	funcName = name;
+	genFuncStart();
+	if (profile) {
+	    genInstr(name, "", "", "");
+	    profIndex = Profiler.addFunction(name);
+	    Profiler.genEntry(profIndex);
+	    name = "";
+	}
+	if (omitFramePointer && isLeaf && nBytes == 0 && ! saveParamRegs) {
+	    genInstr(name, "", "", "No frame pointer");
+	    frameless = true;
+	    return;
+	}
+	genInstr(name, "pushl", "%ebp", "");
+	genInstr("", "movl", "%esp,%ebp", "");
+	frameBytes = nBytes + 4*nSpills;
+	if (saveParamRegs) {
+	    savedRegsAt = frameBytes;  frameBytes += 4*paramRegs.length;
+	}
+	if (preallocArgs && ! isLeaf) {
+	    argAreaBytes = 4*nOutArgs;
+	    frameBytes += argAreaBytes;
+	    // The return address and %ebp take 8 bytes:
+	    frameBytes += (8 - frameBytes%16 + 16) % 16;
+	}
+	if (frameBytes > 0)
+	    genInstr("", "subl", "$"+frameBytes+",%esp", "");
+	stackDepth = 0;
+	for (int k = 0;  k < paramRegs.length && savedRegsAt >= 0;  ++k)
+	    genInstr("", "movl", paramRegs[k]+","+(-savedRegsAt-4-4*k)+"(%ebp)", "");
     }
 
+    /*
+     * Store a parameter passed in register reg as spill number j (from
+     * 0) below the nBytes of local data, and return its address. If
+     * there is no frame, it is pushed (where the frame pointer would
+     * have been).
+     */
+    public static String genRegParamSpill(String reg, int j, int nBytes) {
+	if (frameless) {
+	    genInstr("", "pushl", reg, "");
+	    return (-4*j) + "(%ebp)";
+	}
+	String addr = regParamSpillAddress(j, nBytes);
+	genInstr("", "movl", reg+","+addr, "");
+	return addr;
+    }
+
+    public static String regParamSpillAddress(int j, int nBytes) {
+	return -(nBytes+4+4*j) + "(%ebp)";
+    }
+
+    /*
+     * May the nArgs stack arguments of a call be stored in the outgoing
+     * argument area (rather than pushed)? Not if anything is pushed
+     * at the moment (as part of an expression).
+     */
+    public static boolean canStoreArgs(int nArgs) {
+	return argAreaBytes >= 4*nArgs && stackDepth == 0 && ! frameless;
+    }
+
+    /*
+     * Store %eax (or another operand) as stack argument number k.
+     */
+    public static void genStoreArg(String src, int k) {
+	genInstr("", "movl", src+","+(k == 0 ? "" : ""+4*k)+"(%esp)", "");
+    }
+
+    /*
+     * End a function started by genPrologue. With bufferedIo, main
+     * writes any buffered output before it returns; with profile, it
+     * writes the profile.
+     */
+    public static void genEpilogue(String exitLabel, String comment) {
+	genInstr(exitLabel, "", "", "");
+	if (profile) {
+	    Profiler.genExit(profIndex);
+	    if (funcName.equals("main"))
+		genInstr("", "call", Profiler.reportName(), "Write the profile");
+	}
+	if (bufferedIo && funcName.equals("main"))
+	    genInstr("", "call", IoLibrary.flushName(), "Write the output");
+	for (int k = 0;  k < paramRegs.length && savedRegsAt >= 0;  ++k)
+	    genInstr("", "movl", (-savedRegsAt-4-4*k)+"(%ebp),"+paramRegs[k], "");
+	if (frameless) {
+	    if (stackDepth > 0)
+		genInstr("", "addl", "$"+stackDepth+",%esp", "");
+	    frameless = false;
+	} else if (frameBytes > 0) {
+	    genInstr("", "leave", "", "");
+	} else {
+	    genInstr("", "popl", "%ebp", "");
+	}
+	genInstr("", "ret", "", comment);
+	genFuncEnd();
+    }
+
+    /*
+     * Align a loop head on a 16-byte boundary, but only if that
+     * requires at most loopAlignMax bytes of padding.
+     */
+    public static void genLoopAlign() {
+	if (loopAlignMax > 0)
+	    genInstr("", ".p2align", "4,,"+loopAlignMax, "");
+    }
+
+    /*
+     * Define a variable of n elements of nBytes each. AlboC variables
+     * are always zero initialized, so they are put in .bss where they
+     * take no space in the object file (or declared with .comm on
+     * systems that do not use ELF). Arrays of 32 bytes or more are
+     * aligned on a 32-byte boundary.
+     */
     public static void genVar(String name, boolean global,
 			      int n, int nBytes, String comment) {
-	if (! generatingData) {
-	    codeFile.println("        .data");
-	    generatingData = true;
+	int size = n*nBytes;
+	if (assembler != null) {
+	    assembler.genVar(name, global, (size >= 32 ? 32 : 4), size);
+	    return;
 	}
+	if (AlboC.underscoredGlobals()) {
+	    codeFile.printf("        %-7s %-23s ", ".comm", name+","+size);
+	} else {
+	    setSection(".bss");
 
-	if (global)
-	    codeFile.println("        .globl  " + name);
+	    if (global)
+		codeFile.println("        .globl  " + name);
+	    codeFile.println("        .p2align " + (size >= 32 ? 5 : 2));
 
-	printLabel(name, false);
-	codeFile.printf(".fill   %-24s", n+","+nBytes+",0");
+	    printLabel(name, false);
+	    codeFile.printf(".skip   %-24s", size);
+	}
 
 	if (comment.length() > 0) {
 	    codeFile.print("# " + comment);
 	}
 	codeFile.println();
     }
+
+    /*
+     * May code be moved out of line, to a section of its own? Not
+     * with the Assembler (which has only one), and not with debugInfo
+     * (as a function's call frame information must be contiguous).
+     */
+    public static boolean canMoveCode() {
+	return assembler == null && ! debugInfo && ! AlboC.underscoredGlobals();
+    }
+
+    /*
+     * Put the code generated from now on in .text.unlikely (if
+     * canMoveCode), away from the code which is run often, until
+     * the matching endColdCode. Cold code may be nested (like a cold
+     * block in a cold function).
+     */
+    public static void startColdCode() {
+	++coldLevel;
+	if (canMoveCode()) textSection = coldSection;
+    }
+
+    public static void endColdCode() {
+	if (--coldLevel == 0) textSection = ".text";
+    }
+
+    /*
+     * Define initialized read-only data (like .ascii or .long arg),
+     * labeled lab if that is not empty.
+     */
+    public static void genConstData(String lab, String dir, String arg) {
+	setSection(".section .rodata");
+	printLabel(lab, false);
+	codeFile.printf("%-7s %s\n", dir, arg);
+    }
+
+    private static void setSection(String s) {
+	if (section.equals(s)) return;
+	codeFile.println("        " + s);
+	section = s;
+    }
+
+    /*
+     * Strength reduction: multiply %eax by the constant c using
+     * shifts, leal and additions where that is cheaper than imull.
+     * %ecx may be destroyed.
+     */
+    public static void genMulConst(int c) {
+	if (c == 0) {
+	    genInstr("", "movl", "$0,%eax", "* 0");
+	} else if (c == 1) {
+	    // Nothing to do.
+	} else if (c == -1) {
+	    genInstr("", "negl", "%eax", "* -1");
+	} else if (c == Integer.MIN_VALUE) {
+	    genInstr("", "shll", "$31,%eax", "* "+c);
+	} else if (! genMulPosConst(Math.abs(c))) {
+	    genInstr("", "imull", "$"+c+",%eax,%eax", "* "+c);
+	} else if (c < 0) {
+	    genInstr("", "negl", "%eax", "");
+	}
+    }
+
+    private static boolean genMulPosConst(int c) {
+	int shift = Integer.numberOfTrailingZeros(c), odd = c >>> shift;
+	String comment = "* "+c;
+
+	if (odd==3 || odd==5 || odd==9) {
+	    genInstr("", "leal", "(%eax,%eax,"+(odd-1)+"),%eax", comment);
+	    comment = "";
+	} else if (odd != 1 && Integer.bitCount(odd+1) == 1) {
+	    // odd = 2^k - 1
+	    genInstr("", "movl", "%eax,%ecx", comment);
+	    genInstr("", "shll", "$"+Integer.numberOfTrailingZeros(odd+1)+",%eax", "");
+	    genInstr("", "subl", "%ecx,%eax", "");
+	    comment = "";
+	} else if (odd != 1 && Integer.bitCount(odd-1) == 1) {
+	    // odd = 2^k + 1
+	    genInstr("", "movl", "%eax,%ecx", comment);
+	    genInstr("", "shll", "$"+Integer.numberOfTrailingZeros(odd-1)+",%eax", "");
+	    genInstr("", "addl", "%ecx,%eax", "");
+	    comment = "";
+	} else if (odd != 1) {
+	    return false;
+	}
+	if (shift > 0)
+	    genInstr("", "shll", "$"+shift+",%eax", comment);
+	return true;
+    }
+
+    /*
+     * Strength reduction: divide %eax by the constant c (truncating
+     * towards zero, like idivl) without using idivl.
+     * %ecx and %edx may be destroyed.
+     */
+    public static void genDivConst(int c) {
+	if (c == 0 || c == Integer.MIN_VALUE) {
+	    genInstr("", "movl", "$"+c+",%ecx", "");
+	    genInstr("", "cdq", "", "");
+	    genInstr("", "idivl", "%ecx", "/ "+c);
+	    return;
+	}
+
+	int d = Math.abs(c);
+	if (d == 1) {
+	    // Nothing to do.
+	} else if (Integer.bitCount(d) == 1) {
+	    // Round negative dividends towards zero by adding d-1 first.
+	    int k = Integer.numberOfTrailingZeros(d);
+	    genInstr("", "cdq", "", "/ "+d);
+	    genInstr("", "shrl", "$"+(32-k)+",%edx", "");
+	    genInstr("", "addl", "%edx,%eax", "");
+	    genInstr("", "sarl", "$"+k+",%eax", "");
+	} else {
+	    int[] ms = divMagic(d);
+	    genInstr("", "movl", "%eax,%ecx", "/ "+d);
+	    genInstr("", "movl", "$"+ms[0]+",%eax", "");
+	    genInstr("", "imull", "%ecx", "");
+	    if (ms[0] < 0)
+		genInstr("", "addl", "%ecx,%edx", "");
+	    if (ms[1] > 0)
+		genInstr("", "sarl", "$"+ms[1]+",%edx", "");
+	    genInstr("", "movl", "%ecx,%eax", "");
+	    genInstr("", "shrl", "$31,%eax", "");
+	    genInstr("", "addl", "%edx,%eax", "");
+	}
+	if (c < 0)
+	    genInstr("", "negl", "%eax", "");
+    }
+
+    /*
+     * Compute the magic multiplier and shift count for signed
+     * division by d (2 <= d < 2^31), as described in
+     * H.S. Warren: "Hacker's Delight", chapter 10.
+     */
+    private static int[] divMagic(int d) {
+	final long two31 = 0x80000000L, mask = 0xFFFFFFFFL;
+	long ad = d, anc = two31 - 1 - two31%ad;
+	long q1 = two31/anc, r1 = two31 - q1*anc;
+	long q2 = two31/ad,  r2 = two31 - q2*ad;
+	long delta;
+	int p = 31;
+
+	do {
+	    ++p;
+	    q1 = (2*q1) & mask;  r1 = (2*r1) & mask;
+	    if (r1 >= anc) { q1 = (q1+1) & mask;  r1 = (r1-anc) & mask; }
+	    q2 = (2*q2) & mask;  r2 = (2*r2) & mask;
+	    if (r2 >= ad) { q2 = (q2+1) & mask;  r2 = (r2-ad) & mask; }
+	    delta = ad - r2;
+	} while (q1 < delta || (q1 == delta && r1 == 0));
+
+	return new int[]{ (int)(q2+1), p-32 };
+    }
 }
@@ -0,0 +1,278 @@
+package no.uio.ifi.alboc.code;
+
+/*
+ * module IoLibrary
+ */
+
+import java.util.HashSet;
+
+/*
+ * A buffered version of the library functions putchar, putint,
+ * getchar, getint and exit (alboc -bufio), generated into the program
+ * itself instead of being called in libalboc. Output is collected in
+ * a 64 KB buffer which is written when it is full, when input is read,
+ * when exit is called and when main returns (see Code.genEpilogue).
+ * Input is read 64 KB at a time. putint converts the number directly
+ * into the output buffer, dividing by 10 with a multiplication.
+ *
+ * The functions use Linux system calls, follow the C calling
+ * convention and are local to the program, so they do not clash with
+ * the C library. The code is generated with Code.genInstr, so it can
+ * be written by the Assembler as well.
+ */
+public class IoLibrary {
+    private static final int bufSize = 65536;
+    // putint needs room for a sign and 10 digits (and the buffer
+    // must not be left full):
+    private static final int maxIntChars = 11;
+
+    private static final String outBuf = "alboc$outbuf", outCount = "alboc$outn",
+	inBuf = "alboc$inbuf", inPos = "alboc$inpos", inEnd = "alboc$inend",
+	flush = "alboc$flush", fill = "alboc$fill", getChar = "alboc$getchar";
+
+    /*
+     * The name of the function which writes the output buffer. It
+     * preserves all registers.
+     */
+    public static String flushName() {
+	return flush;
+    }
+
+    /*
+     * Generate the library functions which the program does not
+     * define itself (in userFuncs), and the buffers.
+     */
+    public static void genCode(HashSet<String> userFuncs) {
+	Code.setNoLine();
+	genFlush();  genFill();
+	if (! userFuncs.contains("putchar")) genPutchar();
+	if (! userFuncs.contains("putint")) genPutint();
+	genGetchar(! userFuncs.contains("getchar"));
+	if (! userFuncs.contains("getint")) genGetint();
+	if (! userFuncs.contains("exit")) genExit();
+
+	Code.genVar(outBuf, false, 1, bufSize, "Output buffer");
+	Code.genVar(outCount, false, 1, 4, "Bytes in the output buffer");
+	Code.genVar(inBuf, false, 1, bufSize, "Input buffer");
+	Code.genVar(inPos, false, 1, 4, "Next byte to read from the input buffer");
+	Code.genVar(inEnd, false, 1, 4, "Bytes in the input buffer");
+    }
+
+    private static void genFlush() {
+	String loop = Code.getLocalLabel(), done = Code.getLocalLabel();
+	Code.genFuncStart();
+	Code.genInstr(flush, "pushl", "%eax", "Write the output buffer");
+	Code.genInstr("", "pushl", "%ebx", "");
+	Code.genInstr("", "pushl", "%ecx", "");
+	Code.genInstr("", "pushl", "%edx", "");
+	Code.genInstr("", "movl", "$"+outBuf+",%ecx", "");
+	Code.genInstr("", "movl", outCount+",%edx", "");
+	Code.genInstr(loop, "cmpl", "$0,%edx", "");
+	Code.genInstr("", "jle", done, "");
+	Code.genInstr("", "movl", "$4,%eax", "write(1, buf, n)");
+	Code.genInstr("", "movl", "$1,%ebx", "");
+	Code.genInstr("", "int", "$128", "");
+	Code.genInstr("", "cmpl", "$0,%eax", "");
+	Code.genInstr("", "jle", done, "Give up on errors");
+	Code.genInstr("", "addl", "%eax,%ecx", "");
+	Code.genInstr("", "subl", "%eax,%edx", "");
+	Code.genInstr("", "jmp", loop, "");
+	Code.genInstr(done, "movl", "$0,"+outCount, "");
+	Code.genInstr("", "popl", "%edx", "");
+	Code.genInstr("", "popl", "%ecx", "");
+	Code.genInstr("", "popl", "%ebx", "");
+	Code.genInstr("", "popl", "%eax", "");
+	Code.genInstr("", "ret", "", "End function " + flush);
+	Code.genFuncEnd();
+    }
+
+    /*
+     * Refill the input buffer, and return the number of bytes read
+     * (0 at the end of the input). Any output is written first, so a
+     * prompt is shown before the program waits for input.
+     */
+    private static void genFill() {
+	String ok = Code.getLocalLabel();
+	Code.genFuncStart();
+	Code.genInstr(fill, "call", flush, "Read the input buffer");
+	Code.genInstr("", "pushl", "%ebx", "");
+	Code.genInstr("", "movl", "$3,%eax", "read(0, buf, size)");
+	Code.genInstr("", "movl", "$0,%ebx", "");
+	Code.genInstr("", "movl", "$"+inBuf+",%ecx", "");
+	Code.genInstr("", "movl", "$"+bufSize+",%edx", "");
+	Code.genInstr("", "int", "$128", "");
+	Code.genInstr("", "popl", "%ebx", "");
+	Code.genInstr("", "cmpl", "$0,%eax", "");
+	Code.genInstr("", "jge", ok, "");
+	Code.genInstr("", "movl", "$0,%eax", "An error ends the input");
+	Code.genInstr(ok, "movl", "$0,"+inPos, "");
+	Code.genInstr("", "movl", "%eax,"+inEnd, "");
+	Code.genInstr("", "ret", "", "End function " + fill);
+	Code.genFuncEnd();
+    }
+
+    private static void genPutchar() {
+	String done = Code.getLocalLabel();
+	Code.genInstr("", ".p2align", "4", "");
+	Code.genFuncStart();
+	Code.genInstr("putchar", "movl", "4(%esp),%eax", "Start function putchar");
+	Code.genInstr("", "movl", outCount+",%edx", "");
+	Code.genInstr("", "movb", "%al,"+outBuf+"(%edx)", "");
+	Code.genInstr("", "addl", "$1,%edx", "");
+	Code.genInstr("", "movl", "%edx,"+outCount, "");
+	Code.genInstr("", "cmpl", "$"+bufSize+",%edx", "");
+	Code.genInstr("", "jl", done, "");
+	Code.genInstr("", "call", flush, "The buffer is full");
+	Code.genInstr(done, "ret", "", "End function putchar");
+	Code.genFuncEnd();
+    }
+
+    /*
+     * putint counts the digits first, and then writes them backwards
+     * into the buffer. It returns the number of characters written.
+     */
+    private static void genPutint() {
+	String room = Code.getLocalLabel(), positive = Code.getLocalLabel(),
+	    count = Code.getLocalLabel(), counted = Code.getLocalLabel(),
+	    digit = Code.getLocalLabel(), done = Code.getLocalLabel();
+	Code.genInstr("", ".p2align", "4", "");
+	Code.genFuncStart();
+	Code.genInstr("putint", "pushl", "%ebx", "Start function putint");
+	Code.genInstr("", "pushl", "%esi", "");
+	Code.genInstr("", "pushl", "%edi", "");
+	Code.genInstr("", "movl", outCount+",%edi", "");
+	Code.genInstr("", "cmpl", "$"+(bufSize-maxIntChars)+",%edi", "");
+	Code.genInstr("", "jl", room, "");
+	Code.genInstr("", "call", flush, "");
+	Code.genInstr("", "movl", "$0,%edi", "");
+	Code.genInstr(room, "movl", "16(%esp),%esi", "n");
+	Code.genInstr("", "cmpl", "$0,%esi", "");
+	Code.genInstr("", "jge", positive, "");
+	Code.genInstr("", "movl", "$45,%eax", "'-'");
+	Code.genInstr("", "movb", "%al,"+outBuf+"(%edi)", "");
+	Code.genInstr("", "addl", "$1,%edi", "");
+	Code.genInstr("", "negl", "%esi", "Unsigned from now on");
+	Code.genInstr(positive, "movl", "$1,%ecx", "Count the digits");
+	Code.genInstr("", "movl", "$10,%ebx", "");
+	Code.genInstr(count, "cmpl", "%ebx,%esi", "");
+	Code.genInstr("", "jb", counted, "");
+	Code.genInstr("", "addl", "$1,%ecx", "");
+	Code.genInstr("", "cmpl", "$10,%ecx", "");
+	Code.genInstr("", "je", counted, "");
+	Code.genInstr("", "leal", "(%ebx,%ebx,4),%ebx", "* 10");
+	Code.genInstr("", "addl", "%ebx,%ebx", "");
+	Code.genInstr("", "jmp", count, "");
+	Code.genInstr(counted, "addl", "%ecx,%edi", "");
+	Code.genInstr("", "movl", "%edi,"+outCount, "");
+	Code.genInstr(digit, "movl", "%esi,%eax", "Write the digits");
+	Code.genInstr("", "movl", "$-858993459,%edx", "(2^35+2)/10");
+	Code.genInstr("", "mull", "%edx", "");
+	Code.genInstr("", "shrl", "$3,%edx", "n / 10");
+	Code.genInstr("", "leal", "(%edx,%edx,4),%eax", "");
+	Code.genInstr("", "addl", "%eax,%eax", "");
+	Code.genInstr("", "subl", "%eax,%esi", "n % 10");
+	Code.genInstr("", "addl", "$48,%esi", "");
+	Code.genInstr("", "subl", "$1,%edi", "");
+	Code.genInstr("", "movl", "%esi,%eax", "");
+	Code.genInstr("", "movb", "%al,"+outBuf+"(%edi)", "");
+	Code.genInstr("", "movl", "%edx,%esi", "");
+	Code.genInstr("", "cmpl", "$0,%esi", "");
+	Code.genInstr("", "jne", digit, "");
+	Code.genInstr("", "movl", "%ecx,%eax", "");
+	Code.genInstr("", "cmpl", "$0,16(%esp)", "");
+	Code.genInstr("", "jge", done, "");
+	Code.genInstr("", "addl", "$1,%eax", "The sign");
+	Code.genInstr(done, "popl", "%edi", "");
+	Code.genInstr("", "popl", "%esi", "");
+	Code.genInstr("", "popl", "%ebx", "");
+	Code.genInstr("", "ret", "", "End function putint");
+	Code.genFuncEnd();
+    }
+
+    /*
+     * getchar returns the next byte, or -1 at the end of the input.
+     * getint uses it under its internal name, in case the program
+     * defines a getchar of its own.
+     */
+    private static void genGetchar(boolean isPublic) {
+	String next = Code.getLocalLabel(), eof = Code.getLocalLabel();
+	Code.genInstr("", ".p2align", "4", "");
+	Code.genFuncStart();
+	if (isPublic) Code.genInstr("getchar", "", "", "Start function getchar");
+	Code.genInstr(getChar, "movl", inPos+",%edx", "");
+	Code.genInstr("", "cmpl", inEnd+",%edx", "");
+	Code.genInstr("", "jl", next, "");
+	Code.genInstr("", "call", fill, "The buffer is empty");
+	Code.genInstr("", "cmpl", "$0,%eax", "");
+	Code.genInstr("", "jle", eof, "");
+	Code.genInstr("", "movl", "$0,%edx", "");
+	Code.genInstr(next, "movzbl", inBuf+"(%edx),%eax", "");
+	Code.genInstr("", "addl", "$1,%edx", "");
+	Code.genInstr("", "movl", "%edx,"+inPos, "");
+	Code.genInstr("", "ret", "", "");
+	Code.genInstr(eof, "movl", "$-1,%eax", "");
+	Code.genInstr("", "ret", "", "End function getchar");
+	Code.genFuncEnd();
+    }
+
+    /*
+     * getint reads an integer like scanf("%d") (and Vm.readInt); 0 is
+     * returned if there is none. The character after the number is
+     * left in the input buffer.
+     */
+    private static void genGetint() {
+	String skip = Code.getLocalLabel(), plus = Code.getLocalLabel(),
+	    sign = Code.getLocalLabel(), digits = Code.getLocalLabel(),
+	    digit = Code.getLocalLabel(), end = Code.getLocalLabel(),
+	    unread = Code.getLocalLabel(), done = Code.getLocalLabel();
+	Code.genInstr("", ".p2align", "4", "");
+	Code.genFuncStart();
+	Code.genInstr("getint", "pushl", "%ebx", "Start function getint");
+	Code.genInstr("", "pushl", "%esi", "");
+	Code.genInstr(skip, "call", getChar, "Skip white space");
+	Code.genInstr("", "cmpl", "$32,%eax", "");
+	Code.genInstr("", "je", skip, "");
+	Code.genInstr("", "cmpl", "$9,%eax", "");
+	Code.genInstr("", "je", skip, "");
+	Code.genInstr("", "cmpl", "$10,%eax", "");
+	Code.genInstr("", "je", skip, "");
+	Code.genInstr("", "cmpl", "$13,%eax", "");
+	Code.genInstr("", "je", skip, "");
+	Code.genInstr("", "movl", "$0,%esi", "Negative?");
+	Code.genInstr("", "cmpl", "$45,%eax", "'-'");
+	Code.genInstr("", "jne", plus, "");
+	Code.genInstr("", "movl", "$1,%esi", "");
+	Code.genInstr("", "jmp", sign, "");
+	Code.genInstr(plus, "cmpl", "$43,%eax", "'+'");
+	Code.genInstr("", "jne", digits, "");
+	Code.genInstr(sign, "call", getChar, "");
+	Code.genInstr(digits, "movl", "$0,%ebx", "");
+	Code.genInstr(digit, "subl", "$48,%eax", "");
+	Code.genInstr("", "cmpl", "$9,%eax", "");
+	Code.genInstr("", "ja", end, "Not a digit");
+	Code.genInstr("", "leal", "(%ebx,%ebx,4),%ebx", "");
+	Code.genInstr("", "leal", "(%eax,%ebx,2),%ebx", "v = 10*v + digit");
+	Code.genInstr("", "call", getChar, "");
+	Code.genInstr("", "jmp", digit, "");
+	Code.genInstr(end, "cmpl", "$-49,%eax", "End of input?");
+	Code.genInstr("", "je", unread, "");
+	Code.genInstr("", "subl", "$1,"+inPos, "Unread the character");
+	Code.genInstr(unread, "movl", "%ebx,%eax", "");
+	Code.genInstr("", "cmpl", "$0,%esi", "");
+	Code.genInstr("", "je", done, "");
+	Code.genInstr("", "negl", "%eax", "");
+	Code.genInstr(done, "popl", "%esi", "");
+	Code.genInstr("", "popl", "%ebx", "");
+	Code.genInstr("", "ret", "", "End function getint");
+	Code.genFuncEnd();
+    }
+
+    private static void genExit() {
+	Code.genFuncStart();
+	Code.genInstr("exit", "call", flush, "Start function exit");
+	Code.genInstr("", "movl", "4(%esp),%ebx", "");
+	Code.genInstr("", "movl", "$1,%eax", "exit(status)");
+	Code.genInstr("", "int", "$128", "");
+	Code.genFuncEnd();
+    }
+}
@@ -0,0 +1,465 @@
+package no.uio.ifi.alboc.code;
+
+/*
+ * module Profiler
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.io.*;
+import no.uio.ifi.alboc.alboc.AlboC;
+import no.uio.ifi.alboc.error.Error;
+
+/*
+ * Profiling instrumentation (alboc -profile). Every function counts its
+ * calls and the processor cycles (read by rdtsc) spent in it, including
+ * the functions it calls, in a table in .bss. Recursive calls are only
+ * timed at the outermost level, so the time is not counted twice.
+ * When main returns or exit is called, the program writes the table
+ * to <program>.prof, sorted with the most time-consuming function
+ * first.
+ *
+ * Each function has 32 bytes in the table: the number of calls and
+ * the cycles (64 bits each), the time stamp when the outermost call
+ * started (64 bits), the recursion depth, and a flag used while the
+ * report is written.
+ *
+ * The if-, while- and for-statements are counted too (16 bytes each):
+ * how often each was reached, and how often its branch was taken (the
+ * then-part run, or the loop body). They follow the functions in the
+ * report, in the order of the program, named function:line:kind.
+ * A later compilation with -useprofile=file reads the report back
+ * (see readProfile) to lay out the code and decide what to inline.
+ *
+ * Like the IoLibrary, the code uses Linux system calls and is only
+ * generated for 32-bit code.
+ */
+public class Profiler {
+    private static final int entrySize = 32, countAt = 0, cyclesAt = 8,
+	startAt = 16, depthAt = 24, doneAt = 28;
+    private static final int branchSize = 16, reachedAt = 0, takenAt = 8;
+    private static final int numWidth = 17;  // Columns of the numbers
+
+    private static final String table = "alboc$prof", info = "alboc$profinfo",
+	header = "alboc$profhead", fileName = "alboc$proffile",
+	line = "alboc$profline", report = "alboc$profreport",
+	number = "alboc$profnum", exit = "alboc$profexit",
+	brTable = "alboc$profbr", brInfo = "alboc$profbrinfo",
+	brHeader = "alboc$profbrhead";
+
+    private static ArrayList<String> funcs = new ArrayList<String>(),
+	branches = new ArrayList<String>();
+
+    // The profile read by readProfile: the calls of each function and
+    // the counts of each branch (in program order, for each name):
+    public static String profileFile = null;
+    private static HashMap<String,Long> calls = null;
+    private static HashMap<String,ArrayList<long[]>> branchCounts = null;
+    private static HashMap<String,Integer> branchesUsed = null;
+    private static long maxCalls = 0;
+
+    /*
+     * The entry of the function called name in the table.
+     */
+    public static int addFunction(String name) {
+	funcs.add(name);
+	return funcs.size()-1;
+    }
+
+    private static String field(int func, int offset) {
+	int at = func*entrySize + offset;
+	return table + (at > 0 ? "+" + at : "");
+    }
+
+    /*
+     * The entry of the branch of a statement (of kind "if", "while"
+     * or "for") at line in function func.
+     */
+    public static int addBranch(String func, int line, String kind) {
+	branches.add(func + ":" + line + ":" + kind);
+	return branches.size()-1;
+    }
+
+    /*
+     * Count that branch number k is reached (or, if taken is set,
+     * taken). Only the flags are changed.
+     */
+    public static void genBranchCount(int k, boolean taken) {
+	int at = k*branchSize + (taken ? takenAt : reachedAt);
+	String f = brTable + (at > 0 ? "+" + at : "");
+	Code.genInstr("", "addl", "$1,"+f, taken ? "Profile taken" : "Profile");
+	Code.genInstr("", "adcl", "$0,"+f+"+4", "");
+    }
+
+    /*
+     * Count a call of function number func, and start the timing if
+     * it is not active already. %eax and %edx are used.
+     */
+    public static void genEntry(int func) {
+	String timing = Code.getLocalLabel();
+	Code.genInstr("", "addl", "$1,"+field(func,countAt), "Profile");
+	Code.genInstr("", "adcl", "$0,"+field(func,countAt+4), "");
+	Code.genInstr("", "addl", "$1,"+field(func,depthAt), "");
+	Code.genInstr("", "cmpl", "$1,"+field(func,depthAt), "");
+	Code.genInstr("", "jne", timing, "");
+	Code.genInstr("", "rdtsc", "", "");
+	Code.genInstr("", "movl", "%eax,"+field(func,startAt), "");
+	Code.genInstr("", "movl", "%edx,"+field(func,startAt+4), "");
+	Code.genInstr(timing, "", "", "");
+    }
+
+    /*
+     * Stop the timing when the outermost call of function number func
+     * returns. %eax (the result) is kept; %ecx and %edx are used.
+     */
+    public static void genExit(int func) {
+	String timing = Code.getLocalLabel();
+	Code.genInstr("", "subl", "$1,"+field(func,depthAt), "Profile");
+	Code.genInstr("", "jne", timing, "");
+	Code.genInstr("", "movl", "%eax,%ecx", "");
+	Code.genInstr("", "rdtsc", "", "");
+	Code.genInstr("", "subl", field(func,startAt)+",%eax", "");
+	Code.genInstr("", "sbbl", field(func,startAt+4)+",%edx", "");
+	Code.genInstr("", "addl", "%eax,"+field(func,cyclesAt), "");
+	Code.genInstr("", "adcl", "%edx,"+field(func,cyclesAt+4), "");
+	Code.genInstr("", "movl", "%ecx,%eax", "");
+	Code.genInstr(timing, "", "", "");
+    }
+
+    /*
+     * The function which writes the report. It preserves all registers.
+     */
+    public static String reportName() {
+	return report;
+    }
+
+    /*
+     * The function called instead of the library function exit: it
+     * writes the report first.
+     */
+    public static String exitName() {
+	return exit;
+    }
+
+    /*
+     * Read the report written by a program compiled with -profile
+     * (from profileFile). Each line after a heading holds two numbers
+     * and a name; the heading says whether they are functions (with
+     * their calls first) or branches.
+     */
+    public static void readProfile() {
+	calls = new HashMap<String,Long>();
+	branchCounts = new HashMap<String,ArrayList<long[]>>();
+	branchesUsed = new HashMap<String,Integer>();
+	try {
+	    BufferedReader f = new BufferedReader(new FileReader(profileFile));
+	    boolean ofBranches = false;
+	    String l;
+	    while ((l = f.readLine()) != null) {
+		String[] w = l.trim().split(" +");
+		if (w.length != 3) continue;
+		if (w[2].equals("function") || w[2].equals("branch")) {
+		    ofBranches = w[2].equals("branch");  continue;
+		}
+		long a = Long.parseLong(w[0]), b = Long.parseLong(w[1]);
+		if (ofBranches) {
+		    if (! branchCounts.containsKey(w[2]))
+			branchCounts.put(w[2], new ArrayList<long[]>());
+		    branchCounts.get(w[2]).add(new long[]{a, b});
+		} else {
+		    calls.put(w[2], a);  maxCalls = Math.max(maxCalls, a);
+		}
+	    }
+	    f.close();
+	} catch (IOException e) {
+	    Error.error("Cannot read profile " + profileFile + "!");
+	} catch (NumberFormatException e) {
+	    Error.error(profileFile + " is not a profile!");
+	}
+    }
+
+    public static boolean haveProfile() {
+	return calls != null;
+    }
+
+    /*
+     * How often the function was called in the profile (0 if it was
+     * never called), or -1 if there is no profile.
+     */
+    public static long callCount(String func) {
+	if (calls == null) return -1;
+	Long n = calls.get(func);
+	return n != null ? n : 0;
+    }
+
+    /*
+     * Is the function called at least 1/8 as often as the most called
+     * one?
+     */
+    public static boolean isHot(String func) {
+	return callCount(func) > 0 && 8*callCount(func) >= maxCalls;
+    }
+
+    /*
+     * How often the next branch with this name in the program (see
+     * addBranch) was reached and taken in the profile, or null if it
+     * is not known.
+     */
+    public static long[] branchCounts(String func, int line, String kind) {
+	if (branchCounts == null) return null;
+	String name = func + ":" + line + ":" + kind;
+	ArrayList<long[]> counts = branchCounts.get(name);
+	int k = (branchesUsed.containsKey(name) ? branchesUsed.get(name) : 0);
+	branchesUsed.put(name, k+1);
+	return counts != null && k < counts.size() ? counts.get(k) : null;
+    }
+
+    /*
+     * Generate the table, the report function and the data it uses.
+     */
+    public static void genCode() {
+	int n = funcs.size(), nb = branches.size(), maxName = 0;
+	Code.setNoLine();
+	genReport(n, nb);  genNumber();
+
+	Code.genInstr(exit, "call", report, "Start function " + exit);
+	Code.genInstr("", "jmp", "exit", "");
+
+	String progName = new File(AlboC.sourceBaseName).getName() + ".prof";
+	Code.genConstData(fileName, ".asciz", "\"" + progName + "\"");
+	Code.genConstData(header, ".ascii", "\"" + escape(heading(false)) + "\"");
+	Code.genConstData(brHeader, ".ascii", "\"" + escape(heading(true)) + "\"");
+	maxName = Math.max(genNames(info, funcs), genNames(brInfo, branches));
+
+	Code.genVar(table, false, n, entrySize, "Profile");
+	Code.genVar(brTable, false, nb, branchSize, "Profile of the branches");
+	Code.genVar(line, false, 1, 2*numWidth+maxName+3, "A line of the report");
+    }
+
+    private static String heading(boolean ofBranches) {
+	if (ofBranches)
+	    return String.format("\n%"+numWidth+"s%"+numWidth+"s  %s\n",
+				 "reached", "taken", "branch");
+	return String.format("%"+numWidth+"s%"+numWidth+"s  %s\n",
+			     "calls", "cycles", "function");
+    }
+
+    private static String escape(String s) {
+	return s.replace("\n", "\\n");
+    }
+
+    /*
+     * The names of the entries, as a table labeled lab of address and
+     * length (8 bytes per entry). Returns the longest length.
+     */
+    private static int genNames(String lab, ArrayList<String> names) {
+	int max = 0;
+	for (int k = 0;  k < names.size();  ++k) {
+	    Code.genConstData(lab+"$"+k, ".ascii", "\"" + names.get(k) + "\"");
+	    max = Math.max(max, names.get(k).length());
+	}
+	Code.genConstData("", ".p2align", "2");
+	for (int k = 0;  k < names.size();  ++k)
+	    Code.genConstData(k == 0 ? lab : "", ".long",
+			      lab+"$"+k + "," + names.get(k).length());
+	return max;
+    }
+
+    private static void genReport(int n, int nb) {
+	String end = table + "+" + n*entrySize, brEnd = brTable + "+" + nb*branchSize;
+	String stop = Code.getLocalLabel(), stopNext = Code.getLocalLabel(),
+	    opened = Code.getLocalLabel(), find = Code.getLocalLabel(),
+	    scan = Code.getLocalLabel(), best = Code.getLocalLabel(),
+	    scanNext = Code.getLocalLabel(), print = Code.getLocalLabel(),
+	    branchPart = Code.getLocalLabel(),
+	    brNext = Code.getLocalLabel(), close = Code.getLocalLabel(),
+	    done = Code.getLocalLabel();
+	String[] saved = {"%eax", "%ebx", "%ecx", "%edx", "%esi", "%edi", "%ebp"};
+
+	Code.genFuncStart();
+	for (int i = 0;  i < saved.length;  ++i)
+	    Code.genInstr(i == 0 ? report : "", "pushl", saved[i],
+			  i == 0 ? "Write the profile" : "");
+
+	// Stop the timing of the functions which are still active:
+	Code.genInstr("", "rdtsc", "", "");
+	Code.genInstr("", "movl", "%eax,%ecx", "");
+	Code.genInstr("", "movl", "%edx,%esi", "");
+	Code.genInstr("", "movl", "$"+table+",%ebx", "");
+	Code.genInstr(stop, "cmpl", "$"+end+",%ebx", "");
+	Code.genInstr("", "jae", opened, "");
+	Code.genInstr("", "cmpl", "$0,"+depthAt+"(%ebx)", "");
+	Code.genInstr("", "je", stopNext, "");
+	Code.genInstr("", "movl", "%ecx,%eax", "");
+	Code.genInstr("", "movl", "%esi,%edx", "");
+	Code.genInstr("", "subl", startAt+"(%ebx),%eax", "");
+	Code.genInstr("", "sbbl", (startAt+4)+"(%ebx),%edx", "");
+	Code.genInstr("", "addl", "%eax,"+cyclesAt+"(%ebx)", "");
+	Code.genInstr("", "adcl", "%edx,"+(cyclesAt+4)+"(%ebx)", "");
+	Code.genInstr("", "movl", "$0,"+depthAt+"(%ebx)", "");
+	Code.genInstr(stopNext, "addl", "$"+entrySize+",%ebx", "");
+	Code.genInstr("", "jmp", stop, "");
+
+	// fd = open(name, O_WRONLY|O_CREAT|O_TRUNC, 0644):
+	Code.genInstr(opened, "movl", "$5,%eax", "");
+	Code.genInstr("", "movl", "$"+fileName+",%ebx", "");
+	Code.genInstr("", "movl", "$577,%ecx", "");
+	Code.genInstr("", "movl", "$420,%edx", "");
+	Code.genInstr("", "int", "$128", "");
+	Code.genInstr("", "cmpl", "$0,%eax", "");
+	Code.genInstr("", "jl", done, "No report if it cannot be opened");
+	Code.genInstr("", "movl", "%eax,%ebp", "");
+	Code.genInstr("", "movl", "$4,%eax", "");
+	Code.genInstr("", "movl", "%ebp,%ebx", "");
+	Code.genInstr("", "movl", "$"+header+",%ecx", "");
+	Code.genInstr("", "movl", "$"+heading(false).length()+",%edx", "");
+	Code.genInstr("", "int", "$128", "");
+
+	// Find the called function with the most cycles not written yet:
+	Code.genInstr(find, "movl", "$0,%esi", "");
+	Code.genInstr("", "movl", "$"+table+",%ebx", "");
+	Code.genInstr(scan, "cmpl", "$"+end+",%ebx", "");
+	Code.genInstr("", "jae", print, "");
+	Code.genInstr("", "cmpl", "$0,"+doneAt+"(%ebx)", "");
+	Code.genInstr("", "jne", scanNext, "");
+	Code.genInstr("", "movl", countAt+"(%ebx),%eax", "");
+	Code.genInstr("", "orl", (countAt+4)+"(%ebx),%eax", "");
+	Code.genInstr("", "je", scanNext, "");
+	Code.genInstr("", "cmpl", "$0,%esi", "");
+	Code.genInstr("", "je", best, "");
+	Code.genInstr("", "movl", (cyclesAt+4)+"(%ebx),%eax", "");
+	Code.genInstr("", "cmpl", (cyclesAt+4)+"(%esi),%eax", "");
+	Code.genInstr("", "jb", scanNext, "");
+	Code.genInstr("", "ja", best, "");
+	Code.genInstr("", "movl", cyclesAt+"(%ebx),%eax", "");
+	Code.genInstr("", "cmpl", cyclesAt+"(%esi),%eax", "");
+	Code.genInstr("", "jbe", scanNext, "");
+	Code.genInstr(best, "movl", "%ebx,%esi", "");
+	Code.genInstr(scanNext, "addl", "$"+entrySize+",%ebx", "");
+	Code.genInstr("", "jmp", scan, "");
+
+	// Write its line:
+	Code.genInstr(print, "cmpl", "$0,%esi", "");
+	Code.genInstr("", "je", branchPart, "");
+	Code.genInstr("", "movl", "$1,"+doneAt+"(%esi)", "");
+	genLine(countAt, cyclesAt, table, info, 2);
+	Code.genInstr("", "jmp", find, "");
+
+	// The branches follow in the order of the program:
+	Code.genInstr(branchPart, "", "", "");
+	if (nb > 0) {
+	    Code.genInstr("", "movl", "$4,%eax", "");
+	    Code.genInstr("", "movl", "%ebp,%ebx", "");
+	    Code.genInstr("", "movl", "$"+brHeader+",%ecx", "");
+	    Code.genInstr("", "movl", "$"+heading(true).length()+",%edx", "");
+	    Code.genInstr("", "int", "$128", "");
+	    Code.genInstr("", "movl", "$"+brTable+",%esi", "");
+	    Code.genInstr(brNext, "cmpl", "$"+brEnd+",%esi", "");
+	    Code.genInstr("", "jae", close, "");
+	    genLine(reachedAt, takenAt, brTable, brInfo, 1);
+	    Code.genInstr("", "addl", "$"+branchSize+",%esi", "");
+	    Code.genInstr("", "jmp", brNext, "");
+	}
+
+	Code.genInstr(close, "movl", "$6,%eax", "close(fd)");
+	Code.genInstr("", "movl", "%ebp,%ebx", "");
+	Code.genInstr("", "int", "$128", "");
+	for (int i = saved.length-1;  i >= 0;  --i)
+	    Code.genInstr(i == saved.length-1 ? done : "", "popl", saved[i], "");
+	Code.genInstr("", "ret", "", "End function " + report);
+	Code.genFuncEnd();
+    }
+
+    /*
+     * Write the line of the entry at (%esi) in tab: the two numbers at
+     * first and second, and the name (found in the table inf, where
+     * the entry's offset is shifted right by shift).
+     */
+    private static void genLine(int first, int second, String tab,
+				String inf, int shift) {
+	String copy = Code.getLocalLabel(), copied = Code.getLocalLabel();
+	Code.genInstr("", "movl", "$"+line+",%edi", "");
+	Code.genInstr("", "movl", first+"(%esi),%eax", "");
+	Code.genInstr("", "movl", (first+4)+"(%esi),%edx", "");
+	Code.genInstr("", "call", number, "");
+	Code.genInstr("", "movl", second+"(%esi),%eax", "");
+	Code.genInstr("", "movl", (second+4)+"(%esi),%edx", "");
+	Code.genInstr("", "call", number, "");
+	Code.genInstr("", "movl", "$32,%eax", "");
+	Code.genInstr("", "movb", "%al,(%edi)", "");
+	Code.genInstr("", "movb", "%al,1(%edi)", "");
+	Code.genInstr("", "addl", "$2,%edi", "");
+	Code.genInstr("", "movl", "%esi,%ebx", "The name");
+	Code.genInstr("", "subl", "$"+tab+",%ebx", "");
+	Code.genInstr("", "shrl", "$"+shift+",%ebx", "");
+	Code.genInstr("", "movl", inf+"(%ebx),%ecx", "");
+	Code.genInstr("", "movl", inf+"+4(%ebx),%edx", "");
+	Code.genInstr(copy, "cmpl", "$0,%edx", "");
+	Code.genInstr("", "je", copied, "");
+	Code.genInstr("", "movzbl", "(%ecx),%eax", "");
+	Code.genInstr("", "movb", "%al,(%edi)", "");
+	Code.genInstr("", "addl", "$1,%ecx", "");
+	Code.genInstr("", "addl", "$1,%edi", "");
+	Code.genInstr("", "subl", "$1,%edx", "");
+	Code.genInstr("", "jmp", copy, "");
+	Code.genInstr(copied, "movl", "$10,%eax", "");
+	Code.genInstr("", "movb", "%al,(%edi)", "");
+	Code.genInstr("", "addl", "$1,%edi", "");
+	Code.genInstr("", "movl", "%edi,%edx", "");
+	Code.genInstr("", "subl", "$"+line+",%edx", "");
+	Code.genInstr("", "movl", "$4,%eax", "write(fd, line, n)");
+	Code.genInstr("", "movl", "%ebp,%ebx", "");
+	Code.genInstr("", "movl", "$"+line+",%ecx", "");
+	Code.genInstr("", "int", "$128", "");
+    }
+
+    /*
+     * Write the unsigned 64-bit number in %edx:%eax at (%edi), right
+     * adjusted in numWidth columns, and step %edi past it. The digits
+     * are found by dividing by 10 (first the upper, then the lower 32
+     * bits) and pushed until they are written.
+     */
+    private static void genNumber() {
+	String digit = Code.getLocalLabel(), pad = Code.getLocalLabel(),
+	    write = Code.getLocalLabel();
+	String[] saved = {"%ebx", "%ecx", "%esi", "%ebp"};
+
+	Code.genFuncStart();
+	for (int i = 0;  i < saved.length;  ++i)
+	    Code.genInstr(i == 0 ? number : "", "pushl", saved[i], "");
+	Code.genInstr("", "movl", "%edx,%esi", "");
+	Code.genInstr("", "movl", "%eax,%ebx", "");
+	Code.genInstr("", "movl", "$10,%ecx", "");
+	Code.genInstr("", "movl", "$0,%ebp", "Number of digits");
+	Code.genInstr(digit, "movl", "$0,%edx", "");
+	Code.genInstr("", "movl", "%esi,%eax", "");
+	Code.genInstr("", "divl", "%ecx", "");
+	Code.genInstr("", "movl", "%eax,%esi", "");
+	Code.genInstr("", "movl", "%ebx,%eax", "");
+	Code.genInstr("", "divl", "%ecx", "");
+	Code.genInstr("", "movl", "%eax,%ebx", "");
+	Code.genInstr("", "addl", "$48,%edx", "");
+	Code.genInstr("", "pushl", "%edx", "");
+	Code.genInstr("", "addl", "$1,%ebp", "");
+	Code.genInstr("", "movl", "%esi,%eax", "");
+	Code.genInstr("", "orl", "%ebx,%eax", "");
+	Code.genInstr("", "jne", digit, "");
+	Code.genInstr("", "movl", "%ebp,%ecx", "");
+	Code.genInstr(pad, "cmpl", "$"+numWidth+",%ecx", "");
+	Code.genInstr("", "jge", write, "");
+	Code.genInstr("", "movl", "$32,%eax", "");
+	Code.genInstr("", "movb", "%al,(%edi)", "");
+	Code.genInstr("", "addl", "$1,%edi", "");
+	Code.genInstr("", "addl", "$1,%ecx", "");
+	Code.genInstr("", "jmp", pad, "");
+	Code.genInstr(write, "popl", "%eax", "");
+	Code.genInstr("", "movb", "%al,(%edi)", "");
+	Code.genInstr("", "addl", "$1,%edi", "");
+	Code.genInstr("", "subl", "$1,%ebp", "");
+	Code.genInstr("", "jne", write, "");
+	for (int i = saved.length-1;  i >= 0;  --i)
+	    Code.genInstr("", "popl", saved[i], "");
+	Code.genInstr("", "ret", "", "End function " + number);
+	Code.genFuncEnd();
+    }
+}
@@ -0,0 +1,11 @@
+package no.uio.ifi.alboc.ir;
+
+/*
+ * What the PassManager does with each function once the passes have
+ * been run over it, and where the global variables are defined.
+ */
+public interface Backend {
+    String name();
+    void lower(Function f);
+    void defineVar(String name, int n, int nBytes);
+}
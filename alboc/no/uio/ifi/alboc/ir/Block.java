@@ -0,0 +1,53 @@
+package no.uio.ifi.alboc.ir;
+
+import java.util.ArrayList;
+
+/*
+ * A basic block: a sequence of instructions (phis first) ending with
+ * a terminator.
+ */
+public class Block {
+    public int id;
+    public ArrayList<Instr> instrs = new ArrayList<Instr>();
+    public ArrayList<Block> preds = new ArrayList<Block>(),
+	succs = new ArrayList<Block>();
+
+    Block(int id) {
+	this.id = id;
+    }
+
+    public Instr terminator() {
+	if (instrs.isEmpty()) return null;
+	Instr last = instrs.get(instrs.size()-1);
+	return last.isTerminator() ? last : null;
+    }
+
+    public void add(Instr i) {
+	i.block = this;  instrs.add(i);
+    }
+
+    /*
+     * Insert a phi at the start of the block.
+     */
+    public void addPhi(Instr phi) {
+	int pos = 0;
+	while (pos < instrs.size() && instrs.get(pos).op == Instr.Op.PHI) ++pos;
+	phi.block = this;  instrs.add(pos, phi);
+    }
+
+    /*
+     * Remove the edge to succ, including the corresponding arguments
+     * of succ's phis.
+     */
+    public void removeSucc(Block succ) {
+	int predIx = succ.preds.indexOf(this);
+	succ.preds.remove(predIx);
+	for (Instr i: succ.instrs)
+	    if (i.op == Instr.Op.PHI) i.args.remove(predIx);
+	succs.remove(succ);
+    }
+
+    @Override public String toString() {
+	return "B" + id;
+    }
+}
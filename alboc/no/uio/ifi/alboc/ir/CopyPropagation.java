@@ -0,0 +1,47 @@
+package no.uio.ifi.alboc.ir;
+
+import java.util.ArrayList;
+
+/*
+ * Copy propagation: uses of copies are replaced by the copied value,
+ * and so are uses of phis whose arguments are all the same value
+ * (or the phi itself).
+ */
+public class CopyPropagation implements Pass {
+    public String name() {
+	return "copy propagation";
+    }
+
+    public void run(Function f) {
+	boolean changed = true;
+	while (changed) {
+	    changed = false;
+	    for (Block b: f.blocks) {
+		for (Instr i: new ArrayList<Instr>(b.instrs)) {
+		    Instr same = copiedValue(i);
+		    if (same == null) continue;
+		    f.replaceUses(i, same);
+		    b.instrs.remove(i);
+		    changed = true;
+		}
+	    }
+	}
+    }
+
+    /*
+     * If i is a copy, return the value it copies; otherwise null.
+     */
+    private Instr copiedValue(Instr i) {
+	if (i.op == Instr.Op.COPY)
+	    return i.args.get(0);
+	if (i.op != Instr.Op.PHI)
+	    return null;
+	Instr same = null;
+	for (Instr a: i.args) {
+	    if (a == i || a == same) continue;
+	    if (same != null) return null;
+	    same = a;
+	}
+	return same;
+    }
+}
@@ -0,0 +1,33 @@
+package no.uio.ifi.alboc.ir;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/*
+ * Dead code elimination: instructions are live if they have a side
+ * effect or if a live instruction uses their value; all others are
+ * removed, as are blocks which cannot be reached.
+ */
+public class DeadCodeElimination implements Pass {
+    public String name() {
+	return "dead code elimination";
+    }
+
+    public void run(Function f) {
+	f.removeUnreachableBlocks();
+
+	HashSet<Instr> live = new HashSet<Instr>();
+	ArrayList<Instr> work = new ArrayList<Instr>();
+	for (Block b: f.blocks)
+	    for (Instr i: b.instrs)
+		if (i.hasSideEffect() && live.add(i)) work.add(i);
+	while (! work.isEmpty()) {
+	    Instr i = work.remove(work.size()-1);
+	    for (Instr a: i.args)
+		if (live.add(a)) work.add(a);
+	}
+
+	for (Block b: f.blocks)
+	    b.instrs.retainAll(live);
+    }
+}
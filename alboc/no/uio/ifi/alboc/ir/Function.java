@@ -0,0 +1,125 @@
+package no.uio.ifi.alboc.ir;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/*
+ * A function in the intermediate representation: a control-flow
+ * graph of basic blocks in SSA form.
+ */
+public class Function {
+    public String name, exitLabel;
+    public int frameSize;   // Bytes used by variables kept in memory
+    public int numParams = 0;
+    // Where the parameters passed in registers are kept:
+    public ArrayList<String> regParams = new ArrayList<String>();
+    public boolean saveParamRegs = false;  // See Code.genPrologue
+    public Block entry;
+    public ArrayList<Block> blocks = new ArrayList<Block>();
+    private int numBlocks = 0, numInstrs = 0;
+
+    public Function(String name, int frameSize) {
+	this.name = name;  this.frameSize = frameSize;
+	exitLabel = ".exit$" + name;
+    }
+
+    public Block newBlock() {
+	Block b = new Block(numBlocks++);
+	blocks.add(b);
+	return b;
+    }
+
+    /*
+     * Give i a number (for the dump).
+     */
+    void number(Instr i) {
+	i.id = numInstrs++;
+    }
+
+    /*
+     * Find the users of every instruction.
+     */
+    public HashMap<Instr,ArrayList<Instr>> findUses() {
+	HashMap<Instr,ArrayList<Instr>> uses = new HashMap<Instr,ArrayList<Instr>>();
+	for (Block b: blocks) {
+	    for (Instr i: b.instrs) {
+		for (Instr a: i.args) {
+		    ArrayList<Instr> u = uses.get(a);
+		    if (u == null) uses.put(a, u = new ArrayList<Instr>());
+		    u.add(i);
+		}
+	    }
+	}
+	return uses;
+    }
+
+    /*
+     * Replace every use of from by to.
+     */
+    public void replaceUses(Instr from, Instr to) {
+	for (Block b: blocks)
+	    for (Instr i: b.instrs)
+		for (int k = 0;  k < i.args.size();  ++k)
+		    if (i.args.get(k) == from) i.args.set(k, to);
+    }
+
+    /*
+     * Remove the blocks which cannot be reached from the entry.
+     */
+    public void removeUnreachableBlocks() {
+	HashSet<Block> reached = new HashSet<Block>();
+	ArrayList<Block> work = new ArrayList<Block>();
+	reached.add(entry);  work.add(entry);
+	while (! work.isEmpty()) {
+	    Block b = work.remove(work.size()-1);
+	    for (Block s: b.succs)
+		if (reached.add(s)) work.add(s);
+	}
+	for (Block b: new ArrayList<Block>(blocks)) {
+	    if (reached.contains(b)) continue;
+	    for (Block s: new ArrayList<Block>(b.succs))
+		b.removeSucc(s);
+	    blocks.remove(b);
+	}
+    }
+
+    /*
+     * Make sure that a block with phis is never the target of a
+     * branch from a block with several successors, so that the phi
+     * copies may be placed at the end of the predecessor.
+     */
+    public void splitCriticalEdges() {
+	for (Block b: new ArrayList<Block>(blocks)) {
+	    if (b.succs.size() < 2) continue;
+	    for (int k = 0;  k < b.succs.size();  ++k) {
+		Block s = b.succs.get(k);
+		if (s.preds.size() < 2 || s.instrs.isEmpty() ||
+		    s.instrs.get(0).op != Instr.Op.PHI) continue;
+		Block n = newBlock();
+		Instr jump = new Instr(Instr.Op.JUMP);
+		number(jump);  n.add(jump);
+		b.succs.set(k, n);  n.preds.add(b);
+		s.preds.set(s.preds.indexOf(b), n);  n.succs.add(s);
+	    }
+	}
+    }
+
+    public int numInstrs() {
+	int n = 0;
+	for (Block b: blocks) n += b.instrs.size();
+	return n;
+    }
+
+    public String dump() {
+	StringBuilder s = new StringBuilder("function " + name + "\n");
+	for (Block b: blocks) {
+	    s.append(b + ":  ; preds");
+	    for (Block p: b.preds) s.append(" " + p);
+	    s.append("\n");
+	    for (Instr i: b.instrs)
+		s.append("    " + i.dump() + "\n");
+	}
+	return s.toString();
+    }
+}
@@ -0,0 +1,114 @@
+package no.uio.ifi.alboc.ir;
+
+import java.util.ArrayList;
+
+/*
+ * An instruction in the intermediate representation. An instruction
+ * which computes a value is also the SSA name of that value.
+ */
+public class Instr {
+    public enum Op {
+	CONST,     // The integer constant value
+	UNDEF,     // An uninitialized variable
+	PARAM,     // Parameter number value (counting from 0)
+	PHI,       // One argument for each predecessor of the block
+	COPY,      // args[0]
+	ADD, SUB, MUL, DIV, NEG,
+	CMP,       // args[0] cond args[1] as 0 or 1; cond is an x86 condition
+	ADDR,      // The address of the variable with assembler name name
+	INDEX,     // args[0] + value*args[1]
+	LOAD,      // *args[0]
+	STORE,     // *args[0] = args[1]
+	CALL,      // name(args...); the first value args in registers
+	TAILCALL,  // Jump to name(args...) in the current frame (as CALL)
+	JUMP,      // Jump to block.succs[0]
+	BRANCH,    // Jump to block.succs[0] if args[0] != 0, else succs[1]
+	RET        // Return args[0] (if any)
+    }
+
+    public Op op;
+    public int value;
+    // The size in bytes of the value loaded or stored by LOAD and STORE,
+    // or of the value of a PARAM or CALL (8 for pointers on x86-64):
+    public int size = 4;
+    public String name, cond;
+    public ArrayList<Instr> args = new ArrayList<Instr>();
+    public Block block;
+    public int id;
+    public int line = 0;  // The source line (0 if unknown)
+
+    public Instr(Op op, Instr... args) {
+	this.op = op;
+	for (Instr a: args) this.args.add(a);
+    }
+
+    public boolean isTerminator() {
+	return op==Op.JUMP || op==Op.BRANCH || op==Op.RET || op==Op.TAILCALL;
+    }
+
+    /*
+     * Must this instruction be kept even if its value is not used?
+     */
+    public boolean hasSideEffect() {
+	return op==Op.STORE || op==Op.CALL || isTerminator();
+    }
+
+    public boolean hasValue() {
+	return ! (op==Op.STORE || op==Op.JUMP || op==Op.BRANCH ||
+		  op==Op.RET || op==Op.TAILCALL);
+    }
+
+    /*
+     * Turn this instruction into a constant.
+     */
+    public void makeConst(int v) {
+	op = Op.CONST;  value = v;  args.clear();
+    }
+
+    public boolean isConst() {
+	return op == Op.CONST;
+    }
+
+    /*
+     * Compute the value of an arithmetic or comparison instruction
+     * from constant arguments a and b, or return null if that cannot
+     * be done (e.g., division by 0).
+     */
+    public Integer fold(int a, int b) {
+	switch (op) {
+	case ADD:  return a + b;
+	case SUB:  return a - b;
+	case MUL:  return a * b;
+	case DIV:
+	    if (b == 0 || (a == Integer.MIN_VALUE && b == -1)) return null;
+	    return a / b;
+	case NEG:  return -a;
+	case CMP:
+	    if (cond.equals("e"))  return a == b ? 1 : 0;
+	    if (cond.equals("ne")) return a != b ? 1 : 0;
+	    if (cond.equals("l"))  return a <  b ? 1 : 0;
+	    if (cond.equals("le")) return a <= b ? 1 : 0;
+	    if (cond.equals("g"))  return a >  b ? 1 : 0;
+	    if (cond.equals("ge")) return a >= b ? 1 : 0;
+	}
+	return null;
+    }
+
+    @Override public String toString() {
+	return "%" + id;
+    }
+
+    public String dump() {
+	String s = (hasValue() ? "%" + id + " = " : "") + op.toString().toLowerCase();
+	if (op == Op.CONST || op == Op.PARAM) s += " " + value;
+	if (cond != null) s += "." + cond;
+	if (name != null) s += " " + name;
+	for (int i = 0;  i < args.size();  ++i) {
+	    s += (i == 0 ? " " : ", ") + args.get(i);
+	    if (op == Op.PHI) s += " [" + block.preds.get(i) + "]";
+	}
+	if (op == Op.JUMP) s += " " + block.succs.get(0);
+	if (op == Op.BRANCH) s += " ? " + block.succs.get(0) + " : " + block.succs.get(1);
+	return s;
+    }
+}
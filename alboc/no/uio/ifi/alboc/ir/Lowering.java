@@ -0,0 +1,507 @@
+package no.uio.ifi.alboc.ir;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import no.uio.ifi.alboc.code.Code;
+
+/*
+ * Generate x86 code for a function in the intermediate representation.
+ * Every SSA value lives in its own slot in the frame (below the
+ * variables kept in memory), except constants and addresses (which are
+ * used as immediate operands), parameters (which stay where the caller
+ * put them), and values used only by the following instruction
+ * (which are passed in %eax). Phis are replaced by copies at the end
+ * of the predecessor blocks.
+ *
+ * The code is written for words of wordSize bytes, so that Lowering64
+ * only has to supply what differs on x86-64: the prologue, the argument
+ * registers, the sign extension of ints and %rip-relative addresses.
+ */
+public class Lowering {
+    Function f;
+    HashMap<Instr,String> slot = new HashMap<Instr,String>();
+    HashMap<Instr,ArrayList<Instr>> uses;
+    HashMap<Block,String> labels = new HashMap<Block,String>();
+    HashSet<Instr> wide = new HashSet<Instr>();  // 64-bit values (if any)
+    Block nextBlock;
+    final int wordSize;  // The size of pointers, slots and pushed values
+    private Instr inAcc = null;  // The value currently in %eax/%rax (if any)
+
+    public Lowering(Function f) {
+	this(f, 4);
+    }
+
+    protected Lowering(Function f, int wordSize) {
+	this.f = f;  this.wordSize = wordSize;
+    }
+
+    public void genCode() {
+	f.splitCriticalEdges();
+	uses = f.findUses();
+	int nRegs = f.regParams.size();
+	int frameSize = (f.frameSize+wordSize-1) & -wordSize;
+	boolean isLeaf = true;
+	int maxStackArgs = 0;
+	for (Block b: f.blocks) {
+	    labels.put(b, Code.getLocalLabel());
+	    for (Instr i: b.instrs) {
+		if (i.op == Instr.Op.CALL || i.op == Instr.Op.TAILCALL) {
+		    isLeaf = false;
+		    maxStackArgs = Math.max(maxStackArgs, i.args.size()-i.value);
+		}
+		if (i.op == Instr.Op.PARAM) {
+		    slot.put(i, i.value < nRegs ? frameAddress(f.regParams.get(i.value)) :
+			     (wordSize*(2+i.value-nRegs)) + "(" + reg("bp") + ")");
+		} else if (needsSlot(i)) {
+		    frameSize += wordSize;
+		    slot.put(i, "-" + frameSize + "(" + reg("bp") + ")");
+		}
+	    }
+	}
+
+	genPrologue(frameSize, maxStackArgs, isLeaf);
+	for (int k = 0;  k < f.blocks.size();  ++k) {
+	    Block b = f.blocks.get(k);
+	    nextBlock = (k+1 < f.blocks.size() ? f.blocks.get(k+1) : null);
+	    if (k > 0) Code.genInstr(labels.get(b), "", "", "");
+	    inAcc = null;
+	    for (int ix = 0;  ix < b.instrs.size();  ++ix) {
+		Code.setLine(b.instrs.get(ix).line);
+		genInstr(b.instrs.get(ix));
+	    }
+	}
+	genEpilogue();
+    }
+
+    /*
+     * Set up the frame and move the register parameters to where
+     * f.regParams wants them.
+     */
+    protected void genPrologue(int frameSize, int maxStackArgs, boolean isLeaf) {
+	Code.genPrologue(f.name, frameSize, 0, f.saveParamRegs, maxStackArgs, isLeaf);
+	for (int k = 0;  k < f.regParams.size();  ++k)
+	    if (! f.regParams.get(k).equals(Code.paramRegs[k]))
+		Code.genInstr("", "movl", Code.paramRegs[k]+","+f.regParams.get(k), "");
+    }
+
+    protected void genEpilogue() {
+	Code.genEpilogue(f.exitLabel, "End function " + f.name);
+    }
+
+    /*
+     * The registers the first arguments of a call are passed in.
+     */
+    protected String[] argRegs() {
+	return Code.paramRegs;
+    }
+
+    /*
+     * May the stack arguments of a call be stored in the preallocated
+     * argument area (see Code.preallocArgs) instead of being pushed?
+     */
+    protected boolean storesArgs(int nStack) {
+	return Code.preallocArgs && Code.canStoreArgs(nStack);
+    }
+
+    /*
+     * The number of extra words to reserve below the stack arguments of
+     * a call (to keep the stack aligned).
+     */
+    protected int argPadding(int nStack) {
+	return 0;
+    }
+
+    int numUses(Instr i) {
+	ArrayList<Instr> u = uses.get(i);
+	return u == null ? 0 : u.size();
+    }
+
+    Instr nextInstr(Instr i) {
+	ArrayList<Instr> instrs = i.block.instrs;
+	int ix = instrs.indexOf(i);
+	return ix+1 < instrs.size() ? instrs.get(ix+1) : null;
+    }
+
+    /*
+     * Is the value of i only used by the next instruction, so that it
+     * may be passed in %eax?
+     */
+    boolean isForwarded(Instr i) {
+	if (numUses(i) != 1 || i.op == Instr.Op.PHI) return false;
+	Instr u = uses.get(i).get(0);
+	if (u != nextInstr(i)) return false;
+	switch (u.op) {
+	case COPY:  case ADD:  case SUB:  case MUL:  case DIV:  case NEG:
+	case CMP:  case INDEX:  case LOAD:  case STORE:  case BRANCH:  case RET:
+	    return true;
+	}
+	return false;
+    }
+
+    /*
+     * Is i a comparison which is only used by the branch following it?
+     */
+    boolean isFusedCmp(Instr i) {
+	return i.op == Instr.Op.CMP && numUses(i) == 1 &&
+	    uses.get(i).get(0) == nextInstr(i) && nextInstr(i).op == Instr.Op.BRANCH;
+    }
+
+    boolean needsSlot(Instr i) {
+	switch (i.op) {
+	case CONST:  case UNDEF:  case ADDR:  case PARAM:
+	    return false;
+	}
+	return i.hasValue() && numUses(i) > 0 && ! isForwarded(i) && ! isFusedCmp(i);
+    }
+
+    private static boolean isFrameAddr(Instr v) {
+	return v.op == Instr.Op.ADDR && v.name.endsWith("(%ebp)");
+    }
+
+    /*
+     * The syntax tree names frame locations relative to %ebp.
+     */
+    String frameAddress(String name) {
+	return name.replace("(%ebp)", "(" + reg("bp") + ")");
+    }
+
+    /*
+     * The address of an ADDR value as a memory operand.
+     */
+    protected String address(Instr v) {
+	return v.name;
+    }
+
+    /*
+     * The address of an ADDR value as an immediate operand, or null if
+     * it must be computed into a register.
+     */
+    protected String immediateAddress(Instr v) {
+	return isFrameAddr(v) ? null : "$" + v.name;
+    }
+
+    /*
+     * The word-sized register named r ("ax", "bp" and so on).
+     */
+    String reg(String r) {
+	return (wordSize == 8 ? "%r" : "%e") + r;
+    }
+
+    /*
+     * The 32-bit part of a register.
+     */
+    static String low(String reg) {
+	return reg.startsWith("%r") && Character.isDigit(reg.charAt(2)) ?
+	    reg + "d" : "%e" + reg.substring(2);
+    }
+
+    /*
+     * The suffix of a 64-bit instruction (if w is set) or a 32-bit one.
+     */
+    static String suffix(boolean w) {
+	return w ? "q" : "l";
+    }
+
+    /*
+     * %rax or %eax.
+     */
+    static String acc(boolean w) {
+	return w ? "%rax" : "%eax";
+    }
+
+    /*
+     * The value as an operand of a 64-bit instruction (if w is set)
+     * or a 32-bit one, or null if it must be computed into a register.
+     */
+    protected String operand(Instr v, boolean w) {
+	switch (v.op) {
+	case CONST:  return "$" + v.value;
+	case UNDEF:  return "$0";
+	case ADDR:   return immediateAddress(v);
+	}
+	if (w && ! wide.contains(v)) return null;  // Must be sign-extended
+	if (v == inAcc) return acc(w);
+	return slot.get(v);
+    }
+
+    /*
+     * Load v into the word register reg (sign-extended if w is set),
+     * or into its lower half.
+     */
+    protected void load(Instr v, String reg, boolean w) {
+	String src = operand(v, w);
+	if (src == null && v.op != Instr.Op.ADDR) {
+	    Code.genInstr("", "movslq", (v == inAcc ? "%eax" : slot.get(v))+","+reg, "");
+	} else if (v == inAcc) {
+	    if (! reg.equals(reg("ax")))
+		Code.genInstr("", "mov"+suffix(w), acc(w)+","+(w ? reg : low(reg)), "");
+	} else if (src == null) {
+	    Code.genInstr("", "lea"+suffix(wordSize == 8), address(v)+","+reg, "");
+	} else {
+	    Code.genInstr("", "mov"+suffix(w), src+","+(w ? reg : low(reg)), "");
+	}
+	if (reg.equals(reg("ax"))) inAcc = v;
+    }
+
+    /*
+     * Load a into %eax/%rax, and return an operand for b (which may be
+     * %ecx/%rcx).
+     */
+    protected String loadPair(Instr a, Instr b, boolean w) {
+	String cx = (w ? reg("cx") : "%ecx");
+	if (b == inAcc && a != b) {
+	    load(b, reg("cx"), w);
+	    load(a, reg("ax"), w);
+	    return cx;
+	}
+	load(a, reg("ax"), w);
+	if (b == a) return acc(w);
+	String src = operand(b, w);
+	if (src == null) {
+	    load(b, reg("cx"), w);  src = cx;
+	}
+	return src;
+    }
+
+    /*
+     * Load a pointer into %edx/%rdx and the value b into %eax/%rax (as
+     * 64 bits if w is set).
+     */
+    protected void loadAddressAndValue(Instr a, Instr b, boolean w) {
+	if (a == inAcc && a != b) {
+	    load(a, reg("dx"), wordSize == 8);
+	    load(b, reg("ax"), w);
+	} else {
+	    load(b, reg("ax"), w);
+	    load(a, reg("dx"), wordSize == 8);
+	}
+    }
+
+    /*
+     * The value of i is now in %eax/%rax.
+     */
+    protected void result(Instr i) {
+	inAcc = i;
+	boolean w = wide.contains(i);
+	if (slot.containsKey(i))
+	    Code.genInstr("", "mov"+suffix(w), acc(w)+","+slot.get(i), "");
+    }
+
+    protected void genCompare(Instr cmp) {
+	Instr a = cmp.args.get(0), b = cmp.args.get(1);
+	boolean w = wide.contains(a) || wide.contains(b);
+	String src = loadPair(a, b, w);
+	Code.genInstr("", "cmp"+suffix(w), src+","+acc(w), "");
+    }
+
+    static String inverse(String cond) {
+	if (cond.equals("e"))  return "ne";
+	if (cond.equals("ne")) return "e";
+	if (cond.equals("l"))  return "ge";
+	if (cond.equals("ge")) return "l";
+	if (cond.equals("le")) return "g";
+	return "le";
+    }
+
+    protected void pushArg(Instr a) {
+	boolean w = (wordSize == 8);
+	String src = operand(a, w);
+	if (src == null) {
+	    load(a, reg("ax"), w);  src = reg("ax");
+	}
+	Code.genInstr("", "push"+suffix(w), src, "");
+    }
+
+    private void storeArg(Instr a, int k) {
+	String src = operand(a, false);
+	if (src == null || ! (src.startsWith("$") || src.startsWith("%"))) {
+	    load(a, "%eax", false);  src = "%eax";
+	}
+	Code.genStoreArg(src, k);
+    }
+
+    /*
+     * Copy the values of succ's phis coming from the current block.
+     */
+    protected void genPhiCopies(Block from, Block succ) {
+	int ix = succ.preds.indexOf(from);
+	ArrayList<Instr> phis = new ArrayList<Instr>();
+	for (Instr i: succ.instrs)
+	    if (i.op == Instr.Op.PHI && slot.containsKey(i)) phis.add(i);
+	if (phis.size() == 1) {
+	    Instr phi = phis.get(0);
+	    boolean w = wide.contains(phi);
+	    load(phi.args.get(ix), reg("ax"), w);
+	    Code.genInstr("", "mov"+suffix(w), acc(w)+","+slot.get(phi), "");
+	    return;
+	}
+	// Several phis are copied in parallel via the stack:
+	for (Instr phi: phis)
+	    pushArg(phi.args.get(ix));
+	for (int k = phis.size()-1;  k >= 0;  --k)
+	    Code.genInstr("", "pop"+suffix(wordSize == 8), slot.get(phis.get(k)), "");
+    }
+
+    void genJump(Block target) {
+	if (target != nextBlock)
+	    Code.genInstr("", "jmp", labels.get(target), "");
+    }
+
+    protected void genInstr(Instr i) {
+	Instr a = (i.args.size() > 0 ? i.args.get(0) : null),
+	    b = (i.args.size() > 1 ? i.args.get(1) : null);
+	boolean w = wide.contains(i), wp = (wordSize == 8);
+	String src;
+
+	switch (i.op) {
+	case CONST:  case UNDEF:  case ADDR:  case PARAM:  case PHI:
+	    break;
+
+	case COPY:
+	    load(a, reg("ax"), w);  result(i);
+	    break;
+
+	case ADD:  case SUB:  case MUL:
+	    if (a.isConst() && i.op != Instr.Op.SUB) {
+		Instr t = a;  a = b;  b = t;
+	    }
+	    if (b.isConst() && i.op == Instr.Op.MUL) {
+		load(a, reg("ax"), false);  Code.genMulConst(b.value);
+	    } else {
+		src = loadPair(a, b, w);
+		Code.genInstr("", (i.op == Instr.Op.ADD ? "add" :
+				   i.op == Instr.Op.SUB ? "sub" : "imul") + suffix(w),
+			      src+","+acc(w), "");
+	    }
+	    result(i);
+	    break;
+
+	case DIV:
+	    if (b.isConst()) {
+		load(a, reg("ax"), false);  Code.genDivConst(b.value);
+	    } else {
+		src = loadPair(a, b, false);
+		if (src.equals("%eax")) {
+		    Code.genInstr("", "movl", "%eax,%ecx", "");  src = "%ecx";
+		}
+		Code.genInstr("", "cdq", "", "");
+		Code.genInstr("", "idivl", src, "");
+	    }
+	    result(i);
+	    break;
+
+	case NEG:
+	    load(a, reg("ax"), false);
+	    Code.genInstr("", "negl", "%eax", "");
+	    result(i);
+	    break;
+
+	case CMP:
+	    if (isFusedCmp(i)) break;
+	    genCompare(i);
+	    Code.genInstr("", "set"+i.cond, "%al", "");
+	    Code.genInstr("", "movzbl", "%al,%eax", "");
+	    result(i);
+	    break;
+
+	case INDEX:
+	    if (b.isConst()) {
+		load(a, reg("ax"), wp);
+		if (b.value != 0)
+		    Code.genInstr("", "lea"+suffix(wp), (i.value*b.value)+"("+reg("ax")+"),"+reg("ax"), "");
+	    } else {
+		loadAddressAndValue(a, b, wp);
+		Code.genInstr("", "lea"+suffix(wp), "("+reg("dx")+","+reg("ax")+","+i.value+"),"+reg("ax"), "");
+	    }
+	    result(i);
+	    break;
+
+	case LOAD:
+	    if (a.op == Instr.Op.ADDR) {
+		Code.genInstr("", "mov"+suffix(w), address(a)+","+acc(w), "");
+	    } else {
+		load(a, reg("ax"), wp);
+		Code.genInstr("", "mov"+suffix(w), "("+reg("ax")+"),"+acc(w), "");
+	    }
+	    result(i);
+	    break;
+
+	case STORE:
+	    boolean ws = (i.size == 8);
+	    if (a.op == Instr.Op.ADDR) {
+		if (b.isConst()) {
+		    Code.genInstr("", "mov"+suffix(ws), "$"+b.value+","+address(a), "");
+		} else {
+		    load(b, reg("ax"), ws);
+		    Code.genInstr("", "mov"+suffix(ws), acc(ws)+","+address(a), "");
+		}
+		break;
+	    }
+	    loadAddressAndValue(a, b, ws);
+	    Code.genInstr("", "mov"+suffix(ws), acc(ws)+",("+reg("dx")+")", "");
+	    break;
+
+	case CALL:
+	case TAILCALL:
+	    // The first i.value arguments are passed in registers:
+	    int nStack = i.args.size() - i.value;
+	    int pad = (i.op == Instr.Op.CALL ? argPadding(nStack) : 0);
+	    if (pad > 0)
+		Code.genInstr("", "sub"+suffix(wp), "$"+wordSize*pad+","+reg("sp"), "");
+	    if (i.op == Instr.Op.CALL && storesArgs(nStack)) {
+		for (int k = i.args.size()-1;  k >= i.value;  --k)
+		    storeArg(i.args.get(k), k-i.value);
+		nStack = 0;
+	    } else {
+		for (int k = i.args.size()-1;  k >= i.value;  --k)
+		    pushArg(i.args.get(k));
+	    }
+	    for (int k = i.value-1;  k >= 0;  --k)
+		load(i.args.get(k), argRegs()[k], wp);
+	    if (i.op == Instr.Op.TAILCALL) {
+		for (int k = 0;  k < i.args.size()-i.value;  ++k)
+		    Code.genInstr("", "pop"+suffix(wp), (wordSize*(2+k))+"("+reg("bp")+")", "");
+		Code.genInstr("", "leave", "", "");
+		Code.genInstr("", "jmp", i.name, "Tail call " + i.name);
+		break;
+	    }
+	    Code.genInstr("", "call", i.name, "Call function " + i.name);
+	    if (nStack+pad > 0)
+		Code.genInstr("", "add"+suffix(wp), "$"+wordSize*(nStack+pad)+","+reg("sp"), "");
+	    inAcc = null;
+	    result(i);
+	    break;
+
+	case JUMP:
+	    genPhiCopies(i.block, i.block.succs.get(0));
+	    genJump(i.block.succs.get(0));
+	    break;
+
+	case BRANCH:
+	    String cond;
+	    if (isFusedCmp(a)) {
+		genCompare(a);  cond = a.cond;
+	    } else {
+		boolean wa = wide.contains(a);
+		load(a, reg("ax"), wa);
+		Code.genInstr("", "cmp"+suffix(wa), "$0,"+acc(wa), "");
+		cond = "ne";
+	    }
+	    Block ifTrue = i.block.succs.get(0), ifFalse = i.block.succs.get(1);
+	    if (ifTrue == nextBlock) {
+		Code.genInstr("", "j"+inverse(cond), labels.get(ifFalse), "");
+	    } else {
+		Code.genInstr("", "j"+cond, labels.get(ifTrue), "");
+		genJump(ifFalse);
+	    }
+	    break;
+
+	case RET:
+	    if (a != null) load(a, reg("ax"), wide.contains(a));
+	    if (nextBlock != null)
+		Code.genInstr("", "jmp", f.exitLabel, "");
+	    break;
+	}
+    }
+}
@@ -0,0 +1,98 @@
+package no.uio.ifi.alboc.ir;
+
+import no.uio.ifi.alboc.code.Code;
+
+/*
+ * Generate x86-64 code for a function in the intermediate
+ * representation, using the System V calling convention: the first
+ * six arguments are passed in %rdi, %rsi, %rdx, %rcx, %r8 and %r9, and
+ * the others are pushed. Values are kept as in Lowering (but in 8-byte
+ * slots, and in %rax rather than %eax). Pointers are 64-bit values,
+ * while ints are computed with 32-bit instructions and sign-extended
+ * where they are combined with pointers or passed as arguments.
+ */
+public class Lowering64 extends Lowering {
+    public Lowering64(Function f) {
+	super(f, 8);
+    }
+
+    @Override public void genCode() {
+	findWideValues();
+	super.genCode();
+    }
+
+    @Override protected void genPrologue(int frameSize, int maxStackArgs, boolean isLeaf) {
+	// Calls require %rsp to be a multiple of 16:
+	frameSize = (frameSize+15) & ~15;
+
+	Code.genFuncStart();
+	Code.genInstr(f.name, "pushq", "%rbp", "");
+	Code.genInstr("", "movq", "%rsp,%rbp", "");
+	if (frameSize > 0)
+	    Code.genInstr("", "subq", "$"+frameSize+",%rsp", "");
+	for (int k = 0;  k < f.regParams.size();  ++k)
+	    Code.genInstr("", "movq", Code.argRegs64[k]+","+
+			  frameAddress(f.regParams.get(k)), "");
+    }
+
+    @Override protected void genEpilogue() {
+	Code.genInstr(f.exitLabel, "", "", "");
+	Code.genInstr("", "leave", "", "");
+	Code.genInstr("", "ret", "", "End function " + f.name);
+	Code.genFuncEnd();
+    }
+
+    @Override protected String[] argRegs() {
+	return Code.argRegs64;
+    }
+
+    @Override protected boolean storesArgs(int nStack) {
+	return false;
+    }
+
+    @Override protected int argPadding(int nStack) {
+	return nStack % 2;
+    }
+
+    /*
+     * Addresses are 64 bits, so they cannot be immediate operands, and
+     * global ones are relative to %rip.
+     */
+    @Override protected String address(Instr v) {
+	return v.name.endsWith("(%ebp)") ? frameAddress(v.name) : v.name + "(%rip)";
+    }
+
+    @Override protected String immediateAddress(Instr v) {
+	return null;
+    }
+
+    /*
+     * Find the values which are pointers: addresses, loaded pointers,
+     * pointer parameters and results, and whatever is computed from
+     * them by additions and copies.
+     */
+    private void findWideValues() {
+	boolean changed = true;
+	while (changed) {
+	    changed = false;
+	    for (Block b: f.blocks)
+		for (Instr i: b.instrs)
+		    if (! wide.contains(i) && isWide(i)) {
+			wide.add(i);  changed = true;
+		    }
+	}
+    }
+
+    private boolean isWide(Instr i) {
+	switch (i.op) {
+	case ADDR:  case INDEX:
+	    return true;
+	case PARAM:  case LOAD:  case CALL:
+	    return i.size == 8;
+	case PHI:  case COPY:  case ADD:  case SUB:
+	    for (Instr a: i.args)
+		if (wide.contains(a)) return true;
+	}
+	return false;
+    }
+}
@@ -0,0 +1,10 @@
+package no.uio.ifi.alboc.ir;
+
+/*
+ * An analysis or transformation run on each function by the
+ * PassManager.
+ */
+public interface Pass {
+    String name();
+    void run(Function f);
+}
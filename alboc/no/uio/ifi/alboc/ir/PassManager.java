@@ -0,0 +1,85 @@
+package no.uio.ifi.alboc.ir;
+
+import java.util.ArrayList;
+import no.uio.ifi.alboc.code.Code;
+import no.uio.ifi.alboc.log.Log;
+
+/*
+ * Run a sequence of passes over each function, measuring the time
+ * spent in each pass and (if requested) dumping the IR after each.
+ */
+public class PassManager {
+    public static boolean timePasses = false;
+
+    /*
+     * The native code generators; AlboC replaces this with the Vm's
+     * translator for -run and -jvm.
+     */
+    public static Backend backend = new Backend() {
+	public String name() { return "lower to x86"; }
+
+	public void lower(Function f) {
+	    if (Code.x86_64)
+		new Lowering64(f).genCode();
+	    else
+		new Lowering(f).genCode();
+	}
+
+	public void defineVar(String name, int n, int nBytes) {
+	    Code.genVar(name, true, n, nBytes, "");
+	}
+    };
+
+    private ArrayList<Pass> passes = new ArrayList<Pass>();
+    private long buildTime = 0, lowerTime = 0;
+    private long[] times = new long[0];
+
+    public PassManager add(Pass p) {
+	passes.add(p);
+	times = new long[passes.size()];
+	return this;
+    }
+
+    /*
+     * The standard pipeline.
+     */
+    public static PassManager standard() {
+	return new PassManager().add(new CopyPropagation()).
+	    add(new Sccp()).add(new CopyPropagation()).
+	    add(new DeadCodeElimination());
+    }
+
+    /*
+     * Note the time used to build f (which was started at startTime),
+     * and dump it if requested.
+     */
+    public void built(Function f, long startTime) {
+	buildTime += System.nanoTime() - startTime;
+	Log.noteIR("after building", f.dump());
+    }
+
+    public void run(Function f) {
+	for (int i = 0;  i < passes.size();  ++i) {
+	    Pass p = passes.get(i);
+	    long start = System.nanoTime();
+	    p.run(f);
+	    times[i] += System.nanoTime() - start;
+	    Log.noteIR("after " + p.name(), f.dump());
+	}
+    }
+
+    public void lower(Function f) {
+	long start = System.nanoTime();
+	backend.lower(f);
+	lowerTime += System.nanoTime() - start;
+    }
+
+    public String timingReport() {
+	String s = String.format("%8.3f ms  %s%n", buildTime/1e6, "build SSA");
+	for (int i = 0;  i < passes.size();  ++i)
+	    s += String.format("%8.3f ms  %s%n", times[i]/1e6, passes.get(i).name());
+	s += String.format("%8.3f ms  %s%n", lowerTime/1e6,
+			   backend.name());
+	return s;
+    }
+}
@@ -0,0 +1,164 @@
+package no.uio.ifi.alboc.ir;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/*
+ * Sparse conditional constant propagation (Wegman and Zadeck).
+ * Values are "unknown" (not yet seen), constant or varying, and only
+ * the edges which may be taken are followed. Afterwards, constant
+ * values are replaced by constants, branches on constants become
+ * jumps and blocks which are never executed are removed.
+ */
+public class Sccp implements Pass {
+    private HashMap<Instr,Integer> constVal;
+    private HashSet<Instr> varying;
+    private HashSet<Block> execBlocks;
+    private HashMap<Block,HashSet<Block>> edges;
+    private ArrayList<Block> flowWork;
+    private ArrayList<Instr> ssaWork;
+    private HashMap<Instr,ArrayList<Instr>> uses;
+
+    public String name() {
+	return "sparse conditional constant propagation";
+    }
+
+    public void run(Function f) {
+	constVal = new HashMap<Instr,Integer>();
+	varying = new HashSet<Instr>();
+	execBlocks = new HashSet<Block>();
+	edges = new HashMap<Block,HashSet<Block>>();
+	flowWork = new ArrayList<Block>();
+	ssaWork = new ArrayList<Instr>();
+	uses = f.findUses();
+
+	execBlocks.add(f.entry);  flowWork.add(f.entry);
+	while (! flowWork.isEmpty() || ! ssaWork.isEmpty()) {
+	    while (! flowWork.isEmpty()) {
+		Block b = flowWork.remove(flowWork.size()-1);
+		for (Instr i: b.instrs) evaluate(i);
+	    }
+	    while (! ssaWork.isEmpty()) {
+		Instr i = ssaWork.remove(ssaWork.size()-1);
+		if (execBlocks.contains(i.block)) evaluate(i);
+	    }
+	}
+	rewrite(f);
+    }
+
+    private boolean isExecEdge(Block from, Block to) {
+	HashSet<Block> e = edges.get(from);
+	return e != null && e.contains(to);
+    }
+
+    private void markEdge(Block from, Block to) {
+	HashSet<Block> e = edges.get(from);
+	if (e == null) edges.put(from, e = new HashSet<Block>());
+	if (! e.add(to)) return;
+	if (execBlocks.add(to)) {
+	    flowWork.add(to);
+	} else {
+	    // A new way into the block; its phis must be recomputed:
+	    for (Instr i: to.instrs)
+		if (i.op == Instr.Op.PHI) ssaWork.add(i);
+	}
+    }
+
+    private void setVarying(Instr i) {
+	if (varying.add(i)) {
+	    constVal.remove(i);
+	    changed(i);
+	}
+    }
+
+    private void setConst(Instr i, int v) {
+	if (varying.contains(i) || constVal.containsKey(i)) return;
+	constVal.put(i, v);
+	changed(i);
+    }
+
+    private void changed(Instr i) {
+	ArrayList<Instr> u = uses.get(i);
+	if (u != null) ssaWork.addAll(u);
+    }
+
+    private void evaluate(Instr i) {
+	switch (i.op) {
+	case CONST:
+	    setConst(i, i.value);  break;
+	case PHI:
+	    Integer val = null;
+	    for (int k = 0;  k < i.args.size();  ++k) {
+		if (! isExecEdge(i.block.preds.get(k), i.block)) continue;
+		Instr a = i.args.get(k);
+		if (varying.contains(a)) {
+		    setVarying(i);  return;
+		}
+		Integer c = constVal.get(a);
+		if (c == null) continue;
+		if (val != null && ! val.equals(c)) {
+		    setVarying(i);  return;
+		}
+		val = c;
+	    }
+	    if (val != null) setConst(i, val);
+	    break;
+	case COPY:
+	case ADD:  case SUB:  case MUL:  case DIV:  case NEG:  case CMP:
+	    Integer[] c = new Integer[2];
+	    for (int k = 0;  k < i.args.size();  ++k) {
+		Instr a = i.args.get(k);
+		if (varying.contains(a)) {
+		    setVarying(i);  return;
+		}
+		c[k] = constVal.get(a);
+		if (c[k] == null) return;
+	    }
+	    if (i.op == Instr.Op.COPY) {
+		setConst(i, c[0]);  break;
+	    }
+	    Integer res = i.fold(c[0], c[1] == null ? 0 : c[1]);
+	    if (res == null) setVarying(i);  else setConst(i, res);
+	    break;
+	case JUMP:
+	    markEdge(i.block, i.block.succs.get(0));  break;
+	case BRANCH:
+	    Instr cond = i.args.get(0);
+	    if (varying.contains(cond)) {
+		markEdge(i.block, i.block.succs.get(0));
+		markEdge(i.block, i.block.succs.get(1));
+	    } else if (constVal.containsKey(cond)) {
+		markEdge(i.block, i.block.succs.get(constVal.get(cond) != 0 ? 0 : 1));
+	    }
+	    break;
+	default:
+	    if (i.hasValue()) setVarying(i);
+	}
+    }
+
+    private void rewrite(Function f) {
+	for (Block b: f.blocks) {
+	    if (! execBlocks.contains(b)) continue;
+	    ArrayList<Instr> constPhis = new ArrayList<Instr>();
+	    for (Instr i: b.instrs) {
+		if (i.op == Instr.Op.BRANCH && constVal.containsKey(i.args.get(0))) {
+		    Block dead = b.succs.get(constVal.get(i.args.get(0)) != 0 ? 1 : 0);
+		    b.removeSucc(dead);
+		    i.op = Instr.Op.JUMP;  i.args.clear();
+		} else if (i.op != Instr.Op.CONST && constVal.containsKey(i)) {
+		    if (i.op == Instr.Op.PHI) constPhis.add(i);
+		    i.makeConst(constVal.get(i));
+		}
+	    }
+	    // Keep the phis first in the block:
+	    for (Instr phi: constPhis) {
+		b.instrs.remove(phi);  b.addPhi(phi);
+	    }
+	}
+	for (Block b: f.blocks)
+	    if (! execBlocks.contains(b))
+		for (Block s: new ArrayList<Block>(b.succs)) b.removeSucc(s);
+	f.removeUnreachableBlocks();
+    }
+}
@@ -0,0 +1,169 @@
+package no.uio.ifi.alboc.ir;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+/*
+ * Build a function in SSA form while the syntax tree is traversed.
+ * Variables (any kind of key object) are given SSA values on the fly:
+ * a block is "sealed" when all its predecessors are known, and phis
+ * are created when a variable is read in a block with several
+ * predecessors. (See Braun et al.: "Simple and Efficient Construction
+ * of Static Single Assignment Form", CC 2013.)
+ */
+public class SsaBuilder {
+    public final Function func;
+    private Block cur;
+    private HashMap<Block,HashMap<Object,Instr>> currentDef =
+	new HashMap<Block,HashMap<Object,Instr>>(),
+	incompletePhis = new HashMap<Block,HashMap<Object,Instr>>();
+    private HashSet<Block> sealed = new HashSet<Block>();
+    private int line = 0;  // See setLine
+
+    public SsaBuilder(Function f) {
+	func = f;
+	cur = f.entry = f.newBlock();
+	sealBlock(cur);
+    }
+
+    public Block newBlock() {
+	return func.newBlock();
+    }
+
+    public Block curBlock() {
+	return cur;
+    }
+
+    /*
+     * Continue generating instructions in b.
+     */
+    public void startBlock(Block b) {
+	cur = b;
+    }
+
+    public Instr emit(Instr i) {
+	if (cur.terminator() != null) {
+	    // Unreachable code:
+	    cur = func.newBlock();  sealBlock(cur);
+	}
+	func.number(i);  cur.add(i);
+	if (i.line == 0) i.line = line;
+	return i;
+    }
+
+    /*
+     * The source line of the instructions emitted next (if known;
+     * see Code.setLine).
+     */
+    public void setLine(int line) {
+	if (line > 0) this.line = line;
+    }
+
+    public Instr emit(Instr.Op op, Instr... args) {
+	return emit(new Instr(op, args));
+    }
+
+    public Instr load(Instr addr, int size) {
+	Instr l = emit(Instr.Op.LOAD, addr);
+	l.size = size;
+	return l;
+    }
+
+    public Instr store(Instr addr, Instr val, int size) {
+	Instr s = emit(Instr.Op.STORE, addr, val);
+	s.size = size;
+	return s;
+    }
+
+    public Instr constant(int v) {
+	Instr c = new Instr(Instr.Op.CONST);
+	c.value = v;
+	return emit(c);
+    }
+
+    /*
+     * Jump to target (unless the current block has already been
+     * terminated, e.g. by a return).
+     */
+    public void jump(Block target) {
+	if (cur.terminator() != null) return;
+	emit(Instr.Op.JUMP);
+	addEdge(cur, target);
+    }
+
+    public void branch(Instr cond, Block ifTrue, Block ifFalse) {
+	emit(Instr.Op.BRANCH, cond);
+	addEdge(cur, ifTrue);  addEdge(cur, ifFalse);
+    }
+
+    private void addEdge(Block from, Block to) {
+	from.succs.add(to);  to.preds.add(from);
+    }
+
+    private HashMap<Object,Instr> defs(HashMap<Block,HashMap<Object,Instr>> m, Block b) {
+	HashMap<Object,Instr> d = m.get(b);
+	if (d == null) m.put(b, d = new HashMap<Object,Instr>());
+	return d;
+    }
+
+    public void writeVariable(Object var, Instr val) {
+	defs(currentDef, cur).put(var, val);
+    }
+
+    public Instr readVariable(Object var) {
+	return readVariable(var, cur);
+    }
+
+    private Instr readVariable(Object var, Block b) {
+	Instr val = defs(currentDef, b).get(var);
+	if (val != null) return val;
+
+	if (! sealed.contains(b)) {
+	    val = newPhi(b);
+	    defs(incompletePhis, b).put(var, val);
+	} else if (b.preds.size() == 1) {
+	    val = readVariable(var, b.preds.get(0));
+	} else if (b.preds.isEmpty()) {
+	    val = new Instr(Instr.Op.UNDEF);
+	    func.number(val);  val.block = b;  b.instrs.add(0, val);
+	} else {
+	    val = newPhi(b);
+	    defs(currentDef, b).put(var, val);
+	    addPhiOperands(var, val);
+	}
+	defs(currentDef, b).put(var, val);
+	return val;
+    }
+
+    private Instr newPhi(Block b) {
+	Instr phi = new Instr(Instr.Op.PHI);
+	func.number(phi);  b.addPhi(phi);
+	return phi;
+    }
+
+    private void addPhiOperands(Object var, Instr phi) {
+	for (Block p: phi.block.preds)
+	    phi.args.add(readVariable(var, p));
+    }
+
+    /*
+     * All predecessors of b are now known.
+     */
+    public void sealBlock(Block b) {
+	HashMap<Object,Instr> incomplete = incompletePhis.remove(b);
+	if (incomplete != null)
+	    for (Object var: incomplete.keySet())
+		addPhiOperands(var, incomplete.get(var));
+	sealed.add(b);
+    }
+
+    /*
+     * Finish the function: if the last block is not terminated, it
+     * returns an undefined value.
+     */
+    public Function finish() {
+	if (cur.terminator() == null)
+	    emit(Instr.Op.RET);
+	return func;
+    }
+}
@@ -18,7 +18,8 @@ import no.uio.ifi.alboc.types.*;
  */
 public class Log {
     public static boolean doLogBinding = false, doLogTypeCheck = false,
-	doLogParser = false, doLogScanner = false, doLogTree = false;
+	doLogParser = false, doLogScanner = false, doLogTree = false,
+	doLogIR = false;
 	
     private static String logName, curTreeLine = "";
     private static int nLogLines = 0, parseLevel = 0, treeLevel = 0;
@@ -125,6 +126,14 @@ public class Log {
 		     " and Type(" + s2 + ") is " + t2);
     }
 
+    /*
+     * Dump a function in the intermediate representation (if requested).
+     */
+    public static void noteIR(String when, String dump) {
+	if (! doLogIR) return;
+	writeLogLine("IR " + when + ":\n" + dump);
+    }
+
     public static void wTree(String s) {
 	if (curTreeLine.length() == 0) {
 	    for (int i = 1;  i <= treeLevel;  ++i) curTreeLine += "  ";
@@ -6,13 +6,24 @@ package no.uio.ifi.alboc.syntax;
  * @version 27.11.2014
  */
 import no.uio.ifi.alboc.alboc.AlboC;
+import no.uio.ifi.alboc.code.CCode;
+import no.uio.ifi.alboc.code.IoLibrary;
 import no.uio.ifi.alboc.code.Code;
+import no.uio.ifi.alboc.code.Profiler;
 import no.uio.ifi.alboc.error.Error;
+import no.uio.ifi.alboc.ir.*;
 import no.uio.ifi.alboc.log.Log;
 import no.uio.ifi.alboc.scanner.Scanner;
 import no.uio.ifi.alboc.scanner.Token;
 import static no.uio.ifi.alboc.scanner.Token.*;
 import no.uio.ifi.alboc.types.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.PriorityQueue;
 
 /**
  * Creates a syntax tree by parsing an AlboC program; 
@@ -73,12 +84,70 @@ public class Syntax {
 
     public static void finish() {}
 
+    public static boolean doLicm = true,  // Loop-invariant code motion?
+	doIvsr = false,                   // Induction-variable strength reduction?
+	doTailCalls = true,               // Tail-call elimination?
+	doDce = true,                     // Dead code elimination?
+	doRegParams = true;               // Parameters in registers?
+    public static boolean orderFuncs = false;  // Order functions by calls?
+    public static boolean useMemOperands = true;  // Memory and immediate operands?
+    public static boolean useIr = false;  // Generate code via the SSA IR?
+    static boolean optimizing = false;    // Creating code rather than parsing it?
+    public static int inlineMax = 40;     // Max size of inlined functions
+    static PassManager passes = PassManager.standard();
+    // What the dead code elimination has removed:
+    static int removedFuncs = 0, removedGlobals = 0, removedData = 0,
+	removedStatms = 0, removedInstrs = 0;
+    static ArrayList<FuncDecl> removedFuncList = new ArrayList<FuncDecl>();
+
     public static void checkProgram() {
 	program.check(library);
     }
 
+    public static void optimizeProgram() {
+	if (Profiler.profileFile != null)
+	    Profiler.readProfile();
+	if (Code.profile || Profiler.haveProfile())
+	    program.noteBranches();
+	optimizing = true;
+	program.optimize();
+    }
+
+    /*
+     * A summary of the code removed by the dead code elimination,
+     * or null if nothing was removed.
+     */
+    public static String deadCodeReport() {
+	if (removedFuncs+removedGlobals+removedStatms == 0) return null;
+	if (! measuresDeadCode())
+	    return "removed " + removedFuncs + " function(s), " + 
+		removedStatms + " statement(s) and " + removedGlobals + 
+		" global(s) of " + removedData + " bytes";
+	return "removed " + removedFuncs + " function(s) and " + 
+	    removedStatms + " statement(s) of " + removedInstrs + 
+	    " instructions, and " + removedGlobals + " global(s) of " + 
+	    removedData + " bytes";
+    }
+
+    /*
+     * Is the code removed by the dead code elimination generated (and
+     * thrown away) to count its instructions? Only for the stack
+     * machine code, and not with -profile, as that would count the
+     * removed functions in the profile.
+     */
+    static boolean measuresDeadCode() {
+	return ! useIr && ! CCode.genC && ! AlboC.runProgram && ! Code.profile;
+    }
+
     public static void genCode() {
-	program.genCode(null);
+	if (CCode.genC)
+	    program.genC();
+	else
+	    program.genCode(null);
+    }
+
+    public static String passTimingReport() {
+	return passes.timingReport();
     }
 
     public static void parseProgram() {
@@ -98,7 +167,8 @@ abstract class SyntaxUnit {
     int lineNum;
 
     SyntaxUnit() {
-	lineNum = Scanner.curLine;
+	// Code made by the optimizer has no line of its own (see Code.setLine):
+	lineNum = (Syntax.optimizing ? 0 : Scanner.curLine);
     }
 
     abstract void check(DeclList curDecls);
@@ -108,6 +178,22 @@ abstract class SyntaxUnit {
     void error(String message) {
 	Error.error(lineNum, message);
     }
+
+    /*
+     * Let w visit this unit and (in subclasses) all the units
+     * inside it. Used by the optimizer.
+     */
+    void walk(Walker w) {
+	w.visit(this);
+    }
+}
+
+/*
+ * Something that visits the units of a syntax tree; see SyntaxUnit.walk.
+ * (This class is not mentioned in the syntax diagrams.)
+ */
+interface Walker {
+    void visit(SyntaxUnit u);
 }
 
 /*
@@ -137,8 +223,148 @@ class Program extends SyntaxUnit {
    }
 		
     @Override void genCode(FuncDecl curFunc) {
-        Code.genInstr("",".data","","");
         progDecls.genCode(null);
+        if(Syntax.measuresDeadCode()){
+            for(FuncDecl f: Syntax.removedFuncList){
+                Code.discardCode();
+                f.genCode(null);
+                Syntax.removedInstrs += Code.keepCode();
+            }
+        }
+        if(Code.bufferedIo)
+            IoLibrary.genCode(definedFuncs());
+        if(Code.profile)
+            Profiler.genCode();
+    }
+
+    /*
+     * The names of the functions defined in the program.
+     */
+    HashSet<String> definedFuncs() {
+        HashSet<String> funcs = new HashSet<String>();
+        for(Declaration px = progDecls.firstDecl;  px != null;  px = px.nextDecl)
+            if(px instanceof FuncDecl)
+                funcs.add(px.name);
+        return funcs;
+    }
+
+    /*
+     * Write the program as C: the global variables first, and then
+     * the functions (declared before they are defined, as AlboC
+     * functions may be called before their declaration).
+     */
+    void genC() {
+        CCode.genPreamble(definedFuncs());
+        for(Declaration px = progDecls.firstDecl;  px != null;  px = px.nextDecl)
+            if(px instanceof GlobalVarDecl)
+                CCode.genLine(CCode.declaration(px.type, CCode.name(px.name), 
+                                                ((VarDecl)px).numElems) + ";");
+        CCode.genLine("");
+        for(Declaration px = progDecls.firstDecl;  px != null;  px = px.nextDecl)
+            if(px instanceof FuncDecl)
+                CCode.genLine(((FuncDecl)px).cHeader() + ";");
+        for(Declaration px = progDecls.firstDecl;  px != null;  px = px.nextDecl)
+            if(px instanceof FuncDecl)
+                ((FuncDecl)px).genC();
+    }
+
+    /*
+     * Number the if- and loop statements of each function for the
+     * profile (with -profile), or find their counts in the profile read
+     * back. This is done before the optimizer changes the code, so it
+     * sees the same statements in both compilations.
+     */
+    void noteBranches() {
+        for(Declaration px = progDecls.firstDecl;  px != null;  px = px.nextDecl){
+            if(!(px instanceof FuncDecl) || ((FuncDecl)px).body.statList == null)
+                continue;
+            final String func = px.name;
+            ((FuncDecl)px).body.statList.walk(new Walker() {
+                public void visit(SyntaxUnit u) {
+                    String kind = (u instanceof IfStatm ? "if" : u instanceof WhileStatm ?
+                                   "while" : u instanceof ForStatm ? "for" : null);
+                    if(kind == null)
+                        return;
+                    Statement s = (Statement)u;
+                    if(Code.profile && !Syntax.useIr)  // Counted in genCode only
+                        s.branchIndex = Profiler.addBranch(func, u.lineNum, kind);
+                    s.branchCounts = Profiler.branchCounts(func, u.lineNum, kind);
+                }
+            });
+        }
+    }
+
+    void optimize() {
+        if(Syntax.doDce)
+            removeUnusedDecls();
+        Declaration px = progDecls.firstDecl;
+        while(px != null){
+            if(px instanceof FuncDecl)
+                ((FuncDecl)px).optimize();
+            px = px.nextDecl;
+        }
+        if(Syntax.inlineMax > 0){
+            px = progDecls.firstDecl;
+            while(px != null){
+                if(px instanceof FuncDecl)
+                    ((FuncDecl)px).inlineCalls();
+                px = px.nextDecl;
+            }
+        }
+        // Some functions may now only be called from removed statements,
+        // or be inlined everywhere:
+        if(Syntax.doDce)
+            removeUnusedDecls();
+    }
+
+    /*
+     * Remove the functions and global variables that cannot be
+     * reached from main; inlined calls do not count. (When compiling
+     * with -c, every declaration is exported and must be kept.)
+     */
+    void removeUnusedDecls() {
+        if(AlboC.noLink)
+            return;
+        final HashSet<Declaration> used = new HashSet<Declaration>();
+        final ArrayList<FuncDecl> work = new ArrayList<FuncDecl>();
+        Walker marker = new Walker() {
+            public void visit(SyntaxUnit u) {
+                Declaration d = null;
+                if(u instanceof FunctionCall && ((FunctionCall)u).inlineVars != null)
+                    ((FunctionCall)u).declRef.body.statList.walk(this);
+                else if(u instanceof FunctionCall)
+                    d = ((FunctionCall)u).declRef;
+                else if(u instanceof Variable)
+                    d = ((Variable)u).declRef;
+                if(d != null && used.add(d) && d instanceof FuncDecl)
+                    work.add((FuncDecl)d);
+            }
+        };
+        for(Declaration px = progDecls.firstDecl;  px != null;  px = px.nextDecl)
+            if(px.name.equals("main")){
+                used.add(px);  work.add((FuncDecl)px);
+            }
+        while(! work.isEmpty()){
+            FuncDecl f = work.remove(work.size()-1);
+            if(f.body.statList != null)
+                f.body.statList.walk(marker);
+        }
+
+        Declaration prev = null;
+        for(Declaration px = progDecls.firstDecl;  px != null;  px = px.nextDecl){
+            if(used.contains(px)){
+                prev = px;  continue;
+            }
+            if(px instanceof FuncDecl){
+                ++Syntax.removedFuncs;  Syntax.removedFuncList.add((FuncDecl)px);
+            }else{
+                ++Syntax.removedGlobals;  Syntax.removedData += px.declSize();
+            }
+            if(prev == null)
+                progDecls.firstDecl = px.nextDecl;
+            else
+                prev.nextDecl = px.nextDecl;
+        }
     }
 
     static Program parse() {
@@ -214,12 +440,19 @@ abstract class DeclList extends SyntaxUnit {
         Declaration dx = firstDecl;
         int res = 0;
 
-        while (dx != null) 
+        while (dx != null) {
            res += dx.declSize();  dx = dx.nextDecl;
+        }
 
         return res;
     }
 
+    @Override void walk(Walker w) {
+        w.visit(this);
+        for(Declaration dx = firstDecl;  dx != null;  dx = dx.nextDecl)
+            dx.walk(w);
+    }
+
     Declaration findDecl(String name, SyntaxUnit use) {
         Declaration px = firstDecl;
         DeclList oPx = this;
@@ -242,18 +475,40 @@ abstract class DeclList extends SyntaxUnit {
  */
 class GlobalDeclList extends DeclList {
     @Override void genCode(FuncDecl curFunc) {
+        if(Syntax.orderFuncs){
+            genOrderedCode();  return;
+        }
         Declaration px = firstDecl;
-        boolean b = true;
         while(px != null){
+            // (Code switches between the sections as required, since
+            // variables and functions may be declared in any order.)
             px.genCode(curFunc);
-            if(b && px.nextDecl instanceof FuncDecl){
-                Code.genInstr("",".text","","");
-                b = false;
-            }
             px = px.nextDecl;
         }
     }
 
+    /*
+     * Generate the variables, and then the functions in the order
+     * found by the CallGraph. Functions which the profile shows were
+     * never called are put last, in .text.unlikely.
+     */
+    void genOrderedCode() {
+        ArrayList<FuncDecl> funcs = new ArrayList<FuncDecl>();
+        for(Declaration px = firstDecl;  px != null;  px = px.nextDecl){
+            if(px instanceof FuncDecl)
+                funcs.add((FuncDecl)px);
+            else
+                px.genCode(null);
+        }
+        CallGraph g = new CallGraph(funcs);
+        for(FuncDecl f: g.order())
+            f.genCode(null);
+        Code.startColdCode();
+        for(FuncDecl f: g.cold)
+            f.genCode(null);
+        Code.endColdCode();
+    }
+
     static GlobalDeclList parse() {
         GlobalDeclList gdl = new GlobalDeclList();
 
@@ -430,6 +685,7 @@ abstract class Declaration extends SyntaxUnit {
 abstract class VarDecl extends Declaration {
     boolean isArray = false;
     int numElems = 0;
+    boolean addressTaken = false;  // Is the address used anywhere?
 
     VarDecl(String n) {
 	super(n);
@@ -474,6 +730,22 @@ abstract class VarDecl extends Declaration {
     @Override void checkWhetherVariable(SyntaxUnit use) {
 	// OK
     }
+
+    /*
+     * May this variable be changed through a pointer or by another
+     * function?
+     */
+    boolean mayBeAliased() {
+        return this instanceof GlobalVarDecl || addressTaken;
+    }
+
+    /*
+     * May this variable be kept as SSA values in the IR (rather than
+     * in memory)?
+     */
+    boolean isSsaVar() {
+        return !mayBeAliased() && !(type instanceof ArrayType);
+    }
 }
 
 /*
@@ -487,13 +759,10 @@ class GlobalVarDecl extends VarDecl {
     }
 
     @Override void genCode(FuncDecl curFunc) {
-        if(!isArray){
-            Code.genInstr("",".globl",name,"");
-            Code.genInstr(name,".fill","1,4,0","");
-        }else{
-            Code.genInstr("",".globl",name,"");
-            Code.genInstr(name,".fill",numElems+",4,0","");
-        }
+        if(isArray)
+            PassManager.backend.defineVar(assemblerName, numElems, type.getElemType().size());
+        else
+            PassManager.backend.defineVar(assemblerName, 1, type.size());
     }
 
     static GlobalVarDecl parse(DeclType dt) {
@@ -631,6 +900,12 @@ class FuncBody extends SyntaxUnit {
         statList.genCode(curFunc);
     }
 
+    @Override void walk(Walker w) {
+        w.visit(this);
+        if(decls != null) decls.walk(w);
+        if(statList != null) statList.walk(w);
+    }
+
     static FuncBody parse() {
     Log.enterParser("<func body>");
 
@@ -657,6 +932,11 @@ class FuncDecl extends Declaration {
     ParamDeclList funcParams;
     String exitLabel;
     FuncBody body;
+    int numTemps = 0;
+    // The parts of the body removed as dead code (see StatmList.removeDeadCode):
+    ArrayList<SyntaxUnit> deadCode = new ArrayList<SyntaxUnit>();
+    Block irStart = null,   // Target of self tail calls in the IR
+        irReturn = null;    // Target of returns when inlined in the IR
 	
     FuncDecl(String n) {
 	// Used for user functions:
@@ -693,21 +973,352 @@ class FuncDecl extends Declaration {
         use.error(name + " is a function and no variable!");
     }
 
+    void optimize() {
+        body.statList.optimize(this);
+    }
+
+    /*
+     * Count the syntax units in the function body.
+     */
+    int size() {
+        final int[] n = {0};
+        body.statList.walk(new Walker() {
+            public void visit(SyntaxUnit u) { ++n[0]; }
+        });
+        return n[0];
+    }
+
+    /*
+     * May calls to this function be replaced by its body? That is
+     * allowed for small user functions which do not call other user
+     * functions (so they cannot be recursive). With a profile, functions
+     * which were never called are left alone, and those called often
+     * may be twice as large.
+     */
+    boolean isInlinable() {
+        int max = (Profiler.isHot(name) ? 2*Syntax.inlineMax : Syntax.inlineMax);
+        if(body.statList == null || size() > max || Profiler.callCount(name) == 0)
+            return false;
+        final boolean[] callsUser = {false};
+        body.statList.walk(new Walker() {
+            public void visit(SyntaxUnit u) {
+                if(u instanceof FunctionCall && ((FunctionCall)u).declRef != null &&
+                   ((FunctionCall)u).declRef.body.statList != null)
+                    callsUser[0] = true;
+            }
+        });
+        return !callsUser[0];
+    }
+
+    /*
+     * May a tail call in this function reuse its frame? Not if the
+     * address of any parameter or local variable has been taken, as
+     * the pointer could still be in use.
+     */
+    boolean allowsTailCalls() {
+        if(!Syntax.doTailCalls || !exitLabel.equals(".exit$"+name))
+            return false;  // Not when the body is inlined elsewhere
+        if(savesParamRegs())
+            return false;  // The registers must be restored
+        if(Code.bufferedIo && name.equals("main"))
+            return false;  // The output must be written (see Code.genEpilogue)
+        for(Declaration d = funcParams.firstDecl;  d != null;  d = d.nextDecl)
+            if(((VarDecl)d).addressTaken) return false;
+        for(Declaration d = body.decls.firstDecl;  d != null;  d = d.nextDecl)
+            if(((VarDecl)d).addressTaken) return false;
+        return true;
+    }
+
+    boolean hasSelfTailCall() {
+        if(!allowsTailCalls())
+            return false;
+        final FuncDecl curFunc = this;
+        final boolean[] found = {false};
+        body.statList.walk(new Walker() {
+            public void visit(SyntaxUnit u) {
+                if(u instanceof ReturnStatm && ((ReturnStatm)u).tailCall() != null &&
+                   ((ReturnStatm)u).tailCall().declRef == curFunc)
+                    found[0] = true;
+            }
+        });
+        return found[0];
+    }
+
+    int numParams() {
+        int n = 0;
+        for(Declaration d = funcParams.firstDecl;  d != null;  d = d.nextDecl)
+            ++n;
+        return n;
+    }
+
+    /*
+     * Mark all calls from this function to inlinable functions.
+     */
+    void inlineCalls() {
+        final FuncDecl curFunc = this;
+        body.statList.walk(new Walker() {
+            public void visit(SyntaxUnit u) {
+                if(u instanceof FunctionCall && ((FunctionCall)u).declRef != null &&
+                   ((FunctionCall)u).declRef.isInlinable())
+                    ((FunctionCall)u).makeInline(curFunc);
+            }
+        });
+    }
+
+    @Override void walk(Walker w) {
+        w.visit(this);
+        funcParams.walk(w);
+        body.walk(w);
+    }
+
+    /*
+     * Create a new local variable (not visible in the program) to hold
+     * a value computed by the optimizer.
+     */
+    LocalVarDecl newTemp(Type t) {
+        LocalVarDecl tmp = new LocalVarDecl("$t" + (++numTemps));
+        tmp.type = t;
+        tmp.assemblerName = "-" + (body.decls.dataSize() + t.size()) + "(%ebp)";
+        body.decls.addDecl(tmp);
+        return tmp;
+    }
+
     @Override void genCode(FuncDecl curFunc) {
+        Code.setLine(lineNum);
         Code.genInstr("",".globl",name,"Start function " + name);
-        int count = 0;
-        Declaration px = body.decls.firstDecl;
-        while(px != null){
-            count += px.type.size();
-            px = px.nextDecl;
+        if(Syntax.useIr){
+            genIrCode();  return;
         }
-
-        Code.genInstr(name,"enter","$" + count + ",$0","");
+        int count = body.decls.dataSize();
+
+        exitLabel = ".exit$" + name;
+        Code.genPrologue(name, count, numSpilledParams(), savesParamRegs(),
+                         maxStackArgs(), isLeaf());
+        placeParams(count, true);
+        if(hasSelfTailCall())
+            Code.genInstr(".start$"+name,"","","");
         if(body != null)
             body.genCode(this);
-        Code.genInstr(".exit$"+name,"","","");
-        Code.genInstr("","leave","","");
-        Code.genInstr("","ret","","End Function" + name);
+        if(Syntax.measuresDeadCode())
+            genDeadCode();
+        Code.genEpilogue(exitLabel, "End Function" + name);
+    }
+
+    /*
+     * Generate the code removed from the body, to count its
+     * instructions (see Syntax.deadCodeReport).
+     */
+    void genDeadCode() {
+        Code.discardCode();
+        for(SyntaxUnit u: deadCode){
+            if(u instanceof StatmList)
+                ((StatmList)u).genCode(this);
+            else
+                ((Statement)u).genCode(this);
+        }
+        Syntax.removedInstrs += Code.keepCode();
+    }
+
+    /*
+     * The number of parameters passed in registers. Functions which
+     * may be called from outside the program (main, the library
+     * functions and all functions when compiling with -c) use the
+     * standard C calling convention with all parameters on the stack.
+     */
+    int numRegParams() {
+        if(Code.x86_64)
+            return Math.min(numParams(), Code.argRegs64.length);
+        if(!Syntax.doRegParams || AlboC.noLink || name.equals("main") ||
+           body.statList == null)
+            return 0;
+        return Math.min(numParams(), Code.paramRegs.length);
+    }
+
+    /*
+     * The size of the value returned.
+     */
+    int resultSize() {
+        return typeSpec != null && typeSpec.numStars > 0 ? Types.pointerSize : 4;
+    }
+
+    int numStackParams() {
+        return numParams() - numRegParams();
+    }
+
+    /*
+     * The largest number of arguments pushed by any call made by this
+     * function (including those made by inlined function bodies).
+     */
+    int maxStackArgs() {
+        final int[] max = {0};
+        body.statList.walk(new Walker() {
+            public void visit(SyntaxUnit u) {
+                if(!(u instanceof FunctionCall)) return;
+                FunctionCall call = (FunctionCall)u;
+                if(call.inlineVars != null)
+                    max[0] = Math.max(max[0], call.declRef.maxStackArgs());
+                else
+                    max[0] = Math.max(max[0], call.numStackArgs());
+            }
+        });
+        return max[0];
+    }
+
+    /*
+     * May a parameter passed in a register stay there? Only in leaf
+     * functions, and only if it is never assigned to (or its address
+     * taken), as the register has no address.
+     */
+    boolean keepsInRegister(final VarDecl d) {
+        if(d.addressTaken || d.type instanceof ArrayType || !isLeaf())
+            return false;
+        final boolean[] assigned = {false};
+        body.statList.walk(new Walker() {
+            public void visit(SyntaxUnit u) {
+                if(u instanceof LhsVariable && ((LhsVariable)u).var.declRef == d &&
+                   ((LhsVariable)u).var.index == null)
+                    assigned[0] = true;
+            }
+        });
+        return !assigned[0];
+    }
+
+    int numSpilledParams() {
+        int n = 0, k = 0;
+        for(Declaration d = funcParams.firstDecl;  d != null && k < numRegParams();  d = d.nextDecl){
+            if(!keepsInRegister((VarDecl)d)) ++n;
+            ++k;
+        }
+        return n;
+    }
+
+    /*
+     * Must the function preserve the parameter registers? Only main
+     * does (as it is called from C) when it calls other functions.
+     */
+    boolean savesParamRegs() {
+        return !Code.x86_64 && name.equals("main") && Syntax.doRegParams && !AlboC.noLink && !isLeaf();
+    }
+
+    /*
+     * Give the parameters their locations: those passed in registers
+     * stay there or are stored in the frame (below count bytes of local
+     * data) by the prologue (if gen is set), and the others follow the
+     * return address.
+     */
+    void placeParams(int count, boolean gen) {
+        int nRegs = numRegParams(), k = 0, j = 0;
+        for(Declaration d = funcParams.firstDecl;  d != null;  d = d.nextDecl){
+            if(Code.x86_64)
+                // All register parameters are stored in the frame (by
+                // Lowering64), and the return address and %rbp take 16 bytes:
+                d.assemblerName = (k < nRegs ? -(count+8+8*k) : 16+8*(k-nRegs)) + "(%ebp)";
+            else if(k >= nRegs)
+                d.assemblerName = (8+4*(k-nRegs)) + "(%ebp)";
+            else if(keepsInRegister((VarDecl)d))
+                d.assemblerName = Code.paramRegs[k];
+            else if(gen)
+                d.assemblerName = Code.genRegParamSpill(Code.paramRegs[k], j++, count);
+            else
+                d.assemblerName = Code.regParamSpillAddress(j++, count);
+            ++k;
+        }
+    }
+
+    /*
+     * Does the function make no calls? (Inlined calls are counted too,
+     * as the inlined body may call library functions.)
+     */
+    boolean isLeaf() {
+        final boolean[] hasCall = {false};
+        body.statList.walk(new Walker() {
+            public void visit(SyntaxUnit u) {
+                if(u instanceof FunctionCall) hasCall[0] = true;
+            }
+        });
+        return !hasCall[0];
+    }
+
+    /*
+     * Generate code through the SSA intermediate representation: build
+     * it, run the optimization passes and lower it to x86.
+     */
+    void genIrCode() {
+        long start = System.nanoTime();
+        exitLabel = ".exit$" + name;
+        int count = body.decls.dataSize();
+        placeParams(count, false);
+        Function func = new Function(name, count + (Code.x86_64 ? 8*numRegParams() : 4*numSpilledParams()));
+        func.saveParamRegs = savesParamRegs();
+        func.numParams = numParams();
+        Declaration d = funcParams.firstDecl;
+        for(int k = 0;  k < numRegParams();  ++k, d = d.nextDecl)
+            func.regParams.add(d.assemblerName);
+        SsaBuilder b = new SsaBuilder(func);
+        b.setLine(lineNum);
+        int n = 0;
+        for(d = funcParams.firstDecl;  d != null;  d = d.nextDecl){
+            Instr p = b.emit(Instr.Op.PARAM);
+            p.value = n++;  p.size = d.type.size();
+            if(((VarDecl)d).isSsaVar())
+                b.writeVariable(d, p);
+        }
+        irStart = b.newBlock();
+        b.jump(irStart);  b.startBlock(irStart);
+        boolean selfTail = hasSelfTailCall();
+        if(!selfTail)
+            b.sealBlock(irStart);
+        body.statList.genIr(b, this);
+        if(selfTail)
+            b.sealBlock(irStart);
+        Function f = b.finish();
+        Syntax.passes.built(f, start);
+        Syntax.passes.run(f);
+        Syntax.passes.lower(f);
+    }
+
+    boolean returnsPointer() {
+        return typeSpec != null && typeSpec.numStars > 0;
+    }
+
+    /*
+     * Is this one of the library functions (which have no body)?
+     */
+    boolean isLibrary() {
+        return body.statList == null;
+    }
+
+    /*
+     * The C function header: "int f(int a, char *p)".
+     */
+    String cHeader() {
+        String params = "";
+        for(Declaration d = funcParams.firstDecl;  d != null;  d = d.nextDecl)
+            params += (params.length() > 0 ? ", " : "") + 
+                CCode.declaration(d.type, CCode.name(d.name), 0);
+        return (returnsPointer() ? "char *" : "int ") + CCode.name(name) + 
+            "(" + (params.length() > 0 ? params : "void") + ")";
+    }
+
+    /*
+     * Write the function as C. Simple local variables start as 0 (so
+     * that the C code does not read uninitialized variables), and a
+     * function that may reach its end returns 0.
+     */
+    void genC() {
+        CCode.genLine("");
+        CCode.genLine(cHeader() + " {");
+        CCode.indent();
+        for(Declaration d = body.decls.firstDecl;  d != null;  d = d.nextDecl){
+            VarDecl v = (VarDecl)d;
+            CCode.genLine(CCode.declaration(v.type, CCode.name(v.name), v.numElems) + 
+                          (v.isArray ? ";" : " = 0;"));
+        }
+        body.statList.genC(this);
+        if(!(body.statList.lastStatm() instanceof ReturnStatm))
+            CCode.genLine("return 0;");
+        CCode.outdent();
+        CCode.genLine("}");
     }
 
     static FuncDecl parse(DeclType dt) {
@@ -755,11 +1366,152 @@ class StatmList extends SyntaxUnit {
     @Override void genCode(FuncDecl curFunc) {
         Statement cur = first;
         while(cur != null){
+            Code.setLine(cur.lineNum);
             cur.genCode(curFunc);
             cur = cur.nextStatm;
         }
     }
 
+    void genIr(SsaBuilder b, FuncDecl curFunc) {
+        for(Statement cur = first;  cur != null;  cur = cur.nextStatm){
+            b.setLine(cur.lineNum);
+            cur.genIr(b, curFunc);
+        }
+    }
+
+    void genC(FuncDecl curFunc) {
+        for(Statement cur = first;  cur != null;  cur = cur.nextStatm){
+            CCode.setLine(cur.lineNum);
+            cur.genC(curFunc);
+        }
+    }
+
+    void optimize(FuncDecl curFunc) {
+        if(Syntax.doDce)
+            removeDeadCode(curFunc);
+        Statement cur = first;
+        while(cur != null){
+            cur.optimize(curFunc);
+            cur = cur.nextStatm;
+        }
+    }
+
+    /*
+     * Remove the statements which can never be executed: those
+     * following a return statement, and those governed by a
+     * constant test.
+     */
+    void removeDeadCode(FuncDecl curFunc) {
+        Statement prev = null, cur = first;
+        while(cur != null){
+            StatmList live = cur.liveCode();
+            if(live != null){
+                Syntax.removedStatms += countStatms(cur) - countStatms(live);
+                SyntaxUnit dead = cur.deadCode();
+                if(dead != null)
+                    curFunc.deadCode.add(dead);
+                Statement after = cur.nextStatm;
+                Statement last = live.lastStatm();
+                if(last == null){
+                    if(prev == null) first = after;  else prev.nextStatm = after;
+                    cur = after;
+                }else{
+                    if(prev == null) first = live.first;  else prev.nextStatm = live.first;
+                    last.nextStatm = after;
+                    cur = live.first;
+                }
+                continue;
+            }
+            if(cur instanceof ReturnStatm && cur.nextStatm != null){
+                for(Statement s = cur.nextStatm;  s != null;  s = s.nextStatm){
+                    Syntax.removedStatms += countStatms(s);
+                    curFunc.deadCode.add(s);
+                }
+                cur.nextStatm = null;
+            }
+            prev = cur;  cur = cur.nextStatm;
+        }
+    }
+
+    /*
+     * Count the statements in s (including the nested ones), or in
+     * the whole list if s is a StatmList.
+     */
+    static int countStatms(SyntaxUnit s) {
+        final int[] n = {0};
+        Walker counter = new Walker() {
+            public void visit(SyntaxUnit u) {
+                if(u instanceof Statement) ++n[0];
+            }
+        };
+        if(s instanceof Statement)
+            ((Statement)s).walk(counter);
+        else
+            ((StatmList)s).walk(counter);
+        return n[0];
+    }
+
+    @Override void walk(Walker w) {
+        w.visit(this);
+        for(Statement cur = first;  cur != null;  cur = cur.nextStatm)
+            cur.walk(w);
+    }
+
+    void removeStatm(Statement s) {
+        if(first == s){
+            first = s.nextStatm;
+        }else{
+            Statement prev = first;
+            while(prev.nextStatm != s)
+                prev = prev.nextStatm;
+            prev.nextStatm = s.nextStatm;
+        }
+        s.nextStatm = null;
+    }
+
+    Statement lastStatm() {
+        Statement last = first;
+        while(last != null && last.nextStatm != null)
+            last = last.nextStatm;
+        return last;
+    }
+
+    void addStatm(Statement s) {
+        if(first == null){
+            first = s;
+        }else{
+            Statement last = first;
+            while(last.nextStatm != null)
+                last = last.nextStatm;
+            last.nextStatm = s;
+        }
+    }
+
+    void noteEffects(Effects e) {
+        Statement cur = first;
+        while(cur != null){
+            cur.noteEffects(e);
+            cur = cur.nextStatm;
+        }
+    }
+
+    /*
+     * Hoist invariant code out of the statements. If uncond is true,
+     * the first statement is executed in every iteration of loop, and
+     * so are the following ones until one of them may return or
+     * call a function.
+     */
+    void hoistInvariants(FuncDecl curFunc, LoopStatm loop, boolean uncond) {
+        Statement cur = first;
+        while(cur != null){
+            Effects e = new Effects();
+            cur.noteEffects(e);
+            cur.hoistInvariants(curFunc, loop, uncond && !e.hasCall);
+            uncond = uncond && !e.hasCall && !e.hasReturn;
+            cur = cur.nextStatm;
+        }
+    }
+
     /**
      * Metoden oppretter en lenkeliste av Statement-objekter ved å få objektene til å peke på hverandre så lenge Scanner spytter ut statementrelaterte tokens
      */
@@ -797,6 +1549,52 @@ class StatmList extends SyntaxUnit {
  */
 abstract class Statement extends SyntaxUnit {
     Statement nextStatm;
+    // For if- and loop statements (see Program.noteBranches): the
+    // counters of the branch with -profile, and how often it was
+    // reached and taken in the profile read back:
+    int branchIndex = -1;
+    long[] branchCounts = null;
+
+    void optimize(FuncDecl curFunc) {}
+
+    /*
+     * The code which remains of this statement when the parts which
+     * can never be executed are removed, or null if nothing can be
+     * removed.
+     */
+    StatmList liveCode() {
+        return null;
+    }
+
+    /*
+     * The part of the statement which liveCode leaves out (or null),
+     * to be generated on its own when counting the removed code. It
+     * must not be linked to the live code.
+     */
+    SyntaxUnit deadCode() {
+        return this;
+    }
+
+    /*
+     * Add the statement to the IR function being built by b.
+     */
+    abstract void genIr(SsaBuilder b, FuncDecl curFunc);
+
+    /*
+     * Write the statement as C (see Program.genC).
+     */
+    abstract void genC(FuncDecl curFunc);
+
+    /*
+     * Record the side effects of this statement.
+     */
+    abstract void noteEffects(Effects e);
+
+    /*
+     * Move loop-invariant computations in this statement (which is part
+     * of loop) into temporaries computed before the loop.
+     */
+    abstract void hoistInvariants(FuncDecl curFunc, LoopStatm loop, boolean uncond);
 
     static Statement parse() {
 	Log.enterParser("<statement>");
@@ -837,6 +1635,14 @@ class EmptyStatm extends Statement {
 
     @Override void genCode(FuncDecl curFunc) {}
 
+    @Override void genIr(SsaBuilder b, FuncDecl curFunc) {}
+
+    @Override void genC(FuncDecl curFunc) {}
+
+    @Override void noteEffects(Effects e) {}
+
+    @Override void hoistInvariants(FuncDecl curFunc, LoopStatm loop, boolean uncond) {}
+
     static EmptyStatm parse() {
         Log.enterParser("<empty statm>");
 
@@ -853,60 +1659,445 @@ class EmptyStatm extends Statement {
 }	
 
 /*
- * A <for-statm>.
+ * A loop: a <for-statm> or a <while-statm>.
+ * (This class is not mentioned in the syntax diagrams.)
  */
-class ForStatm extends Statement {
-    Assignment first;
+abstract class LoopStatm extends Statement {
     Expression test;
-    Assignment second;
     StatmList body;
-
-    @Override void check(DeclList curDecls) {
-        first.check(curDecls);
-        test.check(curDecls);
-        Log.noteTypeCheck("for (...; t; ...) ...", test.type, "t", lineNum);
-        if (test.type instanceof ValueType) {
-        // OK
-        } else {
-           error("For-test must be a value.");
+    // Loop-invariant code, computed before the test and before the body:
+    StatmList testPre = new StatmList(), bodyPre = new StatmList();
+    Effects effects = null;
+    // Replacement test at the bottom of the loop, and code executed
+    // when leaving the loop through it:
+    Expression bottomTest = null;
+    StatmList exitPost = new StatmList();
+
+    @Override void optimize(FuncDecl curFunc) {
+        body.optimize(curFunc);
+        if(Syntax.doLicm){
+            effects = new Effects();
+            noteLoopEffects(effects);
+            test.hoistInvariants(curFunc, this, testPre, !test.hasCall());
+            body.hoistInvariants(curFunc, this, true);
+            hoistFromRest(curFunc);
         }
-        second.check(curDecls);
-        body.check(curDecls);
+        if(Syntax.doIvsr)
+            reduceInductionVars(curFunc);
     }
 
-    @Override void genCode(FuncDecl curFunc) {
-        String testLabel = Code.getLocalLabel(), 
-        endLabel  = Code.getLocalLabel();
-
-        first.genCode(curFunc);
-        Code.genInstr(testLabel, "", "", "Start for-statement");
-        test.genCode(curFunc);
-        Code.genInstr("", "cmpl", "$0,%eax", "");
-        Code.genInstr("", "je", endLabel, "");
-        body.genCode(curFunc);
-        second.genCode(curFunc);
-        Code.genInstr("", "jmp", testLabel, "");
-        Code.genInstr(endLabel, "", "", "End for-statement");
+    @Override StatmList liveCode() {
+        Integer t = test.testValue();
+        return t != null && t == 0 ? new StatmList() : null;
     }
 
-    static ForStatm parse() {
-        ForStatm fs = new ForStatm();
-        Log.enterParser("<for-statm>");
+    /*
+     * The loop is rotated in the IR as in the x86 code (see genCode).
+     */
+    @Override void genIr(SsaBuilder b, FuncDecl curFunc) {
+        Block pre = b.newBlock(), loop = b.newBlock(), 
+            post = b.newBlock(), end = b.newBlock();
+        b.setLine(lineNum);
+        testPre.genIr(b, curFunc);
+        b.branch(test.genIr(b, curFunc), pre, end);
+        b.sealBlock(pre);  b.startBlock(pre);
+        bodyPre.genIr(b, curFunc);
+        b.jump(loop);
+        b.startBlock(loop);
+        body.genIr(b, curFunc);
+        genIrStep(b, curFunc);
+        b.setLine(lineNum);
+        b.branch((bottomTest != null ? bottomTest : test).genIr(b, curFunc), loop, post);
+        b.sealBlock(loop);  b.sealBlock(post);
+        b.startBlock(post);
+        exitPost.genIr(b, curFunc);
+        b.jump(end);
+        b.sealBlock(end);  b.startBlock(end);
+    }
+
+    /*
+     * Align the loop head, unless the profile shows that the body was
+     * never run (so the padding would only take space).
+     */
+    void genLoopAlign() {
+        if(branchCounts == null || branchCounts[1] > 0)
+            Code.genLoopAlign();
+    }
 
-        Scanner.skip(forToken);
-        Scanner.skip(leftParToken); // for(
-        fs.first = Assignment.parse();
-        Scanner.skip(semicolonToken);// for(assignment;
-        fs.test = Expression.parse();
-        Scanner.skip(semicolonToken);// for(assignement; expression;
-        fs.second = Assignment.parse();
-        Scanner.skip(rightParToken); // for(assignement; expression; assignment)
-        Scanner.skip(leftCurlToken); 
-        fs.body = StatmList.parse();
-        Scanner.skip(rightCurlToken);
+    /*
+     * Add what is done at the end of every iteration (besides the test).
+     */
+    void genIrStep(SsaBuilder b, FuncDecl curFunc) {}
 
-        Log.leaveParser("</for-statm>");
-        return fs;
+    /*
+     * The loop is written as a C while loop (which gcc rotates). If the
+     * test calls a function, the temporaries computing it are set in
+     * the loop body, before the test. (The loop optimizations which
+     * fill testPre and the other lists are turned off by -c99.)
+     */
+    @Override void genC(FuncDecl curFunc) {
+        if(test.hasCall()){
+            CCode.genLine("for (;;) {");
+            CCode.indent();
+            CCode.genLine("if (!" + test.genC(curFunc).text + ") break;");
+        }else{
+            CCode.genLine("while (" + test.genC(curFunc).text + ") {");
+            CCode.indent();
+        }
+        body.genC(curFunc);
+        genCStep(curFunc);
+        CCode.outdent();
+        CCode.genLine("}");
+    }
+
+    void genCStep(FuncDecl curFunc) {}
+
+    /*
+     * Find the statement that steps the induction variable, if any:
+     * "i = i + c" or "i = i - c" at the end of each iteration.
+     */
+    abstract Assignment findIncrement();
+
+    abstract void removeIncrement();
+
+    /*
+     * Induction-variable strength reduction. If the loop steps a local
+     * variable i by a constant, each a[i+c] in the loop is replaced
+     * by p[c], where the pointer temporary p is set to &a[i] before the
+     * loop and stepped along with i. If i is then only used in a test
+     * like "i < n", the test at the bottom of the loop compares p
+     * with &a[n] instead, and i is only given its final value when
+     * the loop terminates.
+     *
+     * Off unless -ivsr is given: p lives in the frame like i, so the
+     * loop still loads and stores it, and the extra load before each
+     * p[c] makes the loop slower than indexing (see bench/arrays.alboc).
+     */
+    void reduceInductionVars(FuncDecl curFunc) {
+        final Assignment incr = findIncrement();
+        if(incr == null || incr.var.numStars > 0 || incr.var.var.index != null)
+            return;
+        final VarDecl iv = incr.var.var.declRef;
+        if(iv.mayBeAliased() || iv.type != Types.intType)
+            return;
+        Integer step = incr.exp.offsetFrom(iv);
+        if(step == null || step == 0)
+            return;
+
+        // The increment must be the only assignment to i in the loop:
+        final int[] nAssign = {0};
+        Walker countAssign = new Walker() {
+            public void visit(SyntaxUnit u) {
+                if(u instanceof LhsVariable && ((LhsVariable)u).numStars == 0 &&
+                   ((LhsVariable)u).var.declRef == iv)
+                    ++nAssign[0];
+            }
+        };
+        walkIterationCode(countAssign);
+        if(nAssign[0] != 1)
+            return;
+
+        // Find all a[i+c]:
+        final Effects e = new Effects();
+        noteLoopEffects(e);
+        final ArrayList<Variable> refs = new ArrayList<Variable>();
+        walkIterationCode(new Walker() {
+            public void visit(SyntaxUnit u) {
+                if(!(u instanceof Variable)) return;
+                Variable v = (Variable)u;
+                if(v.index == null || v.declRef == iv || v.index.offsetFrom(iv) == null)
+                    return;
+                if(v.declRef.type instanceof ArrayType || e.isUnchanged(v.declRef))
+                    refs.add(v);
+            }
+        });
+        if(refs.isEmpty())
+            return;
+
+        LinkedHashMap<VarDecl,LocalVarDecl> pointers = new LinkedHashMap<VarDecl,LocalVarDecl>();
+        for(Variable v: refs){
+            LocalVarDecl ptr = pointers.get(v.declRef);
+            if(ptr == null){
+                ptr = curFunc.newTemp(new PointerType(v.declRef.type.getElemType()));
+                pointers.put(v.declRef, ptr);
+                testPre.addStatm(new AssignStatm(new Assignment(ptr, 
+                    new Expression(new Primary(new Address(v.declRef, 
+                        new Expression(new Primary(new Variable(iv)))))))));
+                body.addStatm(new AssignStatm(new Assignment(ptr, 
+                    Expression.plus(new Primary(new Variable(ptr)), 
+                                    step*v.declRef.type.getElemType().size()))));
+            }
+            int offset = v.index.offsetFrom(iv);
+            v.declRef = ptr;  v.varName = ptr.name;
+            v.index = new Expression(new Primary(new Number(offset)));
+        }
+
+        // Is i now only used in the test?
+        final int[] nUses = {0};
+        walkIterationCode(new Walker() {
+            public void visit(SyntaxUnit u) {
+                if(u instanceof Variable && ((Variable)u).declRef == iv)
+                    ++nUses[0];
+            }
+        });
+        Integer adjust = exitAdjustment(iv, step, e);
+        if(nUses[0] != 3 || adjust == null)  // In the test and in incr
+            return;
+
+        VarDecl base = pointers.keySet().iterator().next();
+        LocalVarDecl ptr = pointers.get(base), end = curFunc.newTemp(ptr.type);
+        Primary limit = ((Primary)test.secondTerm);
+        testPre.addStatm(new AssignStatm(new Assignment(end, 
+            new Expression(new Primary(new Address(base, 
+                Expression.plus(limit.copyTrivial(), adjust)))))));
+        bottomTest = new Expression(new Primary(new Variable(ptr)));
+        bottomTest.relOpr = new RelOpr();
+        bottomTest.relOpr.oprToken = notEqualToken;
+        bottomTest.secondTerm = new Primary(new Variable(end));
+        exitPost.addStatm(new AssignStatm(new Assignment(iv, 
+            Expression.plus(limit.copyTrivial(), adjust))));
+        removeIncrement();
+    }
+
+    /*
+     * If the test is "i < n" (or similar) and n is invariant, return
+     * the difference between n and the final value of i.
+     */
+    Integer exitAdjustment(VarDecl iv, int step, Effects e) {
+        if(test.relOpr == null || test.firstTerm.next != null || 
+           test.firstTerm.offsetFrom(iv) == null)
+            return null;
+        Primary limit = (Primary)test.secondTerm;
+        if(limit.next != null || !limit.isTrivialOperand() || !limit.operandIsInvariant(e) ||
+           (limit.o instanceof Variable && ((Variable)limit.o).declRef.type instanceof ArrayType))
+            return null;
+        Token op = test.relOpr.oprToken;
+        if(op == notEqualToken && Math.abs(step) == 1)
+            return 0;
+        if(step == 1 && op == lessToken)
+            return 0;
+        if(step == 1 && op == lessEqualToken)
+            return 1;
+        if(step == -1 && op == greaterToken)
+            return 0;
+        if(step == -1 && op == greaterEqualToken)
+            return -1;
+        return null;
+    }
+
+    /*
+     * Walk the code executed in every iteration.
+     */
+    void walkIterationCode(Walker w) {
+        test.walk(w);
+        body.walk(w);
+    }
+
+    /*
+     * Record the effects of the code executed in every iteration.
+     */
+    void noteLoopEffects(Effects e) {
+        test.noteEffects(e);
+        body.noteEffects(e);
+    }
+
+    void hoistFromRest(FuncDecl curFunc) {}
+
+    @Override void walk(Walker w) {
+        w.visit(this);
+        testPre.walk(w);  test.walk(w);
+        bodyPre.walk(w);  body.walk(w);
+        if(bottomTest != null)
+            bottomTest.walk(w);
+        exitPost.walk(w);
+    }
+
+    @Override void noteEffects(Effects e) {
+        testPre.noteEffects(e);
+        bodyPre.noteEffects(e);
+        noteLoopEffects(e);
+        exitPost.noteEffects(e);
+    }
+
+    @Override void hoistInvariants(FuncDecl curFunc, LoopStatm loop, boolean uncond) {
+        testPre.hoistInvariants(curFunc, loop, uncond);
+        test.hoistInvariants(curFunc, loop, loop.bodyPre, uncond);
+        bodyPre.hoistInvariants(curFunc, loop, false);
+        body.hoistInvariants(curFunc, loop, false);
+        exitPost.hoistInvariants(curFunc, loop, false);
+    }
+
+    /*
+     * Move the expression e to a new temporary computed in dest, and
+     * return a primary that reads the temporary.
+     */
+    Primary hoist(FuncDecl curFunc, Expression e, StatmList dest, Type t) {
+        LocalVarDecl tmp = curFunc.newTemp(t);
+        AssignStatm as = new AssignStatm(new Assignment(tmp, e));
+        as.lineNum = e.lineNum;
+        dest.addStatm(as);
+        return new Primary(new Variable(tmp));
+    }
+}
+
+/*
+ * A <for-statm>.
+ */
+class ForStatm extends LoopStatm {
+    Assignment first;
+    Assignment second;
+
+    @Override void check(DeclList curDecls) {
+        first.check(curDecls);
+        test.check(curDecls);
+        Log.noteTypeCheck("for (...; t; ...) ...", test.type, "t", lineNum);
+        if (test.type instanceof ValueType) {
+        // OK
+        } else {
+           error("For-test must be a value.");
+        }
+        second.check(curDecls);
+        body.check(curDecls);
+    }
+
+    /*
+     * The loop is rotated: the test is made once before entering the
+     * loop, and then at the bottom of every iteration.
+     */
+    @Override void genCode(FuncDecl curFunc) {
+        String loopLabel = Code.getLocalLabel(), 
+        endLabel  = Code.getLocalLabel();
+
+        if(first != null)
+            first.genCode(curFunc);
+        Code.genInstr("", "", "", "Start for-statement");
+        Code.setLine(lineNum);
+        if(branchIndex >= 0)
+            Profiler.genBranchCount(branchIndex, false);
+        testPre.genCode(curFunc);
+        test.genJumpCode(curFunc, false, endLabel);
+        bodyPre.genCode(curFunc);
+        genLoopAlign();
+        Code.genInstr(loopLabel, "", "", "");
+        if(branchIndex >= 0)
+            Profiler.genBranchCount(branchIndex, true);
+        body.genCode(curFunc);
+        if(second != null){
+            Code.setLine(second.lineNum);
+            second.genCode(curFunc);
+        }
+        Code.setLine(lineNum);
+        (bottomTest != null ? bottomTest : test).genJumpCode(curFunc, true, loopLabel);
+        exitPost.genCode(curFunc);
+        Code.genInstr(endLabel, "", "", "End for-statement");
+    }
+
+    @Override void noteLoopEffects(Effects e) {
+        super.noteLoopEffects(e);
+        if(second != null)
+            second.noteEffects(e);
+    }
+
+    @Override Assignment findIncrement() {
+        return second;
+    }
+
+    @Override void genIr(SsaBuilder b, FuncDecl curFunc) {
+        first.genIr(b, curFunc);
+        super.genIr(b, curFunc);
+    }
+
+    @Override void genIrStep(SsaBuilder b, FuncDecl curFunc) {
+        if(second != null){
+            b.setLine(second.lineNum);
+            second.genIr(b, curFunc);
+        }
+    }
+
+    @Override void genC(FuncDecl curFunc) {
+        first.genC(curFunc);
+        super.genC(curFunc);
+    }
+
+    @Override void genCStep(FuncDecl curFunc) {
+        if(second != null)
+            second.genC(curFunc);
+    }
+
+    @Override StatmList liveCode() {
+        Integer t = test.testValue();
+        if(t == null || t != 0)
+            return null;
+        StatmList init = new StatmList();
+        init.addStatm(new AssignStatm(first));
+        return init;
+    }
+
+    /*
+     * The loop without its initialization (which is kept).
+     */
+    @Override SyntaxUnit deadCode() {
+        ForStatm fs = new ForStatm();
+        fs.lineNum = lineNum;  fs.test = test;  fs.body = body;
+        fs.second = second;
+        return fs;
+    }
+
+    @Override void removeIncrement() {
+        second = null;
+    }
+
+    @Override void walkIterationCode(Walker w) {
+        super.walkIterationCode(w);
+        if(second != null)
+            second.walk(w);
+    }
+
+    @Override void hoistFromRest(FuncDecl curFunc) {
+        Effects e = new Effects();
+        body.noteEffects(e);
+        if(second != null)
+            second.hoistInvariants(curFunc, this, bodyPre, !e.hasCall && !e.hasReturn);
+    }
+
+    @Override void noteEffects(Effects e) {
+        first.noteEffects(e);
+        super.noteEffects(e);
+    }
+
+    @Override void walk(Walker w) {
+        first.walk(w);
+        super.walk(w);
+        if(second != null)
+            second.walk(w);
+    }
+
+    @Override void hoistInvariants(FuncDecl curFunc, LoopStatm loop, boolean uncond) {
+        first.hoistInvariants(curFunc, loop, loop.bodyPre, uncond);
+        super.hoistInvariants(curFunc, loop, uncond);
+        if(second != null)
+            second.hoistInvariants(curFunc, loop, loop.bodyPre, false);
+        exitPost.hoistInvariants(curFunc, loop, false);
+    }
+
+    static ForStatm parse() {
+        ForStatm fs = new ForStatm();
+        Log.enterParser("<for-statm>");
+
+        Scanner.skip(forToken);
+        Scanner.skip(leftParToken); // for(
+        fs.first = Assignment.parse();
+        Scanner.skip(semicolonToken);// for(assignment;
+        fs.test = Expression.parse();
+        Scanner.skip(semicolonToken);// for(assignement; expression;
+        fs.second = Assignment.parse();
+        Scanner.skip(rightParToken); // for(assignement; expression; assignment)
+        Scanner.skip(leftCurlToken); 
+        fs.body = StatmList.parse();
+        Scanner.skip(rightCurlToken);
+
+        Log.leaveParser("</for-statm>");
+        return fs;
     }
 
     @Override void printTree() {
@@ -949,15 +2140,19 @@ class IfStatm extends Statement {
     @Override void genCode(FuncDecl curFunc) {
         String endLabel = Code.getLocalLabel(); 
         String elseLabel = "";
-        exp.genCode(curFunc);
         Code.genInstr("", "", "", "Start if-statement");
-        Code.genInstr("", "cmpl", "$0,%eax", "");
+        if(branchIndex >= 0)
+            Profiler.genBranchCount(branchIndex, false);
+        if(branchCounts != null && genProfiledCode(curFunc, endLabel))
+            return;
         if(elseBody != null){
             elseLabel = Code.getLocalLabel();
-            Code.genInstr("", "je", elseLabel, "");
+            exp.genJumpCode(curFunc, false, elseLabel);
         }else{
-            Code.genInstr("", "je", endLabel, "");
+            exp.genJumpCode(curFunc, false, endLabel);
         }
+        if(branchIndex >= 0)
+            Profiler.genBranchCount(branchIndex, true);
         ifBody.genCode(curFunc);
         if(elseBody != null){
             Code.genInstr("", "jmp", endLabel, "");
@@ -967,6 +2162,129 @@ class IfStatm extends Statement {
         Code.genInstr(endLabel, "", "", "End if-statement");
     }
 
+    /*
+     * Lay out the statement as the profile suggests. A part which is
+     * run in less than 1% of the cases is moved out of line (see
+     * Code.startColdCode); otherwise, if the else-part is run at least
+     * twice as often as the then-part, it follows the test. Returns
+     * false if the usual layout will do.
+     */
+    boolean genProfiledCode(FuncDecl curFunc, String endLabel) {
+        long reached = branchCounts[0], taken = branchCounts[1];
+        if(reached == 0)
+            return false;
+        StatmList hot, cold;
+        if(100*taken < reached && Code.canMoveCode()){
+            hot = elseBody;  cold = ifBody;
+        }else if(elseBody != null && 100*(reached-taken) < reached && Code.canMoveCode()){
+            hot = ifBody;  cold = elseBody;
+        }else if(elseBody != null && 3*taken <= reached){
+            String thenLabel = Code.getLocalLabel();
+            exp.genJumpCode(curFunc, true, thenLabel);
+            elseBody.genCode(curFunc);
+            Code.genInstr("", "jmp", endLabel, "");
+            Code.genInstr(thenLabel, "", "", "Start then-statement");
+            ifBody.genCode(curFunc);
+            Code.genInstr(endLabel, "", "", "End if-statement");
+            return true;
+        }else{
+            return false;
+        }
+
+        String coldLabel = Code.getLocalLabel();
+        exp.genJumpCode(curFunc, cold == ifBody, coldLabel);
+        if(hot != null)
+            hot.genCode(curFunc);
+        Code.genInstr(endLabel, "", "", "End if-statement");
+        Code.startColdCode();
+        Code.genInstr(coldLabel, "", "", "Start cold " + (cold == ifBody ? "then" : "else") + 
+                      "-statement (line " + lineNum + ")");
+        cold.genCode(curFunc);
+        Code.genInstr("", "jmp", endLabel, "");
+        Code.endColdCode();
+        return true;
+    }
+
+    @Override void optimize(FuncDecl curFunc) {
+        ifBody.optimize(curFunc);
+        if(elseBody != null)
+            elseBody.optimize(curFunc);
+    }
+
+    @Override void genIr(SsaBuilder b, FuncDecl curFunc) {
+        Block thenPart = b.newBlock(), end = b.newBlock(), 
+            elsePart = (elseBody != null ? b.newBlock() : end);
+        b.branch(exp.genIr(b, curFunc), thenPart, elsePart);
+        b.sealBlock(thenPart);  b.startBlock(thenPart);
+        ifBody.genIr(b, curFunc);
+        b.jump(end);
+        if(elseBody != null){
+            b.sealBlock(elsePart);  b.startBlock(elsePart);
+            elseBody.genIr(b, curFunc);
+            b.jump(end);
+        }
+        b.sealBlock(end);  b.startBlock(end);
+    }
+
+    @Override void genC(FuncDecl curFunc) {
+        CCode.genLine("if (" + exp.genC(curFunc).text + ") {");
+        CCode.indent();
+        ifBody.genC(curFunc);
+        CCode.outdent();
+        if(elseBody != null){
+            CCode.genLine("} else {");
+            CCode.indent();
+            elseBody.genC(curFunc);
+            CCode.outdent();
+        }
+        CCode.genLine("}");
+    }
+
+    @Override StatmList liveCode() {
+        Integer t = exp.testValue();
+        if(t == null)
+            return null;
+        if(t != 0)
+            return ifBody;
+        return elseBody != null ? elseBody : new StatmList();
+    }
+
+    /*
+     * The test and the branch which is never taken.
+     */
+    @Override SyntaxUnit deadCode() {
+        IfStatm is = new IfStatm();
+        is.lineNum = lineNum;  is.exp = exp;
+        if(exp.testValue() != 0){
+            is.ifBody = new StatmList();  is.elseBody = elseBody;
+        }else{
+            is.ifBody = ifBody;
+            is.elseBody = (elseBody != null ? new StatmList() : null);
+        }
+        return is;
+    }
+
+    @Override void walk(Walker w) {
+        w.visit(this);
+        exp.walk(w);  ifBody.walk(w);
+        if(elseBody != null)
+            elseBody.walk(w);
+    }
+
+    @Override void noteEffects(Effects e) {
+        exp.noteEffects(e);
+        ifBody.noteEffects(e);
+        if(elseBody != null)
+            elseBody.noteEffects(e);
+    }
+
+    @Override void hoistInvariants(FuncDecl curFunc, LoopStatm loop, boolean uncond) {
+        exp.hoistInvariants(curFunc, loop, loop.bodyPre, uncond);
+        ifBody.hoistInvariants(curFunc, loop, false);
+        if(elseBody != null)
+            elseBody.hoistInvariants(curFunc, loop, false);
+    }
+
     static IfStatm parse() {
         Log.enterParser("<if-statm>");
 
@@ -1027,8 +2345,113 @@ class ReturnStatm extends Statement{
         }else
             error("Return value must be the same as the declared function-value");
 
+        FunctionCall call = tailCall();
+        if(call != null && curFunc.allowsTailCalls() &&
+           (call.declRef == curFunc || isSiblingCall(curFunc, call))){
+            genTailCallCode(curFunc, call);  return;
+        }
         retVal.genCode(curFunc);
-        Code.genInstr("","jmp",".exit$"+curFunc.name,"");
+        if(curFunc.body.statList.lastStatm() != this)
+            Code.genInstr("","jmp",curFunc.exitLabel,"");
+    }
+
+    @Override void genIr(SsaBuilder b, FuncDecl curFunc) {
+        if(curFunc.irReturn != null){
+            // The function is inlined:
+            b.writeVariable(curFunc, retVal.genIr(b, curFunc));
+            b.jump(curFunc.irReturn);
+            return;
+        }
+        FunctionCall call = tailCall();
+        if(call != null && curFunc.allowsTailCalls()){
+            if(call.declRef == curFunc){
+                Declaration d = curFunc.funcParams.firstDecl;
+                for(Instr arg: call.genIrArgs(b, curFunc)){
+                    if(d == null) break;
+                    b.writeVariable(d, arg);
+                    d = d.nextDecl;
+                }
+                b.jump(curFunc.irStart);
+                return;
+            }
+            if(isSiblingCall(curFunc, call)){
+                Instr tc = new Instr(Instr.Op.TAILCALL);
+                tc.args.addAll(call.genIrArgs(b, curFunc));
+                tc.name = call.funcName;
+                tc.value = call.numRegArgs();
+                b.emit(tc);
+                return;
+            }
+        }
+        b.emit(Instr.Op.RET, retVal.genIr(b, curFunc));
+    }
+
+    /*
+     * May the tail call of another function reuse the frame? Its stack
+     * arguments must fit where ours are, and with profiling, it must
+     * return through our epilogue (where the timing stops).
+     */
+    boolean isSiblingCall(FuncDecl curFunc, FunctionCall call) {
+        return !Code.profile && call.numStackArgs() <= curFunc.numStackParams();
+    }
+
+    /*
+     * (gcc makes the tail calls itself.)
+     */
+    @Override void genC(FuncDecl curFunc) {
+        CExpr v = retVal.genC(curFunc);
+        CCode.genLine("return " + v.as(curFunc.returnsPointer()) + ";");
+    }
+
+    /*
+     * If this is "return f(...);", return the call.
+     */
+    FunctionCall tailCall() {
+        Primary p = retVal.firstTerm;
+        if(retVal.relOpr != null || p.next != null || p.prefixOpr != ' ' ||
+           !(p.o instanceof FunctionCall) || ((FunctionCall)p.o).inlineVars != null)
+            return null;
+        return (FunctionCall)p.o;
+    }
+
+    /*
+     * A tail call reuses the current frame: the arguments are stored
+     * in the parameter area, and a call of the function itself jumps
+     * to its start, while a call of another function jumps to it
+     * after the frame has been removed. (The caller removes the
+     * parameters on the stack, so the callee may not use more of them.)
+     */
+    void genTailCallCode(FuncDecl curFunc, FunctionCall call) {
+        if(call.declRef == curFunc){
+            int nArgs = call.genArgs(curFunc, 0);
+            Declaration d = curFunc.funcParams.firstDecl;
+            for(int i = 0;  i < nArgs;  ++i){
+                Code.genInstr("", "popl", "%eax", "");
+                Code.genInstr("", "movl", "%eax,"+d.assemblerName, d.name);
+                d = d.nextDecl;
+            }
+            Code.genInstr("", "jmp", ".start$"+curFunc.name, "Tail recursion");
+        }else{
+            int nArgs = call.genArgs(curFunc, call.numRegArgs());
+            for(int i = 0;  i < nArgs;  ++i)
+                Code.genInstr("", "popl", (8+4*i)+"(%ebp)", "");
+            Code.genInstr("", "leave", "", "");
+            Code.genInstr("", "jmp", call.funcName, "Tail call " + call.funcName);
+        }
+    }
+
+    @Override void walk(Walker w) {
+        w.visit(this);
+        retVal.walk(w);
+    }
+
+    @Override void noteEffects(Effects e) {
+        retVal.noteEffects(e);
+        e.hasReturn = true;
+    }
+
+    @Override void hoistInvariants(FuncDecl curFunc, LoopStatm loop, boolean uncond) {
+        retVal.hoistInvariants(curFunc, loop, loop.bodyPre, uncond);
     }
 
     static ReturnStatm parse() {
@@ -1053,9 +2476,8 @@ class ReturnStatm extends Statement{
 /*
  * A <while-statm>.
  */
-class WhileStatm extends Statement {
-    Expression test;
-    StatmList body;
+class WhileStatm extends LoopStatm {
+    AssignStatm incrStatm = null;  // Stepping the induction variable
 
     @Override void check(DeclList curDecls) {
        test.check(curDecls);
@@ -1069,21 +2491,45 @@ class WhileStatm extends Statement {
        }
     }
 
+    /*
+     * The loop is rotated: the test is made once before entering the
+     * loop, and then at the bottom of every iteration.
+     */
     @Override void genCode(FuncDecl curFunc) {
-	String testLabel = Code.getLocalLabel(), 
+	String loopLabel = Code.getLocalLabel(), 
 	       endLabel  = Code.getLocalLabel();
 
-	Code.genInstr(testLabel, "", "", "Start while-statement");
-	test.genCode(curFunc);
-
-	Code.genInstr("", "cmpl", "$0,%eax", "");
-	Code.genInstr("", "je", endLabel, "");
+	Code.genInstr("", "", "", "Start while-statement");
+	Code.setLine(lineNum);
+	if(branchIndex >= 0)
+	    Profiler.genBranchCount(branchIndex, false);
+	testPre.genCode(curFunc);
+	test.genJumpCode(curFunc, false, endLabel);
+	bodyPre.genCode(curFunc);
+	genLoopAlign();
+	Code.genInstr(loopLabel, "", "", "");
+	if(branchIndex >= 0)
+	    Profiler.genBranchCount(branchIndex, true);
 	body.genCode(curFunc);
 
-	Code.genInstr("", "jmp", testLabel, "");
+	Code.setLine(lineNum);
+	(bottomTest != null ? bottomTest : test).genJumpCode(curFunc, true, loopLabel);
+	exitPost.genCode(curFunc);
 	Code.genInstr(endLabel, "", "", "End while-statement");
     }
 
+    @Override Assignment findIncrement() {
+	Statement last = body.lastStatm();
+	if(!(last instanceof AssignStatm))
+	    return null;
+	incrStatm = (AssignStatm)last;
+	return incrStatm.a;
+    }
+
+    @Override void removeIncrement() {
+	body.removeStatm(incrStatm);
+    }
+
     static WhileStatm parse() {
 	Log.enterParser("<while-statm>");
 
@@ -1120,6 +2566,12 @@ class LhsVariable extends SyntaxUnit {
     Variable var;
     Type type;
 
+    LhsVariable() {}
+
+    LhsVariable(Variable v) {
+        var = v;  type = v.type;
+    }
+
     @Override void check(DeclList curDecls) {
 	var.check(curDecls);
 	type = var.type;
@@ -1137,6 +2589,60 @@ class LhsVariable extends SyntaxUnit {
 	    Code.genInstr("", "movl", "(%eax),%eax", "  *");
     }
 
+    /*
+     * The location as an instruction operand (if it can be stored into
+     * directly); otherwise null.
+     */
+    String memOperand() {
+	return numStars == 0 && Syntax.useMemOperands ? var.memOperand() : null;
+    }
+
+    /*
+     * The address to store into (in the IR).
+     */
+    Instr genIrAddress(SsaBuilder b, FuncDecl curFunc) {
+	Instr addr;
+	int n = numStars;
+	if (n > 0 && var.index == null && var.declRef.isSsaVar()) {
+	    addr = b.readVariable(var.declRef);  --n;
+	} else {
+	    addr = var.genIrAddress(b, curFunc);
+	}
+	for (int i = 1;  i <= n;  ++i)
+	    addr = b.load(addr, Types.pointerSize);
+	return addr;
+    }
+
+    /*
+     * The location as a C lvalue.
+     */
+    String genC(FuncDecl curFunc) {
+	if (numStars == 0)
+	    return var.genCLvalue(curFunc);
+	CExpr v = var.genC(curFunc);
+	Type t = var.type;
+	for (int i = 1;  i <= numStars;  ++i) {
+	    v = CExpr.deref(v, t.getElemType());  t = t.getElemType();
+	}
+	return v.text;
+    }
+
+    @Override void walk(Walker w) {
+        w.visit(this);
+        var.walk(w);
+    }
+
+    void noteEffects(Effects e) {
+        if(var.index != null)
+            var.index.noteEffects(e);
+        if(numStars > 0 || (var.index != null && !(var.declRef.type instanceof ArrayType)))
+            e.pointerStore = true;
+        else if(var.index != null)
+            e.stored.add(var.declRef);
+        else
+            e.assigned.add(var.declRef);
+    }
+
     static LhsVariable parse() {
 	Log.enterParser("<lhs-variable>");
 
@@ -1164,6 +2670,14 @@ class Assignment extends SyntaxUnit{
     LhsVariable var;
     Expression exp;
 
+    Assignment() {}
+
+    Assignment(VarDecl d, Expression e) {
+        var = new LhsVariable(new Variable(d));
+        exp = e;
+        lineNum = var.lineNum = var.var.lineNum = e.lineNum;
+    }
+
     @Override void check(DeclList curDecls){
         var.check(curDecls);
         exp.check(curDecls);
@@ -1182,12 +2696,59 @@ class Assignment extends SyntaxUnit{
         }
     }
 
+    /*
+     * Assignments to SSA variables are recorded as copies (which are
+     * removed by the copy propagation pass).
+     */
+    void genIr(SsaBuilder b, FuncDecl curFunc) {
+        VarDecl d = var.var.declRef;
+        if(var.numStars == 0 && var.var.index == null && d.isSsaVar()){
+            b.writeVariable(d, b.emit(Instr.Op.COPY, exp.genIr(b, curFunc)));
+        }else{
+            Instr addr = var.genIrAddress(b, curFunc);
+            b.store(addr, exp.genIr(b, curFunc), var.type.size());
+        }
+    }
+
+    /*
+     * If the value calls a function, the address of an indexed or
+     * dereferenced location is computed first (as it is in the x86
+     * code).
+     */
+    void genC(FuncDecl curFunc) {
+        String dest;
+        if(exp.hasCall() && (var.numStars > 0 || var.var.index != null))
+            dest = "*" + CCode.pointerCast(var.type) + 
+                CCode.temp(true, "(char *)&" + var.genC(curFunc));
+        else
+            dest = var.genC(curFunc);
+        CCode.genLine(dest + " = " + exp.genC(curFunc).as(CCode.isPointer(var.type)) + ";");
+    }
+
     @Override void genCode(FuncDecl curFunc){
-        var.genCode(curFunc);
-        Code.genInstr("", "pushl", "%eax", "");
-        exp.genCode(curFunc);
-        Code.genInstr("", "popl", "%edx", "");
-        Code.genInstr("", "movl", "%eax,(%edx)", "");
+        String dest = var.memOperand(), src = exp.simpleOperand();
+        if(dest != null){
+            if(src != null && src.startsWith("$")){
+                Code.genInstr("", "movl", src+","+dest, var.var.varName);
+            }else{
+                exp.genCode(curFunc);
+                Code.genInstr("", "movl", "%eax,"+dest, var.var.varName);
+            }
+        }else if(src != null){
+            // No need to save the address while computing the value:
+            var.genCode(curFunc);
+            if(! src.startsWith("$")){
+                Code.genInstr("", "movl", src+",%edx", "");
+                src = "%edx";
+            }
+            Code.genInstr("", "movl", src+",(%eax)", "");
+        }else{
+            var.genCode(curFunc);
+            Code.genInstr("", "pushl", "%eax", "");
+            exp.genCode(curFunc);
+            Code.genInstr("", "popl", "%edx", "");
+            Code.genInstr("", "movl", "%eax,(%edx)", "");
+        }
     }
 
     @Override void printTree(){
@@ -1196,6 +2757,22 @@ class Assignment extends SyntaxUnit{
         exp.printTree();
     }
 
+    @Override void walk(Walker w) {
+        w.visit(this);
+        var.walk(w);  exp.walk(w);
+    }
+
+    void noteEffects(Effects e) {
+        var.noteEffects(e);
+        exp.noteEffects(e);
+    }
+
+    void hoistInvariants(FuncDecl curFunc, LoopStatm loop, StatmList dest, boolean uncond) {
+        if(var.var.index != null)
+            var.var.index.hoistInvariants(curFunc, loop, dest, uncond);
+        exp.hoistInvariants(curFunc, loop, dest, uncond);
+    }
+
     static Assignment parse(){
         Log.enterParser("<assignment>");
 
@@ -1233,6 +2810,12 @@ class ExprList extends SyntaxUnit {
         }
     }
 
+    @Override void walk(Walker w) {
+        w.visit(this);
+        for(Expression cur = firstExpr;  cur != null;  cur = cur.nextExpr)
+            cur.walk(w);
+    }
+
     static ExprList parse() {
         Expression lastExpr = null;
 
@@ -1272,8 +2855,9 @@ class ExprList extends SyntaxUnit {
  */
 class Expression extends SyntaxUnit {
     Expression nextExpr = null;
-    Term firstTerm, secondTerm = null;
-    Operator relOpr = null;
+    Primary firstTerm;
+    Term secondTerm = null;
+    RelOpr relOpr = null;
     Type type = null;
 
     @Override void check(DeclList curDecls) {
@@ -1312,31 +2896,179 @@ class Expression extends SyntaxUnit {
     @Override void genCode(FuncDecl curFunc) {
         firstTerm.genCode(curFunc);
         if(relOpr != null){
+            String op = ((Primary)secondTerm).chainOperand();
+            if(op != null){
+                Code.genInstr("","cmpl",op+",%eax","");
+                relOpr.genSetCode();
+                return;
+            }
+            Code.genInstr("","pushl","%eax","");
+            secondTerm.genCode(curFunc);
+            relOpr.genCode(curFunc);
+        }
+    }
+
+    /*
+     * The value as an instruction operand, if it can be used without
+     * any computation (see Primary.simpleOperand); otherwise null.
+     */
+    String simpleOperand() {
+        return relOpr == null ? firstTerm.chainOperand() : null;
+    }
+
+    Instr genIr(SsaBuilder b, FuncDecl curFunc) {
+        Instr v = firstTerm.genIr(b, curFunc);
+        if(relOpr == null)
+            return v;
+        Instr cmp = new Instr(Instr.Op.CMP, v, ((Primary)secondTerm).genIr(b, curFunc));
+        cmp.cond = relOpr.condition(false);
+        return b.emit(cmp);
+    }
+
+    /*
+     * The expression in C. If it calls a function (and has more than
+     * one operand), every operand is first computed into a temporary, so that the operands are
+     * evaluated in the same order as in the x86 code (C leaves the
+     * order unspecified).
+     */
+    CExpr genC(FuncDecl curFunc) {
+        boolean ordered = hasCall() && (relOpr != null || firstTerm.next != null);
+        CExpr v = firstTerm.genC(curFunc, ordered);
+        if(relOpr == null)
+            return v;
+        CExpr w = ((Primary)secondTerm).genC(curFunc, ordered);
+        String op = " " + relOpr.cOperator() + " ";
+        if(!v.isPointer && !w.isPointer)
+            return new CExpr("(" + v.text + op + w.text + ")", false);
+        return new CExpr("((alboc_intptr)" + v.text + op + "(alboc_intptr)" + w.text + ")", false);
+    }
+
+    Expression() {}
+
+    Expression(Primary first) {
+        firstTerm = first;  type = Types.intType;  lineNum = first.lineNum;
+    }
+
+    /*
+     * Create the expression "p + c".
+     */
+    static Expression plus(Primary p, int c) {
+        Expression e = new Expression(p);
+        if(c != 0){
+            p.next = new Term();
+            p.next.termOpr = (c < 0 ? '-' : '+');
+            p.next.next = new Primary(new Number(Math.abs(c)));
+        }
+        return e;
+    }
+
+    boolean isConstant() {
+        return relOpr == null && firstTerm.next == null && firstTerm.isConstant();
+    }
+
+    /*
+     * The value of this expression if it is known at compile time
+     * (as a constant or a comparison of two constants); otherwise null.
+     */
+    Integer testValue() {
+        if(firstTerm.next != null || !firstTerm.isConstant())
+            return null;
+        if(relOpr == null)
+            return firstTerm.constValue();
+        Primary p = (Primary)secondTerm;
+        if(p.next != null || !p.isConstant())
+            return null;
+        return relOpr.evaluate(firstTerm.constValue(), p.constValue()) ? 1 : 0;
+    }
+
+    int constValue() {
+        return firstTerm.constValue();
+    }
+
+    /*
+     * If this expression is "v", "v + c" or "v - c", return c;
+     * otherwise return null.
+     */
+    Integer offsetFrom(VarDecl v) {
+        return relOpr == null ? firstTerm.offsetFrom(v) : null;
+    }
+
+
+    @Override void walk(Walker w) {
+        w.visit(this);
+        firstTerm.walk(w);
+        if(secondTerm != null)
+            secondTerm.walk(w);
+    }
+
+    boolean hasCall() {
+        return firstTerm.chainHasCall() || (secondTerm != null && ((Primary)secondTerm).chainHasCall());
+    }
+
+    void noteEffects(Effects e) {
+        if(hasCall())
+            e.hasCall = true;
+    }
+
+    boolean isInvariant(Effects e) {
+        return firstTerm.chainIsInvariant(e) && (secondTerm == null || ((Primary)secondTerm).chainIsInvariant(e));
+    }
+
+    boolean mayTrap() {
+        return firstTerm.chainMayTrap() || (secondTerm != null && ((Primary)secondTerm).chainMayTrap());
+    }
+
+    /*
+     * Move the largest invariant parts of this expression out of loop,
+     * into temporaries computed in dest. Computations that may trap
+     * (loads and divisions) are only moved if uncond is true, i.e., if
+     * they would have been performed anyway.
+     */
+    void hoistInvariants(FuncDecl curFunc, LoopStatm loop, StatmList dest, boolean uncond) {
+        boolean trivial = relOpr == null && firstTerm.next == null && firstTerm.isTrivialOperand();
+        if(!trivial && isInvariant(loop.effects) && (uncond || !mayTrap())){
+            Expression e = new Expression();
+            e.firstTerm = firstTerm;  e.relOpr = relOpr;  e.secondTerm = secondTerm;
+            e.type = type;  e.lineNum = lineNum;
+            firstTerm = loop.hoist(curFunc, e, dest, type);
+            relOpr = null;  secondTerm = null;
+            return;
+        }
+        firstTerm = firstTerm.hoistInvariants(curFunc, loop, dest, uncond);
+        if(secondTerm != null)
+            secondTerm = ((Primary)secondTerm).hoistInvariants(curFunc, loop, dest, uncond);
+    }
+
+    /**
+     * Generate code that jumps to label if the value of the expression
+     * is true (when jumpIf is true) or false (when jumpIf is false).
+     * A relational expression jumps directly on the flags from its
+     * comparison, so no 0/1 value is computed in %eax.
+     */
+    void genJumpCode(FuncDecl curFunc, boolean jumpIf, String label) {
+        firstTerm.genCode(curFunc);
+        if(relOpr == null){
+            Code.genInstr("","cmpl","$0,%eax","");
+            Code.genInstr("",(jumpIf ? "jne" : "je"),label,"");
+            return;
+        }
+        String op = ((Primary)secondTerm).chainOperand();
+        if(op != null){
+            Code.genInstr("","cmpl",op+",%eax","");
+        }else{
             Code.genInstr("","pushl","%eax","");
             secondTerm.genCode(curFunc);
             Code.genInstr("","popl","%ecx","");
             Code.genInstr("","cmpl","%eax,%ecx","");
-            Code.genInstr("","movl","$0,%eax","");
-            if(relOpr.oprToken == equalToken)
-                Code.genInstr("","sete","%al","");
-            else if(relOpr.oprToken == notEqualToken)
-                Code.genInstr("","setne","%al","");
-            else if(relOpr.oprToken == lessToken)
-                Code.genInstr("","setl","%al","");
-            else if(relOpr.oprToken == lessEqualToken)
-                Code.genInstr("","setle","%al","");
-            else if(relOpr.oprToken == greaterToken)
-                Code.genInstr("","setg","%al","");
-            else if(relOpr.oprToken == greaterEqualToken)
-                Code.genInstr("","setge","%al","");
         }
+        Code.genInstr("","j"+relOpr.condition(!jumpIf),label,"");
     }
 
     static Expression parse() {
 	Log.enterParser("<expression>");
 
 	Expression e = new Expression();
-	e.firstTerm = Term.parse();
+	e.firstTerm = (Primary)Term.parse();
 	if (Token.isRelOperator(Scanner.curToken)) {
 	    e.relOpr = RelOpr.parse();
 	    e.secondTerm = Term.parse();
@@ -1363,14 +3095,305 @@ class Expression extends SyntaxUnit {
  * A <primary>
  */
 class Primary extends Factor {
+    /*
+     * Generate code for the whole chain of terms and factors starting
+     * with this primary. Factor operators bind tighter than term
+     * operators, and both are left-associative.
+     */
     @Override void genCode(FuncDecl curFunc) {
+        Term opr = genProductCode(curFunc);
+        while(opr != null){
+            opr.genCode(curFunc);
+            opr = ((Primary)opr.next).skipProduct();
+        }
+    }
+
+    /*
+     * Generate code for the product starting with this primary, and
+     * return the term operator following it (if any).
+     */
+    Term genProductCode(FuncDecl curFunc) {
+        Term opr = next;
+        if(isConstant() && opr != null && opr.factOpr == '*' && !((Primary)opr.next).isConstant()){
+            // c * x is handled as x * c:
+            ((Primary)opr.next).genOperandCode(curFunc);
+            Code.genMulConst(constValue());
+            opr = opr.next.next;
+        }else{
+            genOperandCode(curFunc);
+        }
+        while(opr != null && opr.factOpr != ' '){
+            opr.genCode(curFunc);
+            opr = opr.next.next;
+        }
+        return opr;
+    }
+
+    /*
+     * Add the whole chain starting with this primary to the IR.
+     */
+    Instr genIr(SsaBuilder b, FuncDecl curFunc) {
+        Instr v = genIrProduct(b, curFunc);
+        Term opr = skipProduct();
+        while(opr != null){
+            Primary p = (Primary)opr.next;
+            v = b.emit(opr.termOpr == '+' ? Instr.Op.ADD : Instr.Op.SUB, 
+                       v, p.genIrProduct(b, curFunc));
+            opr = p.skipProduct();
+        }
+        return v;
+    }
+
+    Instr genIrProduct(SsaBuilder b, FuncDecl curFunc) {
+        Instr v = genIrOperand(b, curFunc);
+        Term opr = next;
+        while(opr != null && opr.factOpr != ' '){
+            Primary p = (Primary)opr.next;
+            v = b.emit(opr.factOpr == '*' ? Instr.Op.MUL : Instr.Op.DIV, 
+                       v, p.genIrOperand(b, curFunc));
+            opr = p.next;
+        }
+        return v;
+    }
+
+    Instr genIrOperand(SsaBuilder b, FuncDecl curFunc) {
+        Instr v = o.genIr(b, curFunc);
+        if(prefixOpr == '-')
+            v = b.emit(Instr.Op.NEG, v);
+        if(prefixOpr == '*')
+            v = b.load(v, o.type.getElemType() == null ? 4 : o.type.getElemType().size());
+        return v;
+    }
+
+    /*
+     * The whole chain starting with this primary in C. If ordered is
+     * set, every operand is computed into a temporary first (see
+     * Expression.genC).
+     */
+    CExpr genC(FuncDecl curFunc, boolean ordered) {
+        CExpr v = genCProduct(curFunc, ordered);
+        Term opr = skipProduct();
+        while(opr != null){
+            Primary p = (Primary)opr.next;
+            v = CExpr.sum(v, opr.termOpr, p.genCProduct(curFunc, ordered));
+            opr = p.skipProduct();
+        }
+        return v;
+    }
+
+    CExpr genCProduct(FuncDecl curFunc, boolean ordered) {
+        CExpr v = genCOperand(curFunc, ordered);
+        Term opr = next;
+        while(opr != null && opr.factOpr != ' '){
+            Primary p = (Primary)opr.next;
+            String a = v.asInt(), b = p.genCOperand(curFunc, ordered).asInt();
+            if(opr.factOpr == '*')
+                v = new CExpr("alboc_mul(" + a + ", " + b + ")", false);
+            else
+                v = new CExpr("(" + a + " / " + b + ")", false);
+            opr = p.next;
+        }
+        return v;
+    }
+
+    CExpr genCOperand(FuncDecl curFunc, boolean ordered) {
+        if(isConstant())
+            return new CExpr(CCode.intConst(constValue()), false);
+        CExpr v = o.genC(curFunc);
+        if(prefixOpr == '-')
+            v = new CExpr("alboc_neg(" + v.asInt() + ")", false);
+        if(prefixOpr == '*')
+            v = CExpr.deref(v, o.type == null ? null : o.type.getElemType());
+        if(ordered)
+            v = new CExpr(CCode.temp(v.isPointer, v.text), v.isPointer);
+        return v;
+    }
+
+    Term skipProduct() {
+        Term opr = next;
+        while(opr != null && opr.factOpr != ' ')
+            opr = opr.next.next;
+        return opr;
+    }
+
+    Primary() {}
+
+    Primary(Operand o) {
+        this.o = o;  type = o.type;  lineNum = o.lineNum;
+    }
+
+    /*
+     * Is this primary just a number or a simple variable (so that
+     * there is nothing to gain by moving it out of a loop)?
+     */
+    boolean isTrivialOperand() {
+        return prefixOpr != '*' && 
+            (o instanceof Number || (o instanceof Variable && ((Variable)o).index == null));
+    }
+
+    /*
+     * If this sum is "v", "v + c" or "v - c", return c; otherwise
+     * return null.
+     */
+    Integer offsetFrom(VarDecl v) {
+        if(prefixOpr != ' ' || !(o instanceof Variable))
+            return null;
+        Variable var = (Variable)o;
+        if(var.declRef != v || var.index != null)
+            return null;
+        if(next == null)
+            return 0;
+        Primary c = (Primary)next.next;
+        if(next.termOpr == ' ' || !c.isConstant() || c.next != null)
+            return null;
+        return next.termOpr == '+' ? c.constValue() : -c.constValue();
+    }
+
+    /*
+     * Make a copy of a trivial operand.
+     */
+    Primary copyTrivial() {
+        Primary p;
+        if(o instanceof Number)
+            p = new Primary(new Number(((Number)o).numVal));
+        else
+            p = new Primary(new Variable(((Variable)o).declRef));
+        p.prefixOpr = prefixOpr;
+        return p;
+    }
+
+    boolean operandIsInvariant(Effects e) {
+        if(prefixOpr == '*' && !e.memoryUnchanged())
+            return false;
+        return o.isInvariant(e);
+    }
+
+    boolean operandMayTrap() {
+        return prefixOpr == '*' || o.mayTrap();
+    }
+
+    /*
+     * The following methods handle the whole chain of factors and terms
+     * starting with this primary.
+     */
+    boolean chainHasCall() {
+        for(Term t = this;  t != null;  t = t.next)
+            if(t instanceof Primary && t.o.hasCall())
+                return true;
+        return false;
+    }
+
+    boolean chainIsInvariant(Effects e) {
+        return productIsInvariant(e, null);
+    }
+
+    boolean chainMayTrap() {
+        return productMayTrap(null);
+    }
+
+    /*
+     * Check the product starting with this primary (or, if end is null,
+     * the whole chain).
+     */
+    boolean productIsInvariant(Effects e, Term end) {
+        for(Term t = this;  t != end;  t = t.next)
+            if(t instanceof Primary && !((Primary)t).operandIsInvariant(e))
+                return false;
+        return true;
+    }
+
+    boolean productMayTrap(Term end) {
+        for(Term t = this;  t != end;  t = t.next){
+            if(t instanceof Primary && ((Primary)t).operandMayTrap())
+                return true;
+            if(t.factOpr == '/' && (!((Primary)t.next).isConstant() || ((Primary)t.next).constValue() == 0))
+                return true;
+        }
+        return false;
+    }
+
+    /*
+     * Move invariant products and operands out of loop; returns the new
+     * head of the chain.
+     */
+    Primary hoistInvariants(FuncDecl curFunc, LoopStatm loop, StatmList dest, boolean uncond) {
+        Primary head = this;
+        Term prevOpr = null;
+        Primary p = this;
+        while(p != null){
+            Term end = p.skipProduct();
+            if(p.next != end && p.productIsInvariant(loop.effects, end) && (uncond || !p.productMayTrap(end))){
+                Term last = p;
+                while(last.next != end)
+                    last = last.next;
+                last.next = null;
+                Expression e = new Expression();
+                e.firstTerm = p;  e.type = Types.intType;  e.lineNum = p.lineNum;
+                Primary tmp = loop.hoist(curFunc, e, dest, Types.intType);
+                tmp.next = end;
+                if(prevOpr == null) head = tmp; else prevOpr.next = tmp;
+            }else{
+                for(Term t = p;  t != end;  t = t.next)
+                    if(t instanceof Primary)
+                        ((Primary)t).hoistOperand(curFunc, loop, dest, uncond);
+            }
+            prevOpr = end;
+            p = (end == null ? null : (Primary)end.next);
+        }
+        return head;
+    }
+
+    void hoistOperand(FuncDecl curFunc, LoopStatm loop, StatmList dest, boolean uncond) {
+        if(!isTrivialOperand() && operandIsInvariant(loop.effects) && (uncond || !operandMayTrap())){
+            Primary p = new Primary(o);
+            p.prefixOpr = prefixOpr;  p.type = type;
+            Expression e = new Expression();
+            e.firstTerm = p;  e.type = Types.intType;  e.lineNum = lineNum;
+            Type t = (prefixOpr == ' ' ? o.type : Types.intType);
+            o = loop.hoist(curFunc, e, dest, t).o;
+            prefixOpr = ' ';
+        }else{
+            o.hoistInvariants(curFunc, loop, dest, uncond);
+        }
+    }
+
+    void genOperandCode(FuncDecl curFunc) {
         o.genCode(curFunc);
         if(prefixOpr == '-')
             Code.genInstr("","negl","%eax","");
         if(prefixOpr == '*')
             Code.genInstr("","movl","(%eax),%eax","");
-        if(next != null)
-            next.genCode(curFunc);
+    }
+
+    boolean isConstant() {
+        return o instanceof Number && prefixOpr != '*';
+    }
+
+    /*
+     * This primary as an instruction operand: "$c" for a constant, or
+     * a register or memory location for a variable (see
+     * Variable.memOperand). Returns null if the value must be computed.
+     */
+    String simpleOperand() {
+        if(!Syntax.useMemOperands)
+            return null;
+        if(isConstant())
+            return "$" + constValue();
+        if(prefixOpr == ' ' && o instanceof Variable)
+            return ((Variable)o).memOperand();
+        return null;
+    }
+
+    /*
+     * The same, but only if this primary is the whole chain.
+     */
+    String chainOperand() {
+        return next == null ? simpleOperand() : null;
+    }
+
+    int constValue() {
+        int v = ((Number)o).numVal;
+        return prefixOpr == '-' ? -v : v;
     }
 
     static Primary parse() {
@@ -1411,38 +3434,33 @@ class Primary extends Factor {
  * A <factor>
  */
 class Factor extends Term {
+    /*
+     * Generate code for %eax = %eax * rhs (or / rhs).
+     * Constant right-hand sides are strength reduced.
+     */
     @Override void genCode(FuncDecl curFunc) {
-        Code.genInstr("","pushl","%eax","");
-        if(factOpr == '/'){
-            next.o.genCode(curFunc);
-            if(next.prefixOpr == '-')
-                Code.genInstr("","negl","%eax","");
-            if(next.prefixOpr == '*')
-                Code.genInstr("","movl","(%eax),%eax","");
+        Primary rhs = (Primary)next;
+        if(rhs.isConstant()){
+            if(factOpr == '*')
+                Code.genMulConst(rhs.constValue());
+            else
+                Code.genDivConst(rhs.constValue());
+            return;
+        }
+
+        String op = rhs.simpleOperand();
+        if(op == null){
+            Code.genInstr("","pushl","%eax","");
+            rhs.genOperandCode(curFunc);
             Code.genInstr("","movl","%eax,%ecx","");
             Code.genInstr("","popl","%eax","");
+            op = "%ecx";
+        }
+        if(factOpr == '/'){
             Code.genInstr("","cdq","","");
-            Code.genInstr("","idivl","%ecx","");
-            if(next.next instanceof Factor){
-                if(next.next.factOpr == '*'){
-                    Code.genInstr("","pushl","%eax","");
-                    next.next.next.o.genCode(curFunc);
-                    if(next.prefixOpr == '-')
-                        Code.genInstr("","negl","%eax","");
-                    if(next.prefixOpr == '*')
-                        Code.genInstr("","movl","(%eax),%eax","");
-                    Code.genInstr("","movl","%eax,%ecx","");
-                    Code.genInstr("","popl","%eax","");
-                    Code.genInstr("","imull","%ecx,%eax","");
-                    if(next.next.next.next != null)
-                        next.next.next.next.genCode(curFunc);
-                }
-            }
-        }else if(factOpr == '*'){
-            next.genCode(curFunc);
-            Code.genInstr("","movl","%eax,%ecx","");
-            Code.genInstr("","popl","%eax","");
-            Code.genInstr("","imull","%ecx,%eax","");
+            Code.genInstr("","idivl",op,"");
+        }else{
+            Code.genInstr("","imull",op+",%eax","");
         }
     }
 
@@ -1523,18 +3541,29 @@ class Term extends SyntaxUnit {
             next.check(curDecls);
     }
 
+    @Override void walk(Walker w) {
+        w.visit(this);
+        if(o != null) o.walk(w);
+        if(next != null) next.walk(w);
+    }
+
+    /*
+     * Generate code for %eax = %eax + product (or - product).
+     */
     @Override void genCode(FuncDecl curFunc) {
-        Code.genInstr("","pushl","%eax","");
-        if(next != null)
-            next.genCode(curFunc);
-        if(termOpr == '+'){
-            Code.genInstr("","movl","%eax,%ecx","");
-            Code.genInstr("","popl","%eax","");
-            Code.genInstr("","addl","%ecx,%eax","");
-        }else if(termOpr == '-'){
+        Primary rhs = (Primary)next;
+        String op = (rhs.next == null || rhs.next.factOpr == ' ') ? rhs.simpleOperand() : null;
+        if(op == null){
+            Code.genInstr("","pushl","%eax","");
+            rhs.genProductCode(curFunc);
             Code.genInstr("","movl","%eax,%ecx","");
             Code.genInstr("","popl","%eax","");
-            Code.genInstr("","subl","%ecx,%eax","");
+            op = "%ecx";
+        }
+        if(termOpr == '+'){
+            Code.genInstr("","addl",op+",%eax","");
+        }else{
+            Code.genInstr("","subl",op+",%eax","");
         }
     }
 
@@ -1548,15 +3577,16 @@ class Term extends SyntaxUnit {
         t = Factor.parse();
 
         last = t;
-        while(isPrefixOperator(Scanner.curToken) || isOperand(Scanner.curToken) || isFactorOperator(Scanner.curToken) || isTermOperator(Scanner.curToken)){
-            if(isTermOperator(Scanner.curToken)){
-                last.next = new Term();
-                Log.enterParser("<term opr>");
-                last.next.termOpr = (Scanner.curToken == subtractToken ? '-' : '+');
-                Scanner.skip(Scanner.curToken);
-                Log.leaveParser("</term opr>");
-            }else
-                last.next = Factor.parse();
+        while(last.next != null)
+            last = last.next;
+        while(isTermOperator(Scanner.curToken)){
+            last.next = new Term();
+            Log.enterParser("<term opr>");
+            last.next.termOpr = (Scanner.curToken == subtractToken ? '-' : '+');
+            Scanner.skip(Scanner.curToken);
+            Log.leaveParser("</term opr>");
+            last = last.next;
+            last.next = Factor.parse();
             while(last.next != null)
                 last = last.next;
         }
@@ -1589,6 +3619,13 @@ class RelOpr extends Operator {
     @Override void genCode(FuncDecl curFunc) {
 	Code.genInstr("", "popl", "%ecx", "");
 	Code.genInstr("", "cmpl", "%eax,%ecx", "");
+	genSetCode();
+    }
+
+    /*
+     * Set %eax to 0 or 1 from the flags of the comparison.
+     */
+    void genSetCode() {
 	Code.genInstr("", "movl", "$0,%eax", "");
 	switch (oprToken) {
 	case equalToken:        
@@ -1606,6 +3643,37 @@ class RelOpr extends Operator {
 	}
     }
 
+    boolean evaluate(int a, int b) {
+	switch (oprToken) {
+	case equalToken:        return a == b;
+	case notEqualToken:     return a != b;
+	case lessToken:         return a < b;
+	case lessEqualToken:    return a <= b;
+	case greaterToken:      return a > b;
+	case greaterEqualToken: return a >= b;
+	}
+	Error.panic("RelOpr.evaluate");
+	return false;
+    }
+
+    /*
+     * The x86 condition code (as used in jCC and setCC) for this
+     * operator after "cmpl %eax,%ecx", or for its inverse if negate
+     * is true.
+     */
+    String condition(boolean negate) {
+	switch (oprToken) {
+	case equalToken:        return negate ? "ne" : "e";
+	case notEqualToken:     return negate ? "e"  : "ne";
+	case lessToken:         return negate ? "ge" : "l";
+	case lessEqualToken:    return negate ? "g"  : "le";
+	case greaterToken:      return negate ? "le" : "g";
+	case greaterEqualToken: return negate ? "l"  : "ge";
+	}
+	Error.panic("RelOpr.condition");
+	return null;
+    }
+
     static RelOpr parse() {
 	Log.enterParser("<rel opr>");
 
@@ -1617,17 +3685,23 @@ class RelOpr extends Operator {
 	return ro;
     }
 
-    @Override void printTree() {
-	String op = "?";
+    /*
+     * The operator as written in AlboC (and C).
+     */
+    String cOperator() {
 	switch (oprToken) {
-	case equalToken:        op = "==";  break;
-	case notEqualToken:     op = "!=";  break;
-	case lessToken:         op = "<";   break;
-	case lessEqualToken:    op = "<=";  break;
-	case greaterToken:      op = ">";   break;
-	case greaterEqualToken: op = ">=";  break;
+	case equalToken:        return "==";
+	case notEqualToken:     return "!=";
+	case lessToken:         return "<";
+	case lessEqualToken:    return "<=";
+	case greaterToken:      return ">";
+	case greaterEqualToken: return ">=";
 	}
-	Log.wTree(" " + op + " ");
+	return "?";
+    }
+
+    @Override void printTree() {
+	Log.wTree(" " + cOperator() + " ");
     }
 }
 
@@ -1638,6 +3712,13 @@ abstract class Operand extends SyntaxUnit {
     Operand nextOperand = null;
     Type type;
 
+    abstract Instr genIr(SsaBuilder b, FuncDecl curFunc);
+    abstract CExpr genC(FuncDecl curFunc);
+    abstract boolean hasCall();
+    abstract boolean isInvariant(Effects e);
+    abstract boolean mayTrap();
+    abstract void hoistInvariants(FuncDecl curFunc, LoopStatm loop, StatmList dest, boolean uncond);
+
     static Operand parse() {
 	Log.enterParser("<operand>");
 
@@ -1667,6 +3748,12 @@ abstract class Operand extends SyntaxUnit {
 class AssignStatm extends Statement {
     Assignment a;
 
+    AssignStatm() {}
+
+    AssignStatm(Assignment a) {
+        this.a = a;
+    }
+
     @Override void check(DeclList curDecls) {
         a.check(curDecls);
     }
@@ -1675,6 +3762,27 @@ class AssignStatm extends Statement {
         a.genCode(curFunc);
     }
 
+    @Override void genIr(SsaBuilder b, FuncDecl curFunc) {
+        a.genIr(b, curFunc);
+    }
+
+    @Override void genC(FuncDecl curFunc) {
+        a.genC(curFunc);
+    }
+
+    @Override void walk(Walker w) {
+        w.visit(this);
+        a.walk(w);
+    }
+
+    @Override void noteEffects(Effects e) {
+        a.noteEffects(e);
+    }
+
+    @Override void hoistInvariants(FuncDecl curFunc, LoopStatm loop, boolean uncond) {
+        a.hoistInvariants(curFunc, loop, loop.bodyPre, uncond);
+    }
+
     static AssignStatm parse() {
         Log.enterParser("<assign statm>");
 
@@ -1706,6 +3814,27 @@ class CallStatm extends Statement {
         call.genCode(curFunc);
     }
 
+    @Override void genIr(SsaBuilder b, FuncDecl curFunc) {
+        call.genIr(b, curFunc);
+    }
+
+    @Override void genC(FuncDecl curFunc) {
+        CCode.genLine(call.genC(curFunc).text + ";");
+    }
+
+    @Override void walk(Walker w) {
+        w.visit(this);
+        call.walk(w);
+    }
+
+    @Override void noteEffects(Effects e) {
+        e.hasCall = true;
+    }
+
+    @Override void hoistInvariants(FuncDecl curFunc, LoopStatm loop, boolean uncond) {
+        call.hoistInvariants(curFunc, loop, loop.bodyPre, uncond);
+    }
+
     static CallStatm parse() {
         Log.enterParser("<call-statm>");
 
@@ -1729,10 +3858,16 @@ class CallStatm extends Statement {
 class FunctionCall extends Operand {
     String funcName;
     ExprList paramList;
+    FuncDecl declRef = null;
+    // When the call is inlined: the caller's variables used for
+    // the callee's parameters and local variables.
+    ArrayList<LocalVarDecl> inlineVars = null;
 
     @Override void check(DeclList curDecls) {
         Declaration funcDecl = curDecls.findDecl(funcName, this);
         Log.noteBinding(funcName, lineNum, funcDecl.lineNum);
+        if(funcDecl instanceof FuncDecl)
+            declRef = (FuncDecl)funcDecl;
         int count = 0;
         Expression cur = paramList.firstExpr;
         while(cur != null){
@@ -1744,35 +3879,273 @@ class FunctionCall extends Operand {
         funcDecl.checkWhetherFunction(count, this);
     }
 
-    /**
-     * Denne metoden kan få mindre kompleksitet ved å gjøre paramList om til en LIFO-liste
+    /*
+     * The function to call. With profiling, the library function exit
+     * is called through Profiler, which writes the profile first.
      */
+    String calledName() {
+        if(Code.profile && declRef.isLibrary() && funcName.equals("exit"))
+            return Profiler.exitName();
+        return funcName;
+    }
+
     @Override void genCode(FuncDecl curFunc) {
-        Expression e = paramList.firstExpr;
-        int count = 0;
-        while(e != null){
-            count++;
-            e = e.nextExpr;
+        if(inlineVars != null){
+            genInlineCode(curFunc);  return;
         }
-        e = paramList.firstExpr;
-
-        int size = count;
-        while(count > 0){
-            int i = count;
-            e = paramList.firstExpr;
-            while(i > 1){
-                e = e.nextExpr;
-                i--;
-            }
-            e.genCode(curFunc);
-            Code.genInstr("","pushl","%eax","");
-            count--;
+        if(Code.preallocArgs && !argsHaveCall() && Code.canStoreArgs(numStackArgs())){
+            storeArgs(curFunc, numRegArgs());
+            Code.genInstr("","call",calledName(),"Call function " + funcName);
+            return;
         }
-        Code.genInstr("","call",funcName,"Call function " + funcName);
+        int size = genArgs(curFunc, numRegArgs());
+        Code.genInstr("","call",calledName(),"Call function " + funcName);
         if(size > 0)
             Code.genInstr("","addl","$"+size*4+",%esp","");
     }
 
+    boolean argsHaveCall() {
+        for(Expression e = paramList.firstExpr;  e != null;  e = e.nextExpr)
+            if(e.hasCall()) return true;
+        return false;
+    }
+
+    /*
+     * Compute the arguments (the last one first) directly into the
+     * parameter registers and the outgoing argument area. (This is
+     * only possible if no argument contains a call, as it would
+     * overwrite them.)
+     */
+    void storeArgs(FuncDecl curFunc, int nRegs) {
+        ArrayList<Expression> args = args();
+        for(int i = args.size()-1;  i >= 0;  --i){
+            String op = args.get(i).simpleOperand();
+            if(op == null || (i >= nRegs && ! op.startsWith("$"))){
+                args.get(i).genCode(curFunc);  op = "%eax";
+            }
+            if(i < nRegs)
+                Code.genInstr("","movl",op+","+Code.paramRegs[i],"");
+            else
+                Code.genStoreArg(op, i-nRegs);
+        }
+    }
+
+    ArrayList<Expression> args() {
+        ArrayList<Expression> args = new ArrayList<Expression>();
+        for(Expression e = paramList.firstExpr;  e != null;  e = e.nextExpr)
+            args.add(e);
+        return args;
+    }
+
+    int numArgs() {
+        int n = 0;
+        for(Expression e = paramList.firstExpr;  e != null;  e = e.nextExpr)
+            ++n;
+        return n;
+    }
+
+    /*
+     * The number of arguments passed in registers (see
+     * FuncDecl.numRegParams) and on the stack.
+     */
+    int numRegArgs() {
+        return declRef == null ? 0 : declRef.numRegParams();
+    }
+
+    int numStackArgs() {
+        return numArgs() - numRegArgs();
+    }
+
+    /*
+     * Compute the arguments (the last one first). The first nRegs of
+     * them are put in the parameter registers and the others are
+     * pushed. Returns the number pushed.
+     */
+    int genArgs(FuncDecl curFunc, int nRegs) {
+        ArrayList<Expression> args = args();
+        String first = "%eax";
+        for(int i = args.size()-1;  i >= 0;  --i){
+            String op = args.get(i).simpleOperand();
+            if(op == null){
+                args.get(i).genCode(curFunc);  op = "%eax";
+            }
+            if(i > 0 || nRegs == 0)
+                Code.genInstr("","pushl",op,"");
+            else
+                first = op;
+        }
+        if(nRegs > 0)
+            Code.genInstr("","movl",first+","+Code.paramRegs[0],"");
+        for(int i = 1;  i < nRegs;  ++i)
+            Code.genInstr("","popl",Code.paramRegs[i],"");
+        return args.size() - nRegs;
+    }
+
+    /*
+     * Allocate variables in curFunc's frame for the callee's parameters
+     * and local variables, so that the callee's body may be generated
+     * in place of the call.
+     */
+    void makeInline(FuncDecl curFunc) {
+        inlineVars = new ArrayList<LocalVarDecl>();
+        for(Declaration d = declRef.funcParams.firstDecl;  d != null;  d = d.nextDecl)
+            inlineVars.add(curFunc.newTemp(d.type));
+        for(Declaration d = declRef.body.decls.firstDecl;  d != null;  d = d.nextDecl)
+            inlineVars.add(curFunc.newTemp(d.type));
+    }
+
+    /*
+     * Generate the callee's body instead of a call. The parameters and
+     * local variables of the callee are temporarily given the names
+     * of the variables allocated by makeInline, and a return jumps to
+     * the end of the inlined code.
+     */
+    void genInlineCode(FuncDecl curFunc) {
+        ArrayList<Declaration> calleeVars = new ArrayList<Declaration>();
+        for(Declaration d = declRef.funcParams.firstDecl;  d != null;  d = d.nextDecl)
+            calleeVars.add(d);
+        for(Declaration d = declRef.body.decls.firstDecl;  d != null;  d = d.nextDecl)
+            calleeVars.add(d);
+
+        ArrayList<Expression> args = new ArrayList<Expression>();
+        for(Expression e = paramList.firstExpr;  e != null;  e = e.nextExpr)
+            args.add(e);
+        Code.genInstr("", "", "", "Inline function " + funcName);
+        for(int i = args.size()-1;  i >= 0;  --i){
+            args.get(i).genCode(curFunc);
+            if(i < calleeVars.size() && calleeVars.get(i) instanceof ParamDecl)
+                Code.genInstr("", "movl", "%eax,"+inlineVars.get(i).assemblerName, "");
+        }
+
+        String[] savedNames = new String[calleeVars.size()];
+        for(int i = 0;  i < calleeVars.size();  ++i){
+            savedNames[i] = calleeVars.get(i).assemblerName;
+            calleeVars.get(i).assemblerName = inlineVars.get(i).assemblerName;
+        }
+        String savedExit = declRef.exitLabel, endLabel = Code.getLocalLabel();
+        declRef.exitLabel = endLabel;
+        declRef.body.genCode(declRef);
+        declRef.exitLabel = savedExit;
+        for(int i = 0;  i < calleeVars.size();  ++i)
+            calleeVars.get(i).assemblerName = savedNames[i];
+        Code.genInstr(endLabel, "", "", "End inlined " + funcName);
+    }
+
+    @Override Instr genIr(SsaBuilder b, FuncDecl curFunc) {
+        if(inlineVars != null)
+            return genInlineIr(b, curFunc);
+        Instr call = new Instr(Instr.Op.CALL);
+        call.args.addAll(genIrArgs(b, curFunc));
+        call.name = calledName();
+        call.value = numRegArgs();
+        call.size = declRef.resultSize();
+        return b.emit(call);
+    }
+
+    /*
+     * The call in C. If any argument calls a function, the arguments
+     * are computed into temporaries, the last one first (as in genArgs).
+     */
+    @Override CExpr genC(FuncDecl curFunc) {
+        ArrayList<Expression> exprs = args();
+        ArrayList<Type> types = new ArrayList<Type>();
+        for(Declaration d = declRef.funcParams.firstDecl;  d != null;  d = d.nextDecl)
+            types.add(d.type);
+        boolean ordered = argsHaveCall() && exprs.size() > 1;
+        String[] args = new String[exprs.size()];
+        for(int i = exprs.size()-1;  i >= 0;  --i){
+            boolean isPointer = i < types.size() && CCode.isPointer(types.get(i));
+            args[i] = exprs.get(i).genC(curFunc).as(isPointer);
+            if(ordered)
+                args[i] = CCode.temp(isPointer, args[i]);
+        }
+        String call = (declRef.isLibrary() && funcName.equals("exit") ? "alboc_exit" : 
+                       CCode.name(funcName)) + "(";
+        for(int i = 0;  i < args.length;  ++i)
+            call += (i > 0 ? ", " : "") + args[i];
+        return new CExpr(call + ")", declRef.returnsPointer());
+    }
+
+    /*
+     * Add the arguments to the IR, the last one first (as in genArgs).
+     */
+    ArrayList<Instr> genIrArgs(SsaBuilder b, FuncDecl curFunc) {
+        ArrayList<Expression> exprs = args();
+        Instr[] args = new Instr[exprs.size()];
+        for(int i = exprs.size()-1;  i >= 0;  --i)
+            args[i] = exprs.get(i).genIr(b, curFunc);
+        ArrayList<Instr> res = new ArrayList<Instr>();
+        for(Instr a: args) res.add(a);
+        return res;
+    }
+
+    /*
+     * Add the callee's body instead of the call (see genInlineCode).
+     * Returns assign the result to the callee itself (used as an SSA
+     * variable) and jump to a join block.
+     */
+    Instr genInlineIr(SsaBuilder b, FuncDecl curFunc) {
+        ArrayList<Instr> args = genIrArgs(b, curFunc);
+        ArrayList<Declaration> calleeVars = new ArrayList<Declaration>();
+        for(Declaration d = declRef.funcParams.firstDecl;  d != null;  d = d.nextDecl)
+            calleeVars.add(d);
+        for(Declaration d = declRef.body.decls.firstDecl;  d != null;  d = d.nextDecl)
+            calleeVars.add(d);
+
+        String[] savedNames = new String[calleeVars.size()];
+        for(int i = 0;  i < calleeVars.size();  ++i){
+            savedNames[i] = calleeVars.get(i).assemblerName;
+            calleeVars.get(i).assemblerName = inlineVars.get(i).assemblerName;
+        }
+        for(int i = 0;  i < args.size() && i < calleeVars.size();  ++i){
+            VarDecl d = (VarDecl)calleeVars.get(i);
+            if(!(d instanceof ParamDecl))
+                break;
+            if(d.isSsaVar()){
+                b.writeVariable(d, args.get(i));
+            }else{
+                Instr addr = new Instr(Instr.Op.ADDR);
+                addr.name = d.assemblerName;
+                b.store(b.emit(addr), args.get(i), d.type.size());
+            }
+        }
+        Block end = b.newBlock();
+        declRef.irReturn = end;
+        declRef.body.statList.genIr(b, declRef);
+        if(b.curBlock().terminator() == null){
+            b.writeVariable(declRef, b.emit(Instr.Op.UNDEF));
+            b.jump(end);
+        }
+        b.sealBlock(end);  b.startBlock(end);
+        Instr result = b.readVariable(declRef);
+        declRef.irReturn = null;
+        for(int i = 0;  i < calleeVars.size();  ++i)
+            calleeVars.get(i).assemblerName = savedNames[i];
+        return result;
+    }
+
+    @Override void walk(Walker w) {
+        w.visit(this);
+        paramList.walk(w);
+    }
+
+    @Override boolean hasCall() {
+        return true;
+    }
+
+    @Override boolean isInvariant(Effects e) {
+        return false;
+    }
+
+    @Override boolean mayTrap() {
+        return true;
+    }
+
+    @Override void hoistInvariants(FuncDecl curFunc, LoopStatm loop, StatmList dest, boolean uncond) {
+        for(Expression e = paramList.firstExpr;  e != null;  e = e.nextExpr)
+            e.hoistInvariants(curFunc, loop, dest, uncond);
+    }
+
     static FunctionCall parse() {
         Log.enterParser("<function call>");
 
@@ -1800,6 +4173,12 @@ class FunctionCall extends Operand {
 class Number extends Operand {
     int numVal;
 
+    Number() {}
+
+    Number(int v) {
+        numVal = v;  type = Types.intType;
+    }
+
     @Override void check(DeclList curDecls) {
        // OK
     }
@@ -1808,6 +4187,28 @@ class Number extends Operand {
 	Code.genInstr("", "movl", "$"+numVal+",%eax", ""+numVal); 
     }
 
+    @Override Instr genIr(SsaBuilder b, FuncDecl curFunc) {
+	return b.constant(numVal);
+    }
+
+    @Override CExpr genC(FuncDecl curFunc) {
+	return new CExpr(CCode.intConst(numVal), false);
+    }
+
+    @Override boolean hasCall() {
+        return false;
+    }
+
+    @Override boolean isInvariant(Effects e) {
+        return true;
+    }
+
+    @Override boolean mayTrap() {
+        return false;
+    }
+
+    @Override void hoistInvariants(FuncDecl curFunc, LoopStatm loop, StatmList dest, boolean uncond) {}
+
     static Number parse() {
         Log.enterParser("<number>");
 
@@ -1832,6 +4233,12 @@ class Variable extends Operand {
     VarDecl declRef = null;
     Expression index = null;
 
+    Variable() {}
+
+    Variable(VarDecl d) {
+        varName = d.name;  declRef = d;  type = d.type;
+    }
+
     @Override void check(DeclList curDecls) {
         Declaration d = curDecls.findDecl(varName,this);
         d.checkWhetherVariable(this);
@@ -1840,6 +4247,8 @@ class Variable extends Operand {
 
         if (index == null) {
            type = d.type;
+           if (d.type instanceof ArrayType)
+               declRef.addressTaken = true;
        } else {
            index.check(curDecls);
            Log.noteTypeCheck("a[e]", d.type, "a", index.type, "e", lineNum);
@@ -1864,6 +4273,11 @@ class Variable extends Operand {
                 Code.genInstr("", "leal", declRef.assemblerName+",%eax", varName);
             else
                 Code.genInstr("", "movl", declRef.assemblerName+",%eax", varName);
+        } else if (Syntax.useMemOperands && memOperand() != null) {
+            Code.genInstr("", "movl", memOperand()+",%eax", varName+"[...]");
+        } else if (index.isConstant() && ! (declRef.type instanceof ArrayType)) {
+            Code.genInstr("", "movl", declRef.assemblerName+",%edx", varName+"[...]");
+            Code.genInstr("", "movl", displacement(index.constValue())+"(%edx),%eax", "");
         } else {
             index.genCode(curFunc);
             if (declRef.type instanceof ArrayType) {
@@ -1885,11 +4299,128 @@ class Variable extends Operand {
         }
     }
 
+    @Override Instr genIr(SsaBuilder b, FuncDecl curFunc) {
+        if (index == null && declRef.type instanceof ArrayType)
+            return genIrAddress(b, curFunc);
+        if (index == null && declRef.isSsaVar())
+            return b.readVariable(declRef);
+        return b.load(genIrAddress(b, curFunc), type.size());
+    }
+
+    Instr genIrAddress(SsaBuilder b, FuncDecl curFunc) {
+        if (index == null)
+            return genIrVarAddress(b);
+        Instr ix = index.genIr(b, curFunc), base;
+        if (declRef.type instanceof ArrayType)
+            base = genIrVarAddress(b);
+        else if (declRef.isSsaVar())
+            base = b.readVariable(declRef);
+        else
+            base = b.load(genIrVarAddress(b), Types.pointerSize);
+        Instr addr = b.emit(Instr.Op.INDEX, base, ix);
+        addr.value = declRef.type.getElemType().size();
+        return addr;
+    }
+
+    /*
+     * The value in C. An array is a pointer to its first element.
+     */
+    @Override CExpr genC(FuncDecl curFunc) {
+        if (index == null && declRef.type instanceof ArrayType)
+            return new CExpr("((char *)" + CCode.name(declRef.name) + ")", true);
+        return new CExpr(genCLvalue(curFunc), CCode.isPointer(type));
+    }
+
+    /*
+     * The variable (or element) as a C lvalue. Elements of a pointer
+     * are indexed through a cast of the pointer.
+     */
+    String genCLvalue(FuncDecl curFunc) {
+        String name = CCode.name(declRef.name);
+        if (index == null)
+            return name;
+        String ix = index.genC(curFunc).asInt();
+        if (declRef.type instanceof ArrayType)
+            return name + "[" + ix + "]";
+        return "(" + CCode.pointerCast(declRef.type.getElemType()) + name + ")[" + ix + "]";
+    }
+
+    private Instr genIrVarAddress(SsaBuilder b) {
+        Instr addr = new Instr(Instr.Op.ADDR);
+        addr.name = declRef.assemblerName;
+        return b.emit(addr);
+    }
+
+    /*
+     * The variable as an instruction operand (a register or a memory
+     * location) if its value may be used or stored directly: a simple
+     * variable, or an array element with a constant index (which is
+     * folded into the displacement, as in "a+12"). Otherwise null.
+     */
+    String memOperand() {
+        if (index == null)
+            return declRef.type instanceof ArrayType ? null : declRef.assemblerName;
+        if (index.isConstant() && declRef.type instanceof ArrayType)
+            return Code.offsetAddress(declRef.assemblerName, 4*index.constValue());
+        return null;
+    }
+
+    /*
+     * The byte offset of element number i (as used in an address).
+     */
+    static String displacement(int i) {
+        return i == 0 ? "" : ""+4*i;
+    }
+
+    @Override void walk(Walker w) {
+        w.visit(this);
+        if (index != null) index.walk(w);
+    }
+
+    @Override boolean hasCall() {
+        return index != null && index.hasCall();
+    }
+
+    @Override boolean isInvariant(Effects e) {
+        if (index == null) 
+            return declRef.type instanceof ArrayType || e.isUnchanged(declRef);
+        if (! index.isInvariant(e))
+            return false;
+        if (declRef.type instanceof ArrayType)
+            return e.isUnchanged(declRef);
+        return e.isUnchanged(declRef) && e.memoryUnchanged();
+    }
+
+    /*
+     * Is the address of this variable invariant?
+     */
+    boolean addressIsInvariant(Effects e) {
+        if (index == null) 
+            return true;
+        return index.isInvariant(e) && 
+            (declRef.type instanceof ArrayType || e.isUnchanged(declRef));
+    }
+
+    @Override boolean mayTrap() {
+        return index != null;
+    }
+
+    @Override void hoistInvariants(FuncDecl curFunc, LoopStatm loop, StatmList dest, boolean uncond) {
+        if (index != null)
+            index.hoistInvariants(curFunc, loop, dest, uncond);
+    }
+
     void genAddressCode(FuncDecl curFunc) {
 	// Generate code to load the _address_ of the variable
 	// rather than its value.
 	if (index == null) {
 	    Code.genInstr("", "leal", declRef.assemblerName+",%eax", varName);
+	} else if (Syntax.useMemOperands && memOperand() != null) {
+	    Code.genInstr("", "leal", memOperand()+",%eax", varName+"[...]");
+	} else if (index.isConstant() && ! (declRef.type instanceof ArrayType)) {
+	    Code.genInstr("", "movl", declRef.assemblerName+",%eax", varName+"[...]");
+	    if (index.constValue() != 0)
+		Code.genInstr("", "leal", displacement(index.constValue())+"(%eax),%eax", "");
 	} else {
 	    index.genCode(curFunc);
 	    if (declRef.type instanceof ArrayType) {
@@ -1936,8 +4467,21 @@ class Variable extends Operand {
 class Address extends Operand {
     Variable var;
 
+    Address() {}
+
+    /*
+     * Create the address "&d[index]".
+     */
+    Address(VarDecl d, Expression index) {
+	var = new Variable(d);
+	var.index = index;  var.type = d.type.getElemType();
+	type = new PointerType(var.type);
+	if (d.type instanceof ArrayType) d.addressTaken = true;
+    }
+
     @Override void check(DeclList curDecls) {
 	var.check(curDecls);
+	var.declRef.addressTaken = true;
 	type = new PointerType(var.type);
     }
 
@@ -1945,6 +4489,37 @@ class Address extends Operand {
 	var.genAddressCode(curFunc);
     }
 
+    @Override Instr genIr(SsaBuilder b, FuncDecl curFunc) {
+	return var.genIrAddress(b, curFunc);
+    }
+
+    @Override CExpr genC(FuncDecl curFunc) {
+	if (var.index == null && var.declRef.type instanceof ArrayType)
+	    return var.genC(curFunc);
+	return new CExpr("((char *)&" + var.genCLvalue(curFunc) + ")", true);
+    }
+
+    @Override void walk(Walker w) {
+	w.visit(this);
+	var.walk(w);
+    }
+
+    @Override boolean hasCall() {
+	return var.hasCall();
+    }
+
+    @Override boolean isInvariant(Effects e) {
+	return var.addressIsInvariant(e);
+    }
+
+    @Override boolean mayTrap() {
+	return var.index != null && var.index.mayTrap();
+    }
+
+    @Override void hoistInvariants(FuncDecl curFunc, LoopStatm loop, StatmList dest, boolean uncond) {
+	var.hoistInvariants(curFunc, loop, dest, uncond);
+    }
+
     static Address parse() {
        Log.enterParser("<address>");
 
@@ -1976,6 +4551,35 @@ class InnerExpr extends Operand {
 	expr.genCode(curFunc);
     }
 
+    @Override Instr genIr(SsaBuilder b, FuncDecl curFunc) {
+	return expr.genIr(b, curFunc);
+    }
+
+    @Override CExpr genC(FuncDecl curFunc) {
+	return expr.genC(curFunc);
+    }
+
+    @Override void walk(Walker w) {
+	w.visit(this);
+	expr.walk(w);
+    }
+
+    @Override boolean hasCall() {
+	return expr.hasCall();
+    }
+
+    @Override boolean isInvariant(Effects e) {
+	return expr.isInvariant(e);
+    }
+
+    @Override boolean mayTrap() {
+	return expr.mayTrap();
+    }
+
+    @Override void hoistInvariants(FuncDecl curFunc, LoopStatm loop, StatmList dest, boolean uncond) {
+	expr.hoistInvariants(curFunc, loop, dest, uncond);
+    }
+
     static InnerExpr parse() {
        Log.enterParser("<inner expr>");
 
@@ -1991,4 +4595,277 @@ class InnerExpr extends Operand {
     @Override void printTree() {
        Log.wTree("(");  expr.printTree();  Log.wTree(")");
     }
-}
\ No newline at end of file
+}
+
+/*
+ * An expression in the C code (see Program.genC), and whether its
+ * value is a pointer (a char *) rather than an int.
+ * (This class is not mentioned in the syntax diagrams.)
+ */
+class CExpr {
+    String text;  // Always a primary C expression (or in parentheses)
+    boolean isPointer;
+
+    CExpr(String text, boolean isPointer) {
+	this.text = text;  this.isPointer = isPointer;
+    }
+
+    String asInt() {
+	return isPointer ? "(int)(alboc_intptr)" + text : text;
+    }
+
+    String asPointer() {
+	return isPointer ? text : "(char *)(alboc_intptr)" + text;
+    }
+
+    String as(boolean pointer) {
+	return pointer ? asPointer() : asInt();
+    }
+
+    /*
+     * The value v points to, which is of type elem (an int if null).
+     */
+    static CExpr deref(CExpr v, Type elem) {
+	return new CExpr("(*" + CCode.pointerCast(elem) + v.asPointer() + ")", 
+			 elem != null && CCode.isPointer(elem));
+    }
+
+    /*
+     * a + b or a - b. Pointer arithmetic is in bytes, as in AlboC, and
+     * ints wrap around.
+     */
+    static CExpr sum(CExpr a, char op, CExpr b) {
+	if (! a.isPointer && ! b.isPointer)
+	    return new CExpr((op == '+' ? "alboc_add(" : "alboc_sub(") + 
+			     a.text + ", " + b.text + ")", false);
+	if (a.isPointer && ! b.isPointer)
+	    return new CExpr("(" + a.text + " " + op + " " + b.text + ")", true);
+	if (op == '+' && ! a.isPointer)
+	    return new CExpr("(" + b.text + " + " + a.text + ")", true);
+	if (op == '-' && b.isPointer && a.isPointer)
+	    return new CExpr("((int)(" + a.text + " - " + b.text + "))", false);
+	return sum(new CExpr(a.asInt(), false), op, new CExpr(b.asInt(), false));
+    }
+}
+
+/*
+ * The call graph of the program, used to place functions which call
+ * each other often close together in the code, so the code run most
+ * often takes fewer cache lines and pages (K. Pettis and R. C. Hansen,
+ * "Profile guided code positioning", PLDI 1990). Each call counts as
+ * often as it is estimated to be made: 10 times as often in a loop as
+ * outside it, and half as often in either part of an if-statement.
+ * With a profile (see Profiler.readProfile), the counts of the
+ * functions and their statements are used instead, and functions
+ * which were never called are left out as cold.
+ * (This class is not mentioned in the syntax diagrams.)
+ */
+class CallGraph {
+    ArrayList<FuncDecl> funcs = new ArrayList<FuncDecl>(),  // In the graph
+        cold = new ArrayList<FuncDecl>();
+    HashMap<FuncDecl,Integer> index = new HashMap<FuncDecl,Integer>();
+    // The weight of the calls between each pair of functions (either
+    // way), and between the chains of functions being built:
+    ArrayList<HashMap<Integer,Double>> calls = new ArrayList<HashMap<Integer,Double>>(),
+        links = new ArrayList<HashMap<Integer,Double>>();
+    ArrayList<ArrayList<Integer>> chains = new ArrayList<ArrayList<Integer>>();
+    int[] chainOf;
+
+    CallGraph(ArrayList<FuncDecl> all) {
+        for(FuncDecl f: all){
+            if(Profiler.callCount(f.name) == 0){
+                cold.add(f);  continue;
+            }
+            index.put(f, funcs.size());  funcs.add(f);
+            calls.add(new HashMap<Integer,Double>());
+        }
+        for(FuncDecl f: funcs){
+            long n = Profiler.callCount(f.name);
+            addCalls(f, f.body.statList, n > 0 ? n : 1.0);
+        }
+    }
+
+    /*
+     * Add the calls made by the statements in l of function f, which
+     * are run weight times.
+     */
+    void addCalls(FuncDecl f, StatmList l, double weight) {
+        for(Statement s = l.first;  s != null;  s = s.nextStatm){
+            if(s instanceof IfStatm){
+                IfStatm is = (IfStatm)s;
+                long[] n = is.branchCounts;
+                addCalls(f, is.exp, weight);
+                addCalls(f, is.ifBody, n != null ? n[1] : weight/2);
+                if(is.elseBody != null)
+                    addCalls(f, is.elseBody, n != null ? n[0]-n[1] : weight/2);
+            }else if(s instanceof LoopStatm){
+                LoopStatm ls = (LoopStatm)s;
+                double inLoop = (ls.branchCounts != null ? ls.branchCounts[1] : 10*weight);
+                if(s instanceof ForStatm){
+                    addCalls(f, ((ForStatm)s).first, weight);
+                    addCalls(f, ((ForStatm)s).second, inLoop);
+                }
+                addCalls(f, ls.testPre, weight);
+                addCalls(f, ls.test, inLoop);
+                addCalls(f, ls.bodyPre, weight);
+                addCalls(f, ls.body, inLoop);
+                addCalls(f, ls.bottomTest, inLoop);
+                addCalls(f, ls.exitPost, weight);
+            }else{
+                addCalls(f, (SyntaxUnit)s, weight);
+            }
+        }
+    }
+
+    void addCalls(final FuncDecl f, SyntaxUnit u, final double weight) {
+        if(u == null)
+            return;
+        if(u instanceof StatmList){
+            addCalls(f, (StatmList)u, weight);  return;
+        }
+        u.walk(new Walker() {
+            public void visit(SyntaxUnit v) {
+                if(!(v instanceof FunctionCall) || ((FunctionCall)v).inlineVars != null)
+                    return;
+                Integer callee = index.get(((FunctionCall)v).declRef);
+                int caller = index.get(f);
+                if(callee != null && callee != caller){
+                    add(calls.get(caller), callee, weight);
+                    add(calls.get(callee), caller, weight);
+                }
+            }
+        });
+    }
+
+    static void add(HashMap<Integer,Double> m, int k, double w) {
+        Double old = m.get(k);
+        m.put(k, (old != null ? old : 0) + w);
+    }
+
+    /*
+     * The functions in the order to place them. Each function starts
+     * as a chain of its own. The two chains linked by the heaviest
+     * calls are joined (turned so the functions making the heaviest
+     * of those calls are as close as possible), and their links to
+     * the other chains are added together; this is repeated as long
+     * as any chains are linked. The chains with the heaviest calls
+     * are placed first.
+     */
+    ArrayList<FuncDecl> order() {
+        int n = funcs.size();
+        chainOf = new int[n];
+        PriorityQueue<double[]> heaviest = new PriorityQueue<double[]>(11,
+            new Comparator<double[]>() {
+                public int compare(double[] a, double[] b) {
+                    if(a[0] != b[0]) return a[0] > b[0] ? -1 : 1;
+                    if(a[1] != b[1]) return a[1] < b[1] ? -1 : 1;
+                    return a[2] < b[2] ? -1 : a[2] > b[2] ? 1 : 0;
+                }
+            });
+        for(int k = 0;  k < n;  ++k){
+            ArrayList<Integer> c = new ArrayList<Integer>();
+            c.add(k);  chains.add(c);  chainOf[k] = k;
+            links.add(new HashMap<Integer,Double>(calls.get(k)));
+            for(int j: calls.get(k).keySet())
+                if(k < j) heaviest.add(new double[]{calls.get(k).get(j), k, j});
+        }
+        while(!heaviest.isEmpty()){
+            double[] e = heaviest.poll();
+            int a = (int)e[1], b = (int)e[2];
+            Double w = (chains.get(a) != null ? links.get(a).get(b) : null);
+            if(chains.get(b) == null || w == null || w != e[0])
+                continue;  // Out of date
+            for(int c: join(a, b))
+                heaviest.add(new double[]{links.get(a).get(c), Math.min(a,c), Math.max(a,c)});
+        }
+
+        final double[] heat = new double[n];
+        ArrayList<Integer> left = new ArrayList<Integer>();
+        for(int k = 0;  k < n;  ++k){
+            for(double w: calls.get(k).values())
+                heat[chainOf[k]] += w;
+            if(chains.get(k) != null)
+                left.add(k);
+        }
+        Collections.sort(left, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                if(heat[a] != heat[b]) return heat[a] > heat[b] ? -1 : 1;
+                return a - b;
+            }
+        });
+        ArrayList<FuncDecl> res = new ArrayList<FuncDecl>();
+        for(int c: left)
+            for(int k: chains.get(c))
+                res.add(funcs.get(k));
+        return res;
+    }
+
+    /*
+     * Append chain b to chain a, and return the chains whose links to
+     * a have changed.
+     */
+    ArrayList<Integer> join(int a, int b) {
+        ArrayList<Integer> ca = chains.get(a), cb = chains.get(b);
+        int u = -1, v = -1;
+        double max = -1;
+        for(int k: (ca.size() <= cb.size() ? ca : cb))
+            for(int j: calls.get(k).keySet())
+                if(chainOf[j] == (chainOf[k] == a ? b : a) && calls.get(k).get(j) > max){
+                    max = calls.get(k).get(j);
+                    u = (chainOf[k] == a ? k : j);  v = (chainOf[k] == a ? j : k);
+                }
+        if(ca.indexOf(u) < ca.size()-1-ca.indexOf(u))
+            Collections.reverse(ca);
+        if(cb.indexOf(v) > cb.size()-1-cb.indexOf(v))
+            Collections.reverse(cb);
+        for(int k: cb){
+            ca.add(k);  chainOf[k] = a;
+        }
+        chains.set(b, null);
+
+        ArrayList<Integer> changed = new ArrayList<Integer>();
+        links.get(a).remove(b);
+        for(int c: links.get(b).keySet()){
+            if(c == a) continue;
+            add(links.get(a), c, links.get(b).get(c));
+            links.get(c).remove(b);
+            links.get(c).put(a, links.get(a).get(c));
+            changed.add(c);
+        }
+        links.set(b, null);
+        return changed;
+    }
+}
+
+/*
+ * The side effects of a piece of code, as seen by the optimizer.
+ * (This class is not mentioned in the syntax diagrams.)
+ */
+class Effects {
+    HashSet<VarDecl> assigned = new HashSet<VarDecl>();  // Variables assigned to
+    HashSet<VarDecl> stored = new HashSet<VarDecl>();    // Arrays with elements assigned to
+    boolean pointerStore = false,  // Any assignment through a pointer?
+	hasCall = false, hasReturn = false;
+
+    /*
+     * Is the value of d (or, for an array, its elements) unchanged by
+     * the code? Function calls and stores through pointers may change
+     * any global and any variable whose address has been taken.
+     */
+    boolean isUnchanged(VarDecl d) {
+	if (assigned.contains(d) || stored.contains(d))
+	    return false;
+	return ! (d.mayBeAliased() && (hasCall || pointerStore));
+    }
+
+    /*
+     * Is all memory a pointer may refer to unchanged by the code?
+     */
+    boolean memoryUnchanged() {
+	if (hasCall || pointerStore || ! stored.isEmpty()) 
+	    return false;
+	for (VarDecl d: assigned)
+	    if (d.mayBeAliased()) return false;
+	return true;
+    }
+}
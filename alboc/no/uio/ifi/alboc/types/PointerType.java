@@ -12,7 +12,7 @@ public class PointerType extends ValueType {
     }
 
     @Override public int size() {
-	return 4;
+	return Types.pointerSize;
     }
 
     @Override public boolean isSameType(Type t) {
@@ -10,6 +10,7 @@ package no.uio.ifi.alboc.types;
 
 public class Types {
     public static Type intType;
+    public static int pointerSize = 4;  // 8 on x86-64
 
     public static void init() {
 	intType = new ValueType() {
@@ -0,0 +1,126 @@
+package no.uio.ifi.alboc.vm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import no.uio.ifi.alboc.error.Error;
+
+/*
+ * A minimal writer of JVM class files: a constant pool, and static
+ * methods with their code. The class file version is 49 (Java 5), so
+ * the methods need no stack map frames; they are checked by the
+ * verifier's type inference instead.
+ */
+class ClassFile {
+    private static final int ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+
+    private ByteArrayOutputStream pool = new ByteArrayOutputStream(),
+	methods = new ByteArrayOutputStream();
+    private DataOutputStream poolOut = new DataOutputStream(pool),
+	methodsOut = new DataOutputStream(methods);
+    private HashMap<String,Integer> poolIndex = new HashMap<String,Integer>();
+    private int poolCount = 1, methodCount = 0;
+    private final int thisClass, superClass;
+    final String thisName;
+
+    ClassFile(String name, String superName) {
+	thisName = name;
+	thisClass = classRef(name);  superClass = classRef(superName);
+    }
+
+    /*
+     * The index of an entry in the constant pool (which is added if
+     * it is not there already). key identifies the entry.
+     */
+    private int entry(String key, int tag, int a, int b) {
+	Integer ix = poolIndex.get(key);
+	if (ix != null) return ix;
+	try {
+	    poolOut.writeByte(tag);
+	    if (tag == 3) {
+		poolOut.writeInt(a);
+	    } else {
+		poolOut.writeShort(a);
+		if (b >= 0) poolOut.writeShort(b);
+	    }
+	} catch (IOException e) {}
+	poolIndex.put(key, poolCount);
+	return poolCount++;
+    }
+
+    int utf8(String s) {
+	String key = "U" + s;
+	Integer ix = poolIndex.get(key);
+	if (ix != null) return ix;
+	try {
+	    poolOut.writeByte(1);  poolOut.writeUTF(s);
+	} catch (IOException e) {}
+	poolIndex.put(key, poolCount);
+	return poolCount++;
+    }
+
+    int integer(int v) {
+	return entry("I" + v, 3, v, -1);
+    }
+
+    int classRef(String name) {
+	return entry("C" + name, 7, utf8(name), -1);
+    }
+
+    private int nameAndType(String name, String desc) {
+	return entry("N" + name + " " + desc, 12, utf8(name), utf8(desc));
+    }
+
+    int fieldRef(String cls, String name, String desc) {
+	return entry("F" + cls + "." + name + " " + desc, 9,
+		     classRef(cls), nameAndType(name, desc));
+    }
+
+    int methodRef(String cls, String name, String desc) {
+	return entry("M" + cls + "." + name + " " + desc, 10,
+		     classRef(cls), nameAndType(name, desc));
+    }
+
+    void addMethod(int access, String name, String desc,
+		   byte[] code, int codeLength, int maxStack, int maxLocals) {
+	if (codeLength > 65535)
+	    Error.error("Function " + name + " is too large for the JVM!");
+	if (maxLocals > 65535)
+	    Error.error("Function " + name + " has too many variables for the JVM!");
+	try {
+	    methodsOut.writeShort(access);
+	    methodsOut.writeShort(utf8(name));
+	    methodsOut.writeShort(utf8(desc));
+	    methodsOut.writeShort(1);  // Attributes
+	    methodsOut.writeShort(utf8("Code"));
+	    methodsOut.writeInt(12 + codeLength);
+	    methodsOut.writeShort(maxStack);
+	    methodsOut.writeShort(maxLocals);
+	    methodsOut.writeInt(codeLength);
+	    methodsOut.write(code, 0, codeLength);
+	    methodsOut.writeShort(0);  // Exception table
+	    methodsOut.writeShort(0);  // Attributes
+	} catch (IOException e) {}
+	++methodCount;
+    }
+
+    byte[] toBytes() {
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	DataOutputStream out = new DataOutputStream(bytes);
+	try {
+	    out.writeInt(0xCAFEBABE);
+	    out.writeShort(0);  out.writeShort(49);
+	    out.writeShort(poolCount);
+	    pool.writeTo(out);
+	    out.writeShort(ACC_FINAL | ACC_SUPER);
+	    out.writeShort(thisClass);  out.writeShort(superClass);
+	    out.writeShort(0);  // Interfaces
+	    out.writeShort(0);  // Fields
+	    out.writeShort(methodCount);
+	    methods.writeTo(out);
+	    out.writeShort(0);  // Attributes
+	} catch (IOException e) {}
+	return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,420 @@
+package no.uio.ifi.alboc.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import no.uio.ifi.alboc.error.Error;
+import no.uio.ifi.alboc.ir.Block;
+import no.uio.ifi.alboc.ir.Function;
+import no.uio.ifi.alboc.ir.Instr;
+import static no.uio.ifi.alboc.vm.Vm.*;
+
+/*
+ * Translate a function in the intermediate representation into a
+ * static method (taking and returning ints) of the class compiled by
+ * alboc -jvm. Memory is the same int array as in the Vm, with the
+ * stack pointer kept in Vm.stackPointer; a function only sets up a
+ * frame there if it has variables in memory. Every other SSA value
+ * is a local variable of the method, except constants and variable
+ * addresses (which are pushed where they are used), and comparisons
+ * used only by a branch and word-sized array indexing used only by
+ * loads and stores (which are folded into those). Phis are assigned
+ * at the end of the predecessor blocks.
+ */
+class JvmTranslator {
+    private static final String vmClass = "no/uio/ifi/alboc/vm/Vm";
+    private static final String[] conds = {"e", "ne", "l", "le", "g", "ge"};
+    // The offset of each condition from ifeq and if_icmpeq, with the
+    // operands swapped, and negated:
+    private static final int[] jvmCond = {0, 1, 2, 5, 4, 3},
+	swapped = {0, 1, 4, 5, 2, 3}, negated = {1, 0, 5, 4, 3, 2};
+
+    // The JVM instructions used:
+    private static final int ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11,
+	LDC = 0x12, LDC_W = 0x13, ILOAD = 0x15, ALOAD = 0x19, IALOAD = 0x2e,
+	ISTORE = 0x36, ASTORE = 0x3a, IASTORE = 0x4f, POP = 0x57,
+	IADD = 0x60, ISUB = 0x64, IMUL = 0x68, IDIV = 0x6c, INEG = 0x74,
+	ISHR = 0x7a, IFEQ = 0x99, IFNE = 0x9a, IF_ICMPEQ = 0x9f, IF_ICMPGE = 0xa2,
+	GOTO = 0xa7, IRETURN = 0xac, GETSTATIC = 0xb2, PUTSTATIC = 0xb3,
+	INVOKESTATIC = 0xb8, WIDE = 0xc4;
+
+    private Function f;
+    private ClassFile cf;
+    private HashMap<Instr,ArrayList<Instr>> uses;
+    private HashMap<Instr,Integer> locals = new HashMap<Instr,Integer>();
+    private int numLocals, memLocal = -1, fpLocal = -1, savedSpLocal = -1;
+    private int maxStack = 4;
+    private byte[] code = new byte[256];
+    private int n = 0;
+    private HashMap<Block,Integer> blockStart = new HashMap<Block,Integer>();
+    private ArrayList<Integer> jumpAt = new ArrayList<Integer>();
+    private ArrayList<Block> jumpTo = new ArrayList<Block>();
+    private Block nextBlock;
+
+    JvmTranslator(Function f, ClassFile cf) {
+	this.f = f;  this.cf = cf;
+    }
+
+    static String descriptor(int numParams) {
+	StringBuilder d = new StringBuilder("(");
+	for (int k = 0;  k < numParams;  ++k) d.append('I');
+	return d.append(")I").toString();
+    }
+
+    void translate() {
+	f.splitCriticalEdges();
+	uses = f.findUses();
+	boolean argsInMemory = false, usesMemory = f.frameSize > 0;
+	for (Block b: f.blocks) {
+	    for (Instr i: b.instrs) {
+		if (i.op == Instr.Op.ADDR && frameOffset(i) >= 8)
+		    argsInMemory = true;
+		if (i.op == Instr.Op.LOAD || i.op == Instr.Op.STORE)
+		    usesMemory = true;
+	    }
+	}
+
+	numLocals = f.numParams;
+	if (usesMemory || argsInMemory) memLocal = numLocals++;
+	if (f.frameSize > 0 || argsInMemory) {
+	    fpLocal = numLocals++;  savedSpLocal = numLocals++;
+	}
+	genPrologue(argsInMemory);
+
+	for (int k = 0;  k < f.blocks.size();  ++k) {
+	    Block b = f.blocks.get(k);
+	    nextBlock = (k+1 < f.blocks.size() ? f.blocks.get(k+1) : null);
+	    blockStart.put(b, n);
+	    for (Instr i: b.instrs) translate(i);
+	}
+	for (int k = 0;  k < jumpAt.size();  ++k) {
+	    int at = jumpAt.get(k), offset = blockStart.get(jumpTo.get(k)) - at;
+	    if (offset != (short)offset)
+		Error.error("Function " + f.name + " is too large for the JVM!");
+	    code[at+1] = (byte)(offset >> 8);  code[at+2] = (byte)offset;
+	}
+
+	cf.addMethod(0x0008, f.name, descriptor(f.numParams),  // ACC_STATIC
+		     code, n, maxStack, numLocals);
+	function(f.name).defined = true;
+    }
+
+    /*
+     * Fetch the memory array and (if there are variables in memory)
+     * set up the frame as the Vm does: the arguments at 8(%ebp),
+     * 12(%ebp), ... and the local variables below.
+     */
+    private void genPrologue(boolean argsInMemory) {
+	if (memLocal >= 0) {
+	    emit(GETSTATIC);  emit2(cf.fieldRef(vmClass, "mem", "[I"));
+	    emitLocal(ASTORE, memLocal);
+	}
+	if (fpLocal < 0) return;
+
+	emit(GETSTATIC);  emit2(cf.fieldRef(vmClass, "stackPointer", "I"));
+	emitLocal(ISTORE, savedSpLocal);
+	emitLocal(ILOAD, savedSpLocal);  emitConst(4*f.numParams + 8);
+	emit(ISUB);  emitLocal(ISTORE, fpLocal);
+	if (argsInMemory) {
+	    for (int k = 0;  k < f.numParams;  ++k) {
+		emitLocal(ALOAD, memLocal);
+		emitLocal(ILOAD, fpLocal);  emit(ICONST_0+2);  emit(ISHR);
+		emitConst(2+k);  emit(IADD);
+		emitLocal(ILOAD, k);  emit(IASTORE);
+	    }
+	}
+	emitLocal(ILOAD, fpLocal);  emitConst(f.frameSize);  emit(ISUB);
+	emit(PUTSTATIC);  emit2(cf.fieldRef(vmClass, "stackPointer", "I"));
+
+	// if (stackPointer < stackLimit) stackOverflow();
+	emit(GETSTATIC);  emit2(cf.fieldRef(vmClass, "stackPointer", "I"));
+	emit(GETSTATIC);  emit2(cf.fieldRef(vmClass, "stackLimit", "I"));
+	emit(IF_ICMPGE);  emit2(6);
+	emit(INVOKESTATIC);  emit2(cf.methodRef(vmClass, "stackOverflow", "()V"));
+    }
+
+    private void emit(int b) {
+	if (n == code.length) code = Arrays.copyOf(code, 2*n);
+	code[n++] = (byte)b;
+    }
+
+    private void emit2(int v) {
+	emit(v >> 8);  emit(v);
+    }
+
+    private void emitConst(int v) {
+	if (v >= -1 && v <= 5) {
+	    emit(ICONST_0+v);
+	} else if (v == (byte)v) {
+	    emit(BIPUSH);  emit(v);
+	} else if (v == (short)v) {
+	    emit(SIPUSH);  emit2(v);
+	} else {
+	    int ix = cf.integer(v);
+	    if (ix < 256) {
+		emit(LDC);  emit(ix);
+	    } else {
+		emit(LDC_W);  emit2(ix);
+	    }
+	}
+    }
+
+    /*
+     * Emit a load or store (op is ILOAD, ISTORE, ALOAD or ASTORE) of
+     * local variable number k.
+     */
+    private void emitLocal(int op, int k) {
+	if (k <= 3) {
+	    // iload_0 etc. follow aload; istore_0 etc. follow astore:
+	    int base = (op == ILOAD ? 0x1a : op == ALOAD ? 0x2a :
+			op == ISTORE ? 0x3b : 0x4b);
+	    emit(base+k);
+	} else if (k < 256) {
+	    emit(op);  emit(k);
+	} else {
+	    emit(WIDE);  emit(op);  emit2(k);
+	}
+    }
+
+    private void emitJump(int op, Block target) {
+	jumpAt.add(n);  jumpTo.add(target);
+	emit(op);  emit2(0);
+    }
+
+    private void emitCall(String cls, String name, int numArgs) {
+	emit(INVOKESTATIC);  emit2(cf.methodRef(cls, name, descriptor(numArgs)));
+	maxStack = Math.max(maxStack, numArgs+1);
+    }
+
+    /*
+     * The local variable holding the value of v.
+     */
+    private int local(Instr v) {
+	if (v.op == Instr.Op.PARAM) return v.value;
+	Integer k = locals.get(v);
+	if (k == null) locals.put(v, k = numLocals++);
+	return k;
+    }
+
+    private int numUses(Instr i) {
+	ArrayList<Instr> u = uses.get(i);
+	return u == null ? 0 : u.size();
+    }
+
+    /*
+     * Is every use of the address a only as the address of a load or
+     * a store?
+     */
+    private boolean onlyAddressUses(Instr a) {
+	if (numUses(a) == 0) return false;
+	for (Instr u: uses.get(a)) {
+	    if (u.op != Instr.Op.LOAD && u.op != Instr.Op.STORE) return false;
+	    for (int k = 1;  k < u.args.size();  ++k)
+		if (u.args.get(k) == a) return false;
+	}
+	return true;
+    }
+
+    private boolean isFusedCmp(Instr i) {
+	return i.op == Instr.Op.CMP && numUses(i) == 1 &&
+	    uses.get(i).get(0).op == Instr.Op.BRANCH;
+    }
+
+    private boolean isFusedIndex(Instr i) {
+	return i.op == Instr.Op.INDEX && i.value == 4 && onlyAddressUses(i);
+    }
+
+    private static boolean isFrameAddr(Instr a) {
+	return a.op == Instr.Op.ADDR && a.name.endsWith("(%ebp)");
+    }
+
+    private static int frameOffset(Instr a) {
+	if (! isFrameAddr(a)) return -1;
+	String off = a.name.substring(0, a.name.length()-6);
+	return off.length() > 0 ? Integer.parseInt(off) : 0;
+    }
+
+    private static int cond(String c) {
+	for (int k = 0;  k < conds.length;  ++k)
+	    if (conds[k].equals(c)) return k;
+	Error.panic("JvmTranslator.cond");
+	return -1;
+    }
+
+    /*
+     * Push the value of v on the operand stack.
+     */
+    private void push(Instr v) {
+	switch (v.op) {
+	case CONST:
+	    emitConst(v.value);  break;
+	case UNDEF:
+	    emit(ICONST_0);  break;
+	case ADDR:
+	    if (isFrameAddr(v)) {
+		emitLocal(ILOAD, fpLocal);  emitConst(frameOffset(v));  emit(IADD);
+	    } else {
+		emitConst(globalAddress(v.name));
+	    }
+	    break;
+	default:
+	    emitLocal(ILOAD, local(v));
+	}
+    }
+
+    /*
+     * Push the memory array and the index in it of the word at the
+     * address a (for iaload or iastore).
+     */
+    private void pushWord(Instr a) {
+	emitLocal(ALOAD, memLocal);
+	if (a.op == Instr.Op.ADDR && ! isFrameAddr(a)) {
+	    emitConst(globalAddress(a.name) >> 2);
+	} else if (isFusedIndex(a)) {
+	    push(a.args.get(0));  emit(ICONST_0+2);  emit(ISHR);
+	    push(a.args.get(1));  emit(IADD);
+	} else {
+	    push(a);  emit(ICONST_0+2);  emit(ISHR);
+	}
+    }
+
+    private void translate(Instr i) {
+	Instr a = (i.args.size() > 0 ? i.args.get(0) : null),
+	    b = (i.args.size() > 1 ? i.args.get(1) : null);
+
+	switch (i.op) {
+	case UNDEF:  case PARAM:  case PHI:  case CONST:  case ADDR:
+	    break;
+
+	case COPY:  case NEG:
+	    if (numUses(i) == 0) break;
+	    push(a);
+	    if (i.op == Instr.Op.NEG) emit(INEG);
+	    emitLocal(ISTORE, local(i));
+	    break;
+
+	case ADD:  case SUB:  case MUL:  case DIV:
+	    push(a);  push(b);
+	    emit(i.op == Instr.Op.ADD ? IADD : i.op == Instr.Op.SUB ? ISUB :
+		 i.op == Instr.Op.MUL ? IMUL : IDIV);
+	    if (numUses(i) > 0)
+		emitLocal(ISTORE, local(i));
+	    else
+		emit(POP);  // The division may still trap
+	    break;
+
+	case CMP:
+	    if (isFusedCmp(i) || numUses(i) == 0) break;
+	    // local = a cond b ? 1 : 0
+	    push(a);  push(b);
+	    emit(IF_ICMPEQ + jvmCond[cond(i.cond)]);  emit2(7);
+	    emit(ICONST_0);  emit(GOTO);  emit2(4);
+	    emit(ICONST_0+1);
+	    emitLocal(ISTORE, local(i));
+	    break;
+
+	case INDEX:
+	    if (numUses(i) == 0 || isFusedIndex(i)) break;
+	    push(a);  push(b);
+	    if (i.value != 1) {
+		emitConst(i.value);  emit(IMUL);
+	    }
+	    emit(IADD);
+	    emitLocal(ISTORE, local(i));
+	    break;
+
+	case LOAD:
+	    pushWord(a);  emit(IALOAD);
+	    if (numUses(i) > 0)
+		emitLocal(ISTORE, local(i));
+	    else
+		emit(POP);
+	    break;
+
+	case STORE:
+	    pushWord(a);  push(b);  emit(IASTORE);
+	    break;
+
+	case CALL:  case TAILCALL:
+	    VmFunction g = function(i.name);
+	    for (Instr arg: i.args) push(arg);
+	    emitCall(g.builtin != VmFunction.NONE ? vmClass : cf.thisName,
+		     i.name, i.args.size());
+	    if (i.op == Instr.Op.TAILCALL) {
+		// The JVM has no tail calls (but calls to the function
+		// itself have already become loops):
+		genEpilogue();  emit(IRETURN);
+	    } else if (numUses(i) > 0) {
+		emitLocal(ISTORE, local(i));
+	    } else {
+		emit(POP);
+	    }
+	    break;
+
+	case JUMP:
+	    genPhiCopies(i.block, i.block.succs.get(0));
+	    if (i.block.succs.get(0) != nextBlock)
+		emitJump(GOTO, i.block.succs.get(0));
+	    break;
+
+	case BRANCH:
+	    Block ifTrue = i.block.succs.get(0), ifFalse = i.block.succs.get(1);
+	    if (isFusedCmp(a)) {
+		int c = cond(a.cond);
+		Instr x = a.args.get(0), y = a.args.get(1);
+		if (x.isConst() && x.value == 0) {
+		    Instr t = x;  x = y;  y = t;  c = swapped[c];
+		}
+		if (ifTrue == nextBlock) {
+		    c = negated[c];  ifTrue = ifFalse;  ifFalse = nextBlock;
+		}
+		push(x);
+		if (y.isConst() && y.value == 0) {
+		    emitJump(IFEQ + jvmCond[c], ifTrue);
+		} else {
+		    push(y);  emitJump(IF_ICMPEQ + jvmCond[c], ifTrue);
+		}
+	    } else if (ifTrue == nextBlock) {
+		push(a);  emitJump(IFEQ, ifFalse);
+		ifFalse = nextBlock;
+	    } else {
+		push(a);  emitJump(IFNE, ifTrue);
+	    }
+	    if (ifFalse != nextBlock)
+		emitJump(GOTO, ifFalse);
+	    break;
+
+	case RET:
+	    if (a == null) emit(ICONST_0); else push(a);
+	    genEpilogue();  emit(IRETURN);
+	    break;
+	}
+    }
+
+    /*
+     * Pop the frame (if there is one) off the memory stack.
+     */
+    private void genEpilogue() {
+	if (savedSpLocal < 0) return;
+	emitLocal(ILOAD, savedSpLocal);
+	emit(PUTSTATIC);  emit2(cf.fieldRef(vmClass, "stackPointer", "I"));
+    }
+
+    /*
+     * Assign the phis of succ their arguments from the block from. All
+     * the values are pushed before any is stored, so the assignments
+     * are done in parallel.
+     */
+    private void genPhiCopies(Block from, Block succ) {
+	int ix = succ.preds.indexOf(from);
+	ArrayList<Instr> phis = new ArrayList<Instr>();
+	for (Instr i: succ.instrs)
+	    if (i.op == Instr.Op.PHI && numUses(i) > 0 && i.args.get(ix) != i)
+		phis.add(i);
+
+	for (Instr p: phis) push(p.args.get(ix));
+	for (int k = phis.size()-1;  k >= 0;  --k)
+	    emitLocal(ISTORE, local(phis.get(k)));
+	maxStack = Math.max(maxStack, phis.size()+1);
+    }
+}
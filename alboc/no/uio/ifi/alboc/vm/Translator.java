@@ -0,0 +1,354 @@
+package no.uio.ifi.alboc.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import no.uio.ifi.alboc.error.Error;
+import no.uio.ifi.alboc.ir.Block;
+import no.uio.ifi.alboc.ir.Function;
+import no.uio.ifi.alboc.ir.Instr;
+import static no.uio.ifi.alboc.vm.Vm.*;
+
+/*
+ * Translate a function in the intermediate representation into
+ * bytecode for the virtual machine. Every SSA value gets its own
+ * register, except those which are folded into the instructions using
+ * them: constant operands of arithmetic and compare-and-branch
+ * instructions, variable addresses used by loads and stores, array
+ * indexing (with constant or word-sized elements) used only by loads
+ * and stores, and comparisons used only
+ * by a branch. Phis are replaced by copies at the end of the
+ * predecessor blocks.
+ */
+class Translator {
+    private static final String[] conds = {"e", "ne", "l", "le", "g", "ge"};
+
+    private Function f;
+    private VmFunction vf;
+    private HashMap<Instr,ArrayList<Instr>> uses;
+    private HashMap<Instr,Integer> regs = new HashMap<Instr,Integer>();
+    private int numRegs = 0;
+    private int[] code = new int[64];
+    private int n = 0;
+    private HashMap<Block,Integer> blockStart = new HashMap<Block,Integer>();
+    private ArrayList<Integer> jumpAt = new ArrayList<Integer>();
+    private ArrayList<Block> jumpTo = new ArrayList<Block>();
+    private Block nextBlock;
+
+    Translator(Function f) {
+	this.f = f;
+	vf = function(f.name);
+    }
+
+    void translate() {
+	f.splitCriticalEdges();
+	uses = f.findUses();
+	int numParams = 0;
+	for (Block b: f.blocks) {
+	    for (Instr i: b.instrs) {
+		if (i.op == Instr.Op.PARAM)
+		    numParams = Math.max(numParams, i.value+1);
+		if (i.op == Instr.Op.ADDR && frameOffset(i) >= 8)
+		    vf.argsInMemory = true;
+	    }
+	}
+
+	for (int k = 0;  k < f.blocks.size();  ++k) {
+	    Block b = f.blocks.get(k);
+	    nextBlock = (k+1 < f.blocks.size() ? f.blocks.get(k+1) : null);
+	    blockStart.put(b, n);
+	    for (Instr i: b.instrs) translate(i);
+	}
+	for (int k = 0;  k < jumpAt.size();  ++k)
+	    code[jumpAt.get(k)] = blockStart.get(jumpTo.get(k));
+
+	vf.paramRegs = new int[numParams];
+	Arrays.fill(vf.paramRegs, -1);
+	for (Block b: f.blocks)
+	    for (Instr i: b.instrs)
+		if (i.op == Instr.Op.PARAM && regs.containsKey(i))
+		    vf.paramRegs[i.value] = regs.get(i);
+	vf.code = Arrays.copyOf(code, n);
+	vf.numRegs = numRegs;
+	vf.frameSize = f.frameSize;
+	vf.defined = true;
+    }
+
+    private void emit(int... words) {
+	if (n+words.length > code.length)
+	    code = Arrays.copyOf(code, 2*(n+words.length));
+	for (int w: words) code[n++] = w;
+    }
+
+    private void emitJump(int op, Block target, int... operands) {
+	emit(op);  emit(operands);
+	jumpAt.add(n);  jumpTo.add(target);
+	emit(0);
+    }
+
+    /*
+     * The register holding the value of v.
+     */
+    private int reg(Instr v) {
+	Integer r = regs.get(v);
+	if (r == null) regs.put(v, r = numRegs++);
+	return r;
+    }
+
+    private int numUses(Instr i) {
+	ArrayList<Instr> u = uses.get(i);
+	return u == null ? 0 : u.size();
+    }
+
+    /*
+     * Is every use of the address a only as the address of a load or
+     * a store (so that it may be folded into those)?
+     */
+    private boolean onlyAddressUses(Instr a) {
+	if (numUses(a) == 0) return false;
+	for (Instr u: uses.get(a)) {
+	    if (u.op != Instr.Op.LOAD && u.op != Instr.Op.STORE) return false;
+	    for (int k = 1;  k < u.args.size();  ++k)
+		if (u.args.get(k) == a) return false;
+	}
+	return true;
+    }
+
+    private boolean isFusedCmp(Instr i) {
+	return i.op == Instr.Op.CMP && numUses(i) == 1 &&
+	    uses.get(i).get(0).op == Instr.Op.BRANCH;
+    }
+
+    private boolean isFusedIndex(Instr i) {
+	return i.op == Instr.Op.INDEX &&
+	    (i.value == 4 || i.args.get(1).isConst()) && onlyAddressUses(i);
+    }
+
+    /*
+     * Which argument of i (if any) is used as an immediate operand?
+     */
+    private int immediateArg(Instr i) {
+	if (i.args.size() != 2) return -1;
+	boolean aConst = i.args.get(0).isConst(), bConst = i.args.get(1).isConst();
+	switch (i.op) {
+	case CMP:
+	    if (! isFusedCmp(i)) return -1;
+	    return bConst ? 1 : aConst ? 0 : -1;
+	case ADD:  case MUL:
+	    return bConst ? 1 : aConst ? 0 : -1;
+	case SUB:  case DIV:  case INDEX:
+	    return bConst ? 1 : -1;
+	}
+	return -1;
+    }
+
+    /*
+     * Is the constant c needed in a register (by some use which cannot
+     * take it as an immediate)?
+     */
+    private boolean needsReg(Instr c) {
+	if (numUses(c) == 0) return false;
+	for (Instr u: uses.get(c)) {
+	    if (u.op == Instr.Op.PHI) continue;  // Copied with LDI
+	    int imm = immediateArg(u);
+	    for (int k = 0;  k < u.args.size();  ++k)
+		if (u.args.get(k) == c && k != imm) return true;
+	}
+	return false;
+    }
+
+    private static boolean isFrameAddr(Instr a) {
+	return a.op == Instr.Op.ADDR && a.name.endsWith("(%ebp)");
+    }
+
+    private static int frameOffset(Instr a) {
+	if (! isFrameAddr(a)) return -1;
+	String off = a.name.substring(0, a.name.length()-6);
+	return off.length() > 0 ? Integer.parseInt(off) : 0;
+    }
+
+    private static int cond(String c) {
+	for (int k = 0;  k < conds.length;  ++k)
+	    if (conds[k].equals(c)) return k;
+	Error.panic("Translator.cond");
+	return -1;
+    }
+
+    // The condition with the operands swapped, and its negation:
+    private static final int[] swapped = {0, 1, 4, 5, 2, 3},
+	negated = {1, 0, 5, 4, 3, 2};
+
+    private void translate(Instr i) {
+	Instr a = (i.args.size() > 0 ? i.args.get(0) : null),
+	    b = (i.args.size() > 1 ? i.args.get(1) : null);
+
+	switch (i.op) {
+	case UNDEF:  case PARAM:  case PHI:
+	    break;
+
+	case CONST:
+	    if (needsReg(i)) emit(LDI, reg(i), i.value);
+	    break;
+
+	case COPY:
+	    emit(MOV, reg(i), reg(a));
+	    break;
+
+	case ADD:  case SUB:  case MUL:  case DIV:
+	    int imm = immediateArg(i);
+	    if (imm >= 0) {
+		Instr other = i.args.get(1-imm);
+		int c = i.args.get(imm).value;
+		switch (i.op) {
+		case ADD:  emit(ADDI, reg(i), reg(other), c);  break;
+		case SUB:  emit(ADDI, reg(i), reg(other), -c);  break;
+		case MUL:  emit(MULI, reg(i), reg(other), c);  break;
+		case DIV:  emit(DIVI, reg(i), reg(other), c);  break;
+		}
+	    } else {
+		int op = (i.op == Instr.Op.ADD ? ADD : i.op == Instr.Op.SUB ? SUB :
+			  i.op == Instr.Op.MUL ? MUL : DIV);
+		emit(op, reg(i), reg(a), reg(b));
+	    }
+	    break;
+
+	case NEG:
+	    emit(NEG, reg(i), reg(a));
+	    break;
+
+	case CMP:
+	    if (! isFusedCmp(i))
+		emit(SEQ+cond(i.cond), reg(i), reg(a), reg(b));
+	    break;
+
+	case ADDR:
+	    if (numUses(i) == 0 || onlyAddressUses(i)) break;
+	    if (isFrameAddr(i))
+		emit(FADDR, reg(i), frameOffset(i));
+	    else
+		emit(LDI, reg(i), globalAddress(i.name));
+	    break;
+
+	case INDEX:
+	    if (isFusedIndex(i)) break;
+	    if (b.isConst())
+		emit(ADDI, reg(i), reg(a), b.value*i.value);
+	    else
+		emit(IDX, reg(i), reg(a), reg(b), i.value);
+	    break;
+
+	case LOAD:
+	    if (isFrameAddr(a))
+		emit(LDF, reg(i), frameOffset(a));
+	    else if (a.op == Instr.Op.ADDR)
+		emit(LDG, reg(i), globalAddress(a.name));
+	    else if (isFusedIndex(a) && a.args.get(1).isConst())
+		emit(LD, reg(i), reg(a.args.get(0)), a.args.get(1).value*a.value);
+	    else if (isFusedIndex(a))
+		emit(LDX, reg(i), reg(a.args.get(0)), reg(a.args.get(1)));
+	    else
+		emit(LD, reg(i), reg(a), 0);
+	    break;
+
+	case STORE:
+	    if (isFrameAddr(a))
+		emit(STF, frameOffset(a), reg(b));
+	    else if (a.op == Instr.Op.ADDR)
+		emit(STG, globalAddress(a.name), reg(b));
+	    else if (isFusedIndex(a) && a.args.get(1).isConst())
+		emit(ST, reg(a.args.get(0)), a.args.get(1).value*a.value, reg(b));
+	    else if (isFusedIndex(a))
+		emit(STX, reg(a.args.get(0)), reg(a.args.get(1)), reg(b));
+	    else
+		emit(ST, reg(a), 0, reg(b));
+	    break;
+
+	case CALL:
+	    emit(CALL, reg(i), function(i.name).index, i.args.size());
+	    for (Instr arg: i.args) emit(reg(arg));
+	    break;
+
+	case TAILCALL:
+	    if (function(i.name).builtin != VmFunction.NONE) {
+		// The library functions are called and returned from:
+		emit(CALL, reg(i), function(i.name).index, i.args.size());
+		for (Instr arg: i.args) emit(reg(arg));
+		emit(RET, reg(i));
+		break;
+	    }
+	    emit(TCALL, function(i.name).index, i.args.size());
+	    for (Instr arg: i.args) emit(reg(arg));
+	    break;
+
+	case JUMP:
+	    genPhiCopies(i.block, i.block.succs.get(0));
+	    if (i.block.succs.get(0) != nextBlock)
+		emitJump(JMP, i.block.succs.get(0));
+	    break;
+
+	case BRANCH:
+	    Block ifTrue = i.block.succs.get(0), ifFalse = i.block.succs.get(1);
+	    if (isFusedCmp(a)) {
+		int c = cond(a.cond), imm2 = immediateArg(a);
+		Instr x = a.args.get(0), y = a.args.get(1);
+		if (imm2 == 0) {
+		    Instr t = x;  x = y;  y = t;  c = swapped[c];
+		}
+		if (ifTrue == nextBlock) {
+		    c = negated[c];  ifTrue = ifFalse;  ifFalse = nextBlock;
+		}
+		if (imm2 >= 0)
+		    emitJump(BEQI+c, ifTrue, reg(x), y.value);
+		else
+		    emitJump(BEQ+c, ifTrue, reg(x), reg(y));
+	    } else if (ifTrue == nextBlock) {
+		emitJump(BZ, ifFalse, reg(a));
+		ifFalse = nextBlock;
+	    } else {
+		emitJump(BNZ, ifTrue, reg(a));
+	    }
+	    if (ifFalse != nextBlock)
+		emitJump(JMP, ifFalse);
+	    break;
+
+	case RET:
+	    if (a == null)
+		emit(RET0);
+	    else
+		emit(RET, reg(a));
+	    break;
+	}
+    }
+
+    /*
+     * Copy the phi arguments from the block from to the phis of succ.
+     * The copies are done in parallel (through temporary registers if
+     * some phi is the source of another's copy).
+     */
+    private void genPhiCopies(Block from, Block succ) {
+	int ix = succ.preds.indexOf(from);
+	ArrayList<Instr> phis = new ArrayList<Instr>();
+	for (Instr i: succ.instrs)
+	    if (i.op == Instr.Op.PHI && numUses(i) > 0 &&
+		i.args.get(ix).op != Instr.Op.UNDEF && i.args.get(ix) != i)
+		phis.add(i);
+
+	boolean overlap = false;
+	for (Instr p: phis)
+	    for (Instr q: phis)
+		if (q.args.get(ix) == p && q != p) overlap = true;
+
+	int[] temps = new int[phis.size()];
+	for (int k = 0;  k < phis.size();  ++k) {
+	    Instr p = phis.get(k), src = p.args.get(ix);
+	    int dest = (overlap ? (temps[k] = numRegs++) : reg(p));
+	    if (src.isConst() && ! needsReg(src))
+		emit(LDI, dest, src.value);
+	    else
+		emit(MOV, dest, reg(src));
+	}
+	if (overlap)
+	    for (int k = 0;  k < phis.size();  ++k)
+		emit(MOV, reg(phis.get(k)), temps[k]);
+    }
+}
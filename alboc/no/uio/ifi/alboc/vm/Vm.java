@@ -0,0 +1,452 @@
+package no.uio.ifi.alboc.vm;
+
+/*
+ * module Vm
+ */
+
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import no.uio.ifi.alboc.error.Error;
+import no.uio.ifi.alboc.ir.Backend;
+import no.uio.ifi.alboc.ir.Function;
+
+/*
+ * A virtual machine which runs AlboC programs without gcc (alboc -run).
+ * The functions are translated from the intermediate representation
+ * into register bytecode (see Translator), which is run by a dispatch
+ * loop. Memory is a flat array of ints with the global variables at
+ * the bottom and the stack at the top. The frames are laid out as on
+ * the x86 (with the arguments at 8(%ebp), 12(%ebp), ...), so the
+ * addresses in the IR are used as they are.
+ *
+ * With alboc -jvm, the functions are instead compiled into a class of
+ * static methods (see JvmTranslator), which is loaded as a hidden
+ * class so that HotSpot compiles the hot ones to machine code.
+ */
+public class Vm {
+    // The instructions. The operands follow the opcode in the code;
+    // d, a and b are registers (in the current function's window),
+    // t is the index of a jump target in the code:
+    static final int
+	MOV = 0,    // d a:      d = a
+	LDI = 1,    // d c:      d = c
+	ADD = 2,    // d a b:    d = a + b
+	SUB = 3,    // d a b:    d = a - b
+	MUL = 4,    // d a b:    d = a * b
+	DIV = 5,    // d a b:    d = a / b
+	ADDI = 6,   // d a c:    d = a + c
+	MULI = 7,   // d a c:    d = a * c
+	DIVI = 8,   // d a c:    d = a / c
+	NEG = 9,    // d a:      d = -a
+	IDX = 10,   // d a b c:  d = a + b*c
+	FADDR = 11, // d c:      d = %ebp + c
+	SEQ = 12, SNE = 13, SLT = 14, SLE = 15, SGT = 16, SGE = 17,
+	            // d a b:    d = a cond b ? 1 : 0
+	BEQ = 18, BNE = 19, BLT = 20, BLE = 21, BGT = 22, BGE = 23,
+	            // a b t:    if (a cond b) jump to t
+	BEQI = 24, BNEI = 25, BLTI = 26, BLEI = 27, BGTI = 28, BGEI = 29,
+	            // a c t:    if (a cond c) jump to t
+	BNZ = 30,   // a t:      if (a != 0) jump to t
+	BZ = 31,    // a t:      if (a == 0) jump to t
+	JMP = 32,   // t
+	LD = 33,    // d a c:    d = *(a+c)
+	ST = 34,    // a c b:    *(a+c) = b
+	LDF = 35,   // d c:      d = *(%ebp+c)
+	STF = 36,   // c b:      *(%ebp+c) = b
+	LDG = 37,   // d c:      d = *c
+	STG = 38,   // c b:      *c = b
+	LDX = 39,   // d a b:    d = *(a+4*b)
+	STX = 40,   // a b e:    *(a+4*b) = e
+	CALL = 41,  // d f n a1 ... an:  d = f(a1, ..., an)
+	TCALL = 42, // f n a1 ... an:    return f(a1, ..., an)
+	RET = 43,   // a:        return a
+	RET0 = 44;  //           return (without a value)
+
+    public static int stackSize = 8 << 20;  // Bytes
+    public static boolean compileToJvm = false;  // Compile to JVM bytecode?
+
+    private static ArrayList<VmFunction> functions = new ArrayList<VmFunction>();
+    private static HashMap<String,VmFunction> functionNames =
+	new HashMap<String,VmFunction>();
+    private static HashMap<String,Integer> globals = new HashMap<String,Integer>();
+    private static int globalsEnd = 16;  // Address 0 is never used
+
+    private static ClassFile program = null;  // When compileToJvm
+
+    // The memory, and (for the compiled program) its stack pointer
+    // and the lowest address the stack may grow to:
+    static int[] mem;
+    static int stackPointer, stackLimit;
+    private static InputStream in;
+    private static OutputStream out;
+    private static int nextChar = -2;  // Read ahead by getint (or -2)
+
+    static {
+	function("putchar").builtin = VmFunction.PUTCHAR;
+	function("putint").builtin = VmFunction.PUTINT;
+	function("getchar").builtin = VmFunction.GETCHAR;
+	function("getint").builtin = VmFunction.GETINT;
+	function("exit").builtin = VmFunction.EXIT;
+    }
+
+    /*
+     * Define a (zero-initialized) global variable of nBytes bytes.
+     * Arrays of 32 bytes or more are aligned as in Code.genVar.
+     */
+    public static void defineVar(String name, int nBytes) {
+	int align = (nBytes >= 32 ? 32 : 4);
+	globalsEnd = (globalsEnd+align-1) & -align;
+	globals.put(name, globalsEnd);
+	globalsEnd += nBytes;
+    }
+
+    static int globalAddress(String name) {
+	Integer addr = globals.get(name);
+	if (addr == null) Error.panic("Vm.globalAddress(" + name + ")");
+	return addr;
+    }
+
+    /*
+     * The function called name (which is created if it has not been
+     * seen before).
+     */
+    static VmFunction function(String name) {
+	VmFunction f = functionNames.get(name);
+	if (f == null) {
+	    f = new VmFunction(name, functions.size());
+	    functions.add(f);  functionNames.put(name, f);
+	}
+	return f;
+    }
+
+    /*
+     * The PassManager's backend for -run and -jvm.
+     */
+    public static final Backend backend = new Backend() {
+	public String name() { return "translate to bytecode"; }
+	public void lower(Function f) { translate(f); }
+	public void defineVar(String name, int n, int nBytes) {
+	    Vm.defineVar(name, n*nBytes);
+	}
+    };
+
+    public static void translate(Function f) {
+	if (compileToJvm) {
+	    if (program == null)
+		program = new ClassFile("no/uio/ifi/alboc/vm/Program", "java/lang/Object");
+	    new JvmTranslator(f, program).translate();
+	} else {
+	    new Translator(f).translate();
+	}
+    }
+
+
+    /*
+     * Run the program (from main) and return its exit status.
+     */
+    public static int run() {
+	VmFunction main = functionNames.get("main");
+	if (main == null || ! main.defined)
+	    Error.error("The program has no main function!");
+	for (VmFunction f: functions)
+	    if (! f.defined && f.builtin == VmFunction.NONE)
+		Error.error("Function " + f.name + " is not defined!");
+
+	System.out.flush();
+	mem = new int[(globalsEnd+stackSize+3) / 4];
+	in = new BufferedInputStream(new FileInputStream(FileDescriptor.in));
+	out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16);
+	try {
+	    return compileToJvm ? runJvm() : execute(main);
+	} finally {
+	    try {
+		out.flush();
+	    } catch (IOException e) {}
+	}
+    }
+
+    private static int execute(VmFunction main) {
+	VmFunction[] funcs = functions.toArray(new VmFunction[0]);
+	VmFunction f = main;
+	int[] c = f.code, m = mem, r = new int[Math.max(1024, 2*f.numRegs)];
+	int pc = 0, base = 0, fp, sp = m.length*4, stackLimit = globalsEnd;
+	// The caller of each active function (where to continue, its
+	// register window, the register for the result, and its frame):
+	int depth = 1, maxDepth = 256;
+	VmFunction[] callers = new VmFunction[maxDepth];
+	int[] retPc = new int[maxDepth], retBase = new int[maxDepth],
+	    retDest = new int[maxDepth], savedFp = new int[maxDepth],
+	    savedSp = new int[maxDepth];
+	int[] argv = new int[8];  // Arguments of tail calls
+	savedSp[0] = sp;
+	fp = sp - 8;  sp = fp - f.frameSize;
+
+	try {
+	    for (;;) {
+		switch (c[pc]) {
+		case MOV:  r[base+c[pc+1]] = r[base+c[pc+2]];  pc += 3;  break;
+		case LDI:  r[base+c[pc+1]] = c[pc+2];  pc += 3;  break;
+		case ADD:
+		    r[base+c[pc+1]] = r[base+c[pc+2]] + r[base+c[pc+3]];  pc += 4;  break;
+		case SUB:
+		    r[base+c[pc+1]] = r[base+c[pc+2]] - r[base+c[pc+3]];  pc += 4;  break;
+		case MUL:
+		    r[base+c[pc+1]] = r[base+c[pc+2]] * r[base+c[pc+3]];  pc += 4;  break;
+		case DIV:
+		    r[base+c[pc+1]] = r[base+c[pc+2]] / r[base+c[pc+3]];  pc += 4;  break;
+		case ADDI:  r[base+c[pc+1]] = r[base+c[pc+2]] + c[pc+3];  pc += 4;  break;
+		case MULI:  r[base+c[pc+1]] = r[base+c[pc+2]] * c[pc+3];  pc += 4;  break;
+		case DIVI:  r[base+c[pc+1]] = r[base+c[pc+2]] / c[pc+3];  pc += 4;  break;
+		case NEG:  r[base+c[pc+1]] = -r[base+c[pc+2]];  pc += 3;  break;
+		case IDX:
+		    r[base+c[pc+1]] = r[base+c[pc+2]] + r[base+c[pc+3]]*c[pc+4];  pc += 5;  break;
+		case FADDR:  r[base+c[pc+1]] = fp + c[pc+2];  pc += 3;  break;
+
+		case SEQ:  r[base+c[pc+1]] = r[base+c[pc+2]] == r[base+c[pc+3]] ? 1 : 0;  pc += 4;  break;
+		case SNE:  r[base+c[pc+1]] = r[base+c[pc+2]] != r[base+c[pc+3]] ? 1 : 0;  pc += 4;  break;
+		case SLT:  r[base+c[pc+1]] = r[base+c[pc+2]] <  r[base+c[pc+3]] ? 1 : 0;  pc += 4;  break;
+		case SLE:  r[base+c[pc+1]] = r[base+c[pc+2]] <= r[base+c[pc+3]] ? 1 : 0;  pc += 4;  break;
+		case SGT:  r[base+c[pc+1]] = r[base+c[pc+2]] >  r[base+c[pc+3]] ? 1 : 0;  pc += 4;  break;
+		case SGE:  r[base+c[pc+1]] = r[base+c[pc+2]] >= r[base+c[pc+3]] ? 1 : 0;  pc += 4;  break;
+
+		case BEQ:  pc = r[base+c[pc+1]] == r[base+c[pc+2]] ? c[pc+3] : pc+4;  break;
+		case BNE:  pc = r[base+c[pc+1]] != r[base+c[pc+2]] ? c[pc+3] : pc+4;  break;
+		case BLT:  pc = r[base+c[pc+1]] <  r[base+c[pc+2]] ? c[pc+3] : pc+4;  break;
+		case BLE:  pc = r[base+c[pc+1]] <= r[base+c[pc+2]] ? c[pc+3] : pc+4;  break;
+		case BGT:  pc = r[base+c[pc+1]] >  r[base+c[pc+2]] ? c[pc+3] : pc+4;  break;
+		case BGE:  pc = r[base+c[pc+1]] >= r[base+c[pc+2]] ? c[pc+3] : pc+4;  break;
+		case BEQI:  pc = r[base+c[pc+1]] == c[pc+2] ? c[pc+3] : pc+4;  break;
+		case BNEI:  pc = r[base+c[pc+1]] != c[pc+2] ? c[pc+3] : pc+4;  break;
+		case BLTI:  pc = r[base+c[pc+1]] <  c[pc+2] ? c[pc+3] : pc+4;  break;
+		case BLEI:  pc = r[base+c[pc+1]] <= c[pc+2] ? c[pc+3] : pc+4;  break;
+		case BGTI:  pc = r[base+c[pc+1]] >  c[pc+2] ? c[pc+3] : pc+4;  break;
+		case BGEI:  pc = r[base+c[pc+1]] >= c[pc+2] ? c[pc+3] : pc+4;  break;
+		case BNZ:  pc = r[base+c[pc+1]] != 0 ? c[pc+2] : pc+3;  break;
+		case BZ:   pc = r[base+c[pc+1]] == 0 ? c[pc+2] : pc+3;  break;
+		case JMP:  pc = c[pc+1];  break;
+
+		case LD:  r[base+c[pc+1]] = m[(r[base+c[pc+2]]+c[pc+3]) >> 2];  pc += 4;  break;
+		case ST:  m[(r[base+c[pc+1]]+c[pc+2]) >> 2] = r[base+c[pc+3]];  pc += 4;  break;
+		case LDF:  r[base+c[pc+1]] = m[(fp+c[pc+2]) >> 2];  pc += 3;  break;
+		case STF:  m[(fp+c[pc+1]) >> 2] = r[base+c[pc+2]];  pc += 3;  break;
+		case LDG:  r[base+c[pc+1]] = m[c[pc+2] >> 2];  pc += 3;  break;
+		case STG:  m[c[pc+1] >> 2] = r[base+c[pc+2]];  pc += 3;  break;
+		case LDX:
+		    r[base+c[pc+1]] = m[(r[base+c[pc+2]] >> 2) + r[base+c[pc+3]]];  pc += 4;  break;
+		case STX:
+		    m[(r[base+c[pc+1]] >> 2) + r[base+c[pc+2]]] = r[base+c[pc+3]];  pc += 4;  break;
+
+		case CALL: {
+		    VmFunction g = funcs[c[pc+2]];
+		    int n = c[pc+3], args = pc+4;
+		    if (g.builtin != VmFunction.NONE) {
+			if (g.builtin == VmFunction.EXIT) return r[base+c[args]];
+			r[base+c[pc+1]] = builtin(g.builtin, n > 0 ? r[base+c[args]] : 0);
+			pc = args+n;  break;
+		    }
+		    if (depth == maxDepth) {
+			maxDepth *= 2;
+			callers = Arrays.copyOf(callers, maxDepth);
+			retPc = Arrays.copyOf(retPc, maxDepth);
+			retBase = Arrays.copyOf(retBase, maxDepth);
+			retDest = Arrays.copyOf(retDest, maxDepth);
+			savedFp = Arrays.copyOf(savedFp, maxDepth);
+			savedSp = Arrays.copyOf(savedSp, maxDepth);
+		    }
+		    callers[depth] = f;  retPc[depth] = args+n;  retBase[depth] = base;
+		    retDest[depth] = c[pc+1];  savedFp[depth] = fp;  savedSp[depth] = sp;
+		    ++depth;
+
+		    int newBase = base + f.numRegs;
+		    if (newBase+g.numRegs > r.length)
+			r = Arrays.copyOf(r, 2*(newBase+g.numRegs));
+		    sp -= 4*n;
+		    for (int k = 0;  k < n;  ++k) {
+			int v = r[base+c[args+k]];
+			if (g.argsInMemory) m[(sp>>2)+k] = v;
+			if (k < g.paramRegs.length && g.paramRegs[k] >= 0)
+			    r[newBase+g.paramRegs[k]] = v;
+		    }
+		    fp = sp - 8;  sp = fp - g.frameSize;
+		    if (sp < stackLimit) Error.error("Stack overflow in function " + g.name + "!");
+		    f = g;  c = g.code;  pc = 0;  base = newBase;
+		    break;
+		}
+
+		case TCALL: {
+		    // Replace the current function by g:
+		    VmFunction g = funcs[c[pc+1]];
+		    int n = c[pc+2], args = pc+3;
+		    if (n > argv.length) argv = new int[n];
+		    for (int k = 0;  k < n;  ++k) argv[k] = r[base+c[args+k]];
+		    if (base+g.numRegs > r.length)
+			r = Arrays.copyOf(r, 2*(base+g.numRegs));
+		    sp = savedSp[depth-1] - 4*n;
+		    for (int k = 0;  k < n;  ++k) {
+			if (g.argsInMemory) m[(sp>>2)+k] = argv[k];
+			if (k < g.paramRegs.length && g.paramRegs[k] >= 0)
+			    r[base+g.paramRegs[k]] = argv[k];
+		    }
+		    fp = sp - 8;  sp = fp - g.frameSize;
+		    if (sp < stackLimit) Error.error("Stack overflow in function " + g.name + "!");
+		    f = g;  c = g.code;  pc = 0;
+		    break;
+		}
+
+		case RET:  case RET0: {
+		    int v = (c[pc] == RET ? r[base+c[pc+1]] : 0);
+		    if (--depth == 0) return v;
+		    f = callers[depth];  c = f.code;  pc = retPc[depth];
+		    base = retBase[depth];  fp = savedFp[depth];  sp = savedSp[depth];
+		    r[base+retDest[depth]] = v;
+		    break;
+		}
+
+		default:
+		    Error.panic("Vm.execute");
+		}
+	    }
+	} catch (ArrayIndexOutOfBoundsException e) {
+	    Error.error("Illegal memory access in function " + f.name + "!");
+	} catch (ArithmeticException e) {
+	    Error.error("Division by zero in function " + f.name + "!");
+	}
+	return 1;
+    }
+
+    /*
+     * Load the compiled program and run its main method (in a thread
+     * with a large stack, since every AlboC call is a JVM call).
+     */
+    private static int runJvm() {
+	final MethodHandle main;
+	try {
+	    MethodHandles.Lookup program = MethodHandles.lookup().
+		defineHiddenClass(Vm.program.toBytes(), true);
+	    main = program.findStatic(program.lookupClass(), "main",
+				      MethodType.methodType(int.class));
+	} catch (ReflectiveOperationException | LinkageError e) {
+	    Error.error("The compiled program could not be loaded: " + e);
+	    return 1;
+	}
+	stackPointer = mem.length*4;  stackLimit = globalsEnd;
+
+	final int[] status = {1};
+	final String[] failure = {null};
+	final Throwable[] bug = {null};
+	Thread t = new Thread(null, new Runnable() {
+		public void run() {
+		    try {
+			status[0] = (int)main.invokeExact();
+		    } catch (Exit e) {
+			status[0] = e.status;
+		    } catch (ArrayIndexOutOfBoundsException e) {
+			failure[0] = "Illegal memory access!";
+		    } catch (ArithmeticException e) {
+			failure[0] = "Division by zero!";
+		    } catch (StackOverflowError e) {
+			failure[0] = "Stack overflow!";
+		    } catch (Throwable e) {
+			bug[0] = e;
+		    }
+		}
+	    }, "alboc", 1L << 30);
+	t.start();
+	try {
+	    t.join();
+	} catch (InterruptedException e) {}
+	if (failure[0] != null) Error.error(failure[0]);
+	if (bug[0] != null) Error.panic("Vm.runJvm: " + bug[0]);
+	return status[0];
+    }
+
+    /*
+     * Thrown by exit in the compiled program.
+     */
+    private static class Exit extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	final int status;
+
+	Exit(int status) {
+	    super(null, null, false, false);
+	    this.status = status;
+	}
+    }
+
+    // The library functions, as called by the compiled program:
+    static int putchar(int c) {
+	return builtin(VmFunction.PUTCHAR, c);
+    }
+
+    static int putint(int v) {
+	return builtin(VmFunction.PUTINT, v);
+    }
+
+    static int getchar() {
+	return builtin(VmFunction.GETCHAR, 0);
+    }
+
+    static int getint() {
+	return builtin(VmFunction.GETINT, 0);
+    }
+
+    static int exit(int status) {
+	throw new Exit(status);
+    }
+
+    static void stackOverflow() {
+	throw new StackOverflowError();
+    }
+
+    private static int builtin(int which, int arg) {
+	try {
+	    switch (which) {
+	    case VmFunction.PUTCHAR:
+		out.write(arg);
+		return arg;
+	    case VmFunction.PUTINT:
+		byte[] digits = Integer.toString(arg).getBytes();
+		out.write(digits);
+		return digits.length;
+	    case VmFunction.GETCHAR:
+		return readChar();
+	    case VmFunction.GETINT:
+		return readInt();
+	    }
+	} catch (IOException e) {
+	    Error.error("Input/output error!");
+	}
+	return 0;
+    }
+
+    private static int readChar() throws IOException {
+	if (nextChar != -2) {
+	    int ch = nextChar;  nextChar = -2;
+	    return ch;
+	}
+	if (in.available() == 0) out.flush();  // Show any prompt first
+	return in.read();
+    }
+
+    /*
+     * Read an integer like scanf("%d"); 0 is returned if there is none.
+     */
+    private static int readInt() throws IOException {
+	int ch = readChar();
+	while (ch == ' ' || ch == '\t' || ch == '\n' || ch == '\r') ch = readChar();
+	boolean negative = (ch == '-');
+	if (ch == '-' || ch == '+') ch = readChar();
+	int v = 0;
+	while (ch >= '0' && ch <= '9') {
+	    v = 10*v + (ch-'0');  ch = readChar();
+	}
+	nextChar = ch;
+	return negative ? -v : v;
+    }
+}
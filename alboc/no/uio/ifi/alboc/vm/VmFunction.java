@@ -0,0 +1,27 @@
+package no.uio.ifi.alboc.vm;
+
+/*
+ * A function translated for the virtual machine (or one of the
+ * library functions, which are built into it).
+ */
+class VmFunction {
+    // The library functions:
+    static final int NONE = -1, PUTCHAR = 0, PUTINT = 1, GETCHAR = 2,
+	GETINT = 3, EXIT = 4;
+
+    final String name;
+    final int index;          // In Vm's function table
+    int builtin = NONE;
+    boolean defined = false;  // Has the function been translated?
+    int[] code = null;
+    int numRegs = 0;          // The size of its register window
+    int frameSize = 0;        // Bytes for the variables kept in memory
+    int[] paramRegs = new int[0];  // The register of each parameter (or -1)
+    // Are the arguments also needed in memory (at 8(%ebp), 12(%ebp), ...)
+    // because some parameter has its address taken?
+    boolean argsInMemory = false;
+
+    VmFunction(String name, int index) {
+	this.name = name;  this.index = index;
+    }
+}